@@ -0,0 +1,352 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.Random;
+
+/**
+ * Generates synthetic .vm programs of a configurable size and command mix, to
+ * benchmark the translator with.
+ *
+ * - Every file is a class with the given number of functions, and every function
+ *      has about the given number of commands, drawn from the command mix.
+ * - Sys.vm holds Sys.init, which calls every function that is not a leaf once and
+ *      then loops forever. The last functions of every class are leaves and
+ *      never call anything, other functions only call leaves. So the programs
+ *      always end up in the Sys.init loop and can also be run, not only translated.
+ * - The stack depth is tracked while generating so every function leaves exactly
+ *      one value for its return, and branches only jump forward. A label is only
+ *      written once the stack is as high as at the if-goto jumping to it, so both
+ *      ways of getting there agree on where the stack is.
+ * - The same seed always generates the same corpus.
+ *
+ * Usage: java CorpusGenerator outputDirectory [--files N] [--functions N]
+ *      [--commands N] [--seed N] [--mix push:40,pop:15,arithmetic:20,compare:8,branch:7,call:10]
+ *
+ * @author Jay Montoya
+ * @version 1.0
+ */
+public class CorpusGenerator {
+
+    /** names of the command kinds in the mix, in the order of the weights **/
+    public static final String[] KINDS = {"push", "pop", "arithmetic", "compare", "branch", "call"};
+
+    /** the number of class files to generate, not counting Sys.vm **/
+    private int files = 10;
+
+    /** the number of functions in each class file **/
+    private int functions = 20;
+
+    /** about how many commands each function has **/
+    private int commands = 100;
+
+    /** the seed of the random number generator **/
+    private long seed = 42;
+
+    /** the weight of each command kind, indexed like KINDS **/
+    private int[] mix = {40, 15, 20, 8, 7, 10};
+
+    /** the random number generator of the current run **/
+    private Random random;
+
+    /** the total number of commands generated **/
+    private long commandsGenerated;
+
+    /**
+     * Generates a corpus from the command line.
+     * @param args the output directory followed by the options
+     */
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.out.println("usage: java CorpusGenerator outputDirectory [--files N] [--functions N]"
+                    + " [--commands N] [--seed N] [--mix push:40,pop:15,...]");
+            System.exit(0);
+        }
+        CorpusGenerator generator = new CorpusGenerator();
+        generator.configure(args, 1);
+        long count = generator.generate(new File(args[0]));
+        System.out.println("generated " + count + " commands in " + args[0]);
+    }
+
+    /**
+     * Reads the options of the generator from command line arguments. Arguments
+     * the generator does not know are skipped so other tools can share them.
+     * @param args the command line arguments
+     * @param start the index of the first argument to look at
+     */
+    public void configure(String[] args, int start) {
+        for (int i = start; i + 1 < args.length; i++) {
+            switch (args[i]) {
+                case "--files":
+                    files = Integer.parseInt(args[++i]);
+                    break;
+                case "--functions":
+                    functions = Integer.parseInt(args[++i]);
+                    break;
+                case "--commands":
+                    commands = Integer.parseInt(args[++i]);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+                case "--mix":
+                    parseMix(args[++i]);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Writes the corpus into a directory, replacing any .vm files already there.
+     * @param directory the directory to write to, created if needed
+     * @return the number of commands generated
+     */
+    public long generate(File directory) {
+        directory.mkdirs();
+        File[] old = directory.listFiles();
+        if (old != null) {
+            for (File file : old) {
+                if (file.getName().endsWith(".vm") || file.getName().endsWith(".asm")) {
+                    file.delete();
+                }
+            }
+        }
+
+        random = new Random(seed);
+        commandsGenerated = 0;
+
+        for (int f = 0; f < files; f++) {
+            try (PrintWriter out = new PrintWriter(new File(directory, className(f) + ".vm"))) {
+                for (int j = 0; j < functions; j++) {
+                    writeFunction(out, f, j);
+                }
+            } catch (FileNotFoundException e) {
+                e.printStackTrace();
+                System.exit(0);
+            }
+        }
+
+        try (PrintWriter out = new PrintWriter(new File(directory, "Sys.vm"))) {
+            writeSysInit(out);
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+            System.exit(0);
+        }
+        return commandsGenerated;
+    }
+
+    /**
+     * Helper method for writing Sys.init, which calls every function that is not a leaf.
+     * @param out the Sys.vm file
+     */
+    private void writeSysInit(PrintWriter out) {
+        out.println("function Sys.init 0");
+        commandsGenerated++;
+        for (int f = 0; f < files; f++) {
+            for (int j = 0; j < functions; j++) {
+                if (isLeaf(j)) {
+                    continue;
+                }
+                for (int a = 0; a < argumentCount(f, j); a++) {
+                    command(out, "push constant " + random.nextInt(100));
+                }
+                command(out, "call " + className(f) + ".f" + j + " " + argumentCount(f, j));
+                command(out, "pop temp 0");
+            }
+        }
+        command(out, "label LOOP");
+        command(out, "goto LOOP");
+    }
+
+    /**
+     * Helper method for writing one function of a class.
+     * @param out the class file
+     * @param f the number of the class
+     * @param j the number of the function in the class
+     */
+    private void writeFunction(PrintWriter out, int f, int j) {
+        int locals = 1 + (f + j) % 4;
+        int arguments = argumentCount(f, j);
+        command(out, "function " + className(f) + ".f" + j + " " + locals);
+
+        // this and that point somewhere harmless
+        command(out, "push constant " + (3000 + 16 * j));
+        command(out, "pop pointer 0");
+        command(out, "push constant " + (4000 + 16 * j));
+        command(out, "pop pointer 1");
+
+        int depth = 0;
+        int labels = 0;
+        int openLabel = -1;
+        int openLabelDepth = 0;
+        int total = mix[0] + mix[1] + mix[2] + mix[3] + mix[4] + mix[5];
+        for (int c = 0; c < commands; c++) {
+            // pick a command kind from the mix
+            int pick = random.nextInt(total);
+            int kind = 0;
+            while (pick >= mix[kind]) {
+                pick -= mix[kind];
+                kind++;
+            }
+
+            if (kind == 0 || depth == 0) {
+                command(out, "push " + segmentAndIndex(true, locals, arguments));
+                depth++;
+            } else if (kind == 1) {
+                command(out, "pop " + segmentAndIndex(false, locals, arguments));
+                depth--;
+            } else if (kind == 2) {
+                if (depth >= 2) {
+                    command(out, new String[]{"add", "sub", "and", "or"}[random.nextInt(4)]);
+                    depth--;
+                } else {
+                    command(out, random.nextBoolean() ? "neg" : "not");
+                }
+            } else if (kind == 3 && depth >= 2) {
+                command(out, new String[]{"eq", "gt", "lt"}[random.nextInt(3)]);
+                depth--;
+            } else if (kind == 4) {
+                // close the label a branch jumps to, or open a new forward branch
+                if (openLabel != -1) {
+                    depth = balance(out, depth, openLabelDepth);
+                    command(out, "label L" + openLabel);
+                    openLabel = -1;
+                } else {
+                    openLabel = labels++;
+                    command(out, "if-goto L" + openLabel);
+                    depth--;
+                    openLabelDepth = depth;
+                }
+            } else if (kind == 5 && !isLeaf(j)) {
+                int callee = functions - 1 - random.nextInt(Math.max(1, functions / 4));
+                int calleeClass = random.nextInt(files);
+                for (int a = 0; a < argumentCount(calleeClass, callee); a++) {
+                    command(out, "push constant " + random.nextInt(1000));
+                }
+                command(out, "call " + className(calleeClass) + ".f" + callee + " "
+                        + argumentCount(calleeClass, callee));
+                depth++;
+            } else {
+                command(out, "push constant " + random.nextInt(32768));
+                depth++;
+            }
+        }
+
+        if (openLabel != -1) {
+            depth = balance(out, depth, openLabelDepth);
+            command(out, "label L" + openLabel);
+        }
+
+        // leave exactly one value on the stack for the return
+        while (depth > 1) {
+            command(out, "pop temp " + random.nextInt(8));
+            depth--;
+        }
+        if (depth == 0) {
+            command(out, "push constant 0");
+        }
+        command(out, "return");
+        out.println();
+    }
+
+    /**
+     * Helper method for bringing the stack to the height it had at a jump, before
+     * the label the jump goes to.
+     * @param out the class file
+     * @param depth the height of the stack now
+     * @param target the height of the stack at the jump
+     * @return the new height, always target
+     */
+    private int balance(PrintWriter out, int depth, int target) {
+        for (; depth > target; depth--) {
+            command(out, "pop temp " + random.nextInt(8));
+        }
+        for (; depth < target; depth++) {
+            command(out, "push constant " + random.nextInt(32768));
+        }
+        return depth;
+    }
+
+    /**
+     * Helper method for picking a segment and index which is valid in the function.
+     * @param push true for a push, false for a pop
+     * @param locals the number of locals of the function
+     * @param arguments the number of arguments of the function
+     * @return the segment and index, like "local 2"
+     */
+    private String segmentAndIndex(boolean push, int locals, int arguments) {
+        int segment = random.nextInt(push ? 8 : 7);
+        switch (segment) {
+            case 0:
+                return "local " + random.nextInt(locals);
+            case 1:
+                return (arguments > 0) ? "argument " + random.nextInt(arguments) : "local 0";
+            case 2:
+                return "this " + random.nextInt(16);
+            case 3:
+                return "that " + random.nextInt(16);
+            case 4:
+                return "static " + random.nextInt(8);
+            case 5:
+                return "temp " + random.nextInt(8);
+            case 6:
+                return "local " + random.nextInt(locals);
+            default:
+                return "constant " + random.nextInt(32768);
+        }
+    }
+
+    /**
+     * Helper method for writing a command and counting it.
+     * @param out the file to write to
+     * @param command the VM command
+     */
+    private void command(PrintWriter out, String command) {
+        out.println(command);
+        commandsGenerated++;
+    }
+
+    /**
+     * Helper method for reading the command mix, like push:40,pop:15.
+     * @param text the mix as given on the command line
+     */
+    private void parseMix(String text) {
+        for (String part : text.split(",")) {
+            String[] pair = part.split(":");
+            for (int k = 0; k < KINDS.length; k++) {
+                if (KINDS[k].equals(pair[0])) {
+                    mix[k] = Integer.parseInt(pair[1]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Helper method for the name of a class.
+     * @param f the number of the class
+     * @return the class name
+     */
+    private static String className(int f) {
+        return "Class" + f;
+    }
+
+    /**
+     * Helper method for the number of arguments of a function.
+     * @param f the number of the class
+     * @param j the number of the function in the class
+     * @return the number of arguments
+     */
+    private static int argumentCount(int f, int j) {
+        return (f + 2 * j) % 3;
+    }
+
+    /**
+     * Helper method for checking if a function is a leaf, which never calls anything.
+     * @param j the number of the function in the class
+     * @return true for the last quarter of the functions of a class
+     */
+    private boolean isLeaf(int j) {
+        return j >= functions - Math.max(1, functions / 4);
+    }
+}
@@ -0,0 +1,134 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Checks the translator against the VMInterpreter on the regression programs in
+ * bench/programs, once for every set of translator options in OPTION_SETS.
+ *
+ * - Every program directory is copied to a temporary directory first, so the .asm
+ *      files and caches the translator writes do not end up in the tree.
+ * - Every run goes through VMInterpreter.check, which compares the pointers, temp,
+ *      statics, stack and heap of the interpreter with the translated code on the
+ *      HackEmulator.
+ * - It exits with 1 if any run differs, so it can gate a change like a test suite.
+ *
+ * Usage: java OracleCheck [--programs directory] [--max-ops N]
+ *
+ * @author Jay Montoya
+ * @version 1.0
+ */
+public class OracleCheck {
+
+    /** the translator options every program is checked with, one run per row **/
+    public static final String[][] OPTION_SETS = {
+            {},
+            {"--peephole"},
+            {"--fold", "--fuse"},
+            {"--tos"},
+            {"--direct"},
+            {"--shared-call-return"},
+            {"--tail-calls"},
+            {"--dce", "--inline", "8"},
+            {"--pipeline"},
+            {"--single-thread"},
+            {"--peephole", "--fold", "--tos", "--fuse", "--direct", "--tail-calls", "--dce", "--inline", "8"},
+            {"--shared-call-return", "--peephole", "--fold", "--tos", "--fuse", "--direct"},
+    };
+
+    /** where the regression programs are, one directory each **/
+    private String programsDirectory = "bench/programs";
+
+    /** operations the interpreter runs before giving up on a program **/
+    private long maxOps = VMInterpreter.DEFAULT_MAX_OPS;
+
+    /** the evil main method that drives the entire check **/
+    public static void main(String[] args) throws IOException {
+        OracleCheck oracle = new OracleCheck();
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals("--programs")) {
+                oracle.programsDirectory = args[++i];
+            } else if (args[i].equals("--max-ops")) {
+                oracle.maxOps = Long.parseLong(args[++i]);
+            }
+        }
+        System.exit(oracle.run() == 0 ? 0 : 1);
+    }
+
+    /**
+     * Checks every program under every option set.
+     * @return the number of runs which failed
+     * @throws IOException if a program can not be copied
+     */
+    public int run() throws IOException {
+        File[] programs = new File(programsDirectory).listFiles(File::isDirectory);
+        if (programs == null || programs.length == 0) {
+            System.out.println("FATAL ERROR");
+            System.out.println("no programs in '" + programsDirectory + "'");
+            return 1;
+        }
+        Arrays.sort(programs);
+
+        int runs = 0;
+        int failed = 0;
+        for (File program : programs) {
+            for (String[] optionSet : OPTION_SETS) {
+                runs++;
+                System.out.println(program.getName() + " " + String.join(" ", optionSet));
+                if (!check(program, optionSet)) {
+                    failed++;
+                }
+            }
+        }
+        System.out.println((runs - failed) + " of " + runs + " runs match the interpreter"
+                + (failed == 0 ? "" : ", " + failed + " FAILED"));
+        return failed;
+    }
+
+    /**
+     * Helper method for checking one program with one set of options.
+     * @param program the directory of the program
+     * @param optionSet the translator options
+     * @return true if the translated code ends in the same state as the interpreter
+     * @throws IOException if the program can not be copied
+     */
+    private boolean check(File program, String[] optionSet) throws IOException {
+        File copy = Files.createTempDirectory("oracle").resolve(program.getName()).toFile();
+        copy.mkdir();
+        File[] files = program.listFiles((directory, name) -> name.endsWith(".vm"));
+        for (File file : files) {
+            Files.copy(file.toPath(), new File(copy, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        ArrayList<String> args = new ArrayList<>(Arrays.asList(optionSet));
+        args.add(copy.getPath());
+        try {
+            TranslatorOptions options = TranslatorOptions.parse(args.toArray(new String[0]));
+            VMInterpreter interpreter = new VMInterpreter(VMInterpreter.readDirectory(copy.getPath()));
+            interpreter.run(maxOps);
+            return interpreter.check(options);
+        } catch (VMTranslatorException e) {
+            System.out.println("CHECK FAILED: " + e.getMessage());
+            return false;
+        } finally {
+            delete(copy.getParentFile());
+        }
+    }
+
+    /**
+     * Helper method for deleting a temporary directory and everything in it.
+     * @param file the file or directory to delete
+     */
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
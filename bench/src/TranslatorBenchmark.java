@@ -0,0 +1,243 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+/**
+ * Measures the translator on a synthetic corpus from CorpusGenerator, with a
+ * warm up phase before the measured iterations so the JIT has settled.
+ *
+ * BENCHMARKS:
+ * 1) parse: Parser.advance over every file already in memory.
+ * 2) codegen: CodeWriter.writePushPop, writeArithmetic and writeCall into a MemorySink.
+ * 3) translate: VMTranslator.translateDirectory on the whole corpus, file io included.
+ *
+ * Every benchmark reports VM commands per second and the bytes allocated per
+ * operation, summed over every thread so the fork/join workers count too.
+ *
+ * Usage: java TranslatorBenchmark [--corpus directory] [--warmup N] [--iterations N]
+ *      [--csv file] [translator options] [CorpusGenerator options]
+ *
+ * @author Jay Montoya
+ * @version 1.0
+ */
+public class TranslatorBenchmark {
+
+    /** the number of code generator calls in one operation of the codegen benchmark **/
+    public static final int CODEGEN_COMMANDS = 100000;
+
+    /** where the corpus is generated **/
+    private String corpusDirectory = "bench/corpus";
+
+    /** the number of operations run before measuring **/
+    private int warmup = 5;
+
+    /** the number of measured operations **/
+    private int iterations = 10;
+
+    /** the csv file the results are written to, or null **/
+    private String csvFile = null;
+
+    /** the translator options, everything on the command line the translator knows **/
+    private String[] translatorArgs = new String[0];
+
+    /** the results, one row per benchmark **/
+    private ArrayList<String> rows = new ArrayList<>();
+
+    /** something every benchmark writes to so the JIT can not drop the work **/
+    private long blackhole;
+
+    /** the evil main method that drives the entire benchmark **/
+    public static void main(String[] args) throws IOException {
+        TranslatorBenchmark benchmark = new TranslatorBenchmark();
+        benchmark.configure(args);
+
+        // generate the corpus
+        CorpusGenerator generator = new CorpusGenerator();
+        generator.configure(args, 0);
+        long commands = generator.generate(new File(benchmark.corpusDirectory));
+        System.out.println("corpus: " + commands + " commands in " + benchmark.corpusDirectory);
+
+        benchmark.run(commands);
+    }
+
+    /**
+     * Reads the options of the benchmark from command line arguments.
+     * @param args the command line arguments
+     */
+    private void configure(String[] args) {
+        ArrayList<String> translator = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--corpus":
+                    corpusDirectory = args[++i];
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(args[++i]);
+                    break;
+                case "--iterations":
+                    iterations = Integer.parseInt(args[++i]);
+                    break;
+                case "--csv":
+                    csvFile = args[++i];
+                    break;
+                case "--files":
+                case "--functions":
+                case "--commands":
+                case "--seed":
+                case "--mix":
+                    // belongs to the generator
+                    i++;
+                    break;
+                default:
+                    translator.add(args[i]);
+                    break;
+            }
+        }
+        translatorArgs = translator.toArray(new String[0]);
+    }
+
+    /**
+     * Runs every benchmark and prints the results.
+     * @param corpusCommands the number of commands in the corpus
+     * @throws IOException if the corpus can not be read or the csv can not be written
+     */
+    private void run(long corpusCommands) throws IOException {
+        TranslatorOptions options;
+        try {
+            String[] args = new String[translatorArgs.length + 1];
+            System.arraycopy(translatorArgs, 0, args, 0, translatorArgs.length);
+            args[translatorArgs.length] = corpusDirectory;
+            options = TranslatorOptions.parse(args);
+        } catch (VMTranslatorException e) {
+            System.out.println("FATAL ERROR");
+            System.out.println(e.getMessage());
+            System.exit(0);
+            return;
+        }
+
+        // read every file into memory once, the parse benchmark should not measure the disk
+        ArrayList<ByteBuffer> inputs = new ArrayList<>();
+        File[] listing = new File(corpusDirectory).listFiles();
+        if (listing != null) {
+            for (File file : listing) {
+                if (file.getName().endsWith(".vm")) {
+                    inputs.add(ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+                }
+            }
+        }
+
+        measure("parse", corpusCommands, () -> {
+            try {
+                for (ByteBuffer input : inputs) {
+                    Parser parser = new Parser(input.duplicate());
+                    while (parser.hasMoreCommands()) {
+                        parser.advance();
+                        blackhole += parser.getCommandType().ordinal();
+                    }
+                }
+            } catch (VMTranslatorException e) {
+                System.out.println("FATAL ERROR");
+                System.out.println(e.getMessage());
+                System.exit(1);
+            }
+        });
+
+        measure("codegen", CODEGEN_COMMANDS, () -> {
+            MemorySink sink = new MemorySink(VMTranslator.FRAGMENT_BUFFER_SIZE);
+            CodeWriter codeWriter = new CodeWriter(sink, options);
+            codeWriter.setFileName("Bench.vm");
+            codeWriter.writeFunction("Bench.run", 2);
+            for (int i = 0; i < CODEGEN_COMMANDS; i += 4) {
+                codeWriter.writePushPop(CommandType.C_PUSH, Segment.LOCAL, i & 1);
+                codeWriter.writePushPop(CommandType.C_PUSH, Segment.CONSTANT, i & 255);
+                codeWriter.writeArithmetic((i & 4) == 0 ? Opcode.ADD : Opcode.LT);
+                if ((i & 60) == 0) {
+                    codeWriter.writeCall("Bench.run", 1);
+                } else {
+                    codeWriter.writePushPop(CommandType.C_POP, Segment.THAT, i & 7);
+                }
+            }
+            codeWriter.close();
+            blackhole += sink.size();
+        });
+
+        measure("translate", corpusCommands, () -> {
+            try {
+                blackhole += VMTranslator.translateDirectory(options).hashCode();
+            } catch (VMTranslatorException e) {
+                System.out.println("FATAL ERROR");
+                System.out.println(e.getMessage());
+                System.exit(1);
+            }
+        });
+
+        System.out.println("(ignore) " + blackhole);
+        if (csvFile != null) {
+            try (PrintWriter csv = new PrintWriter(new FileOutputStream(csvFile))) {
+                csv.println("benchmark,iterations,commands_per_op,ms_per_op,commands_per_sec,bytes_allocated_per_op");
+                for (String row : rows) {
+                    csv.println(row);
+                }
+            }
+            System.out.println("results written to " + csvFile);
+        }
+    }
+
+    /**
+     * Runs a benchmark through its warm up and measured operations and prints the result.
+     * @param name the name of the benchmark
+     * @param commandsPerOp the number of VM commands one operation handles
+     * @param operation the work to measure
+     */
+    private void measure(String name, long commandsPerOp, Runnable operation) {
+        for (int i = 0; i < warmup; i++) {
+            operation.run();
+        }
+
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            operation.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        double msPerOp = elapsed / 1e6 / iterations;
+        double commandsPerSec = commandsPerOp * iterations / (elapsed / 1e9);
+        long bytesPerOp = (allocated < 0) ? -1 : allocated / iterations;
+
+        rows.add(name + "," + iterations + "," + commandsPerOp + "," + String.format("%.3f", msPerOp)
+                + "," + String.format("%.0f", commandsPerSec) + "," + bytesPerOp);
+        System.err.println(String.format("%-10s %10.3f ms/op %14.0f commands/s %14d B/op",
+                name, msPerOp, commandsPerSec, bytesPerOp));
+    }
+
+    /**
+     * Helper method for the number of bytes allocated so far by every live thread.
+     * Threads which died in between are lost, the translator runs on the common
+     * fork/join pool whose workers stay alive between operations.
+     * @return the bytes allocated, or -1 if the JVM can not tell
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        long total = 0;
+        for (long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (allocated > 0) {
+                total += allocated;
+            }
+        }
+        return total;
+    }
+}
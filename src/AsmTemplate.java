@@ -0,0 +1,63 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Precompiled block of hack assembly code with slots for unique labels.
+ *
+ * - The template text is split once into ASCII byte chunks, so emitting it is a
+ *      handful of byte copies into the output sink.
+ * - A slot is written as {NAME} in the template text. At emit time it becomes
+ *      PREFIXNAME_# where PREFIX and # are supplied by the CodeWriter.
+ *
+ * @author Jay Montoya
+ * @version 1.0
+ */
+public class AsmTemplate {
+
+    /** the literal text between the slots, one more than there are slots **/
+    private final byte[][] literals;
+
+    /** the name of each slot **/
+    private final byte[][] slots;
+
+    /**
+     * Constructor which compiles the given template text.
+     * @param text hack assembly code with {NAME} label slots
+     */
+    public AsmTemplate(String text) {
+        ArrayList<byte[]> literalList = new ArrayList<>();
+        ArrayList<byte[]> slotList = new ArrayList<>();
+
+        // split the text around every slot
+        int start = 0;
+        int open = text.indexOf('{');
+        while (open != -1) {
+            int close = text.indexOf('}', open);
+            literalList.add(text.substring(start, open).getBytes(StandardCharsets.US_ASCII));
+            slotList.add(text.substring(open + 1, close).getBytes(StandardCharsets.US_ASCII));
+            start = close + 1;
+            open = text.indexOf('{', start);
+        }
+        literalList.add(text.substring(start).getBytes(StandardCharsets.US_ASCII));
+
+        literals = literalList.toArray(new byte[0][]);
+        slots = slotList.toArray(new byte[0][]);
+    }
+
+    /**
+     * Writes the template, filling every slot with a unique label.
+     * @param out the sink to write to
+     * @param labelPrefix the text put in front of each slot name
+     * @param labelNum the number put after each slot name
+     */
+    public void emit(OutputSink out, String labelPrefix, int labelNum) {
+        for (int i = 0; i < slots.length; i++) {
+            out.append(literals[i], 0, literals[i].length)
+                    .append(labelPrefix)
+                    .append(slots[i], 0, slots[i].length)
+                    .append('_').append(labelNum);
+        }
+        byte[] last = literals[slots.length];
+        out.append(last, 0, last.length);
+    }
+}
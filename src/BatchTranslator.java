@@ -0,0 +1,107 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Translates many directories of .vm files in a single run, so a build which
+ * translates hundreds of programs only starts the JVM once.
+ *
+ * - Every directory is translated by VMTranslator.translateDirectory with its own
+ *      options and its own CodeWriter, exactly like a run on that directory alone.
+ * - At most --threads directories are translated at the same time. The files of
+ *      each directory still go through the common fork/join pool.
+ * - A summary of the time and the output size of every directory is printed at
+ *      the end, in the order the directories were given. What the passes of each
+ *      directory reported (warnings, removed functions, counters) is kept in its
+ *      own TranslationReport and printed under its line, so directories which run
+ *      at the same time never mix their output.
+ * - A directory which fails is marked FAILED with the reason, the others are still
+ *      translated.
+ *
+ * @author Jay Montoya
+ * @version 1.0
+ */
+public class BatchTranslator {
+
+    /** the options the translator was started with **/
+    private final TranslatorOptions options;
+
+    /**
+     * Constructor for a batch over the directories given in the options.
+     * @param options the options the translator was started with
+     */
+    public BatchTranslator(TranslatorOptions options) {
+        this.options = options;
+    }
+
+    /**
+     * Translates every directory and prints the summary.
+     * @return the number of directories which failed
+     */
+    public int run() {
+        ArrayList<String> directories = options.getDirectoryNames();
+        if (options.isCollectingMetrics()) {
+            System.out.println("WARNING: --metrics and --sizes only work on a single directory, ignored for the batch");
+        }
+
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(options.getThreads());
+        ArrayList<Future<TranslationReport>> tasks = new ArrayList<>();
+        long[] nanos = new long[directories.size()];
+        for (int i = 0; i < directories.size(); i++) {
+            String directory = directories.get(i);
+            if (!new File(directory).isDirectory()) {
+                tasks.add(null);
+                continue;
+            }
+            TranslatorOptions directoryOptions = options.forDirectory(directory);
+            int index = i;
+            tasks.add(pool.submit(() -> {
+                long directoryStart = System.nanoTime();
+                TranslationReport report = VMTranslator.translateDirectory(directoryOptions);
+                nanos[index] = System.nanoTime() - directoryStart;
+                return report;
+            }));
+        }
+
+        // print the summary as the directories finish, in the order they were given
+        System.out.println(String.format("%-50s %10s %12s", "DIRECTORY", "TIME (ms)", "SIZE (bytes)"));
+        long totalBytes = 0;
+        int failed = 0;
+        for (int i = 0; i < directories.size(); i++) {
+            String directory = directories.get(i);
+            if (tasks.get(i) == null) {
+                System.out.println(String.format("%-50s %10s %12s", directory, "-", "not a directory"));
+                failed++;
+                continue;
+            }
+            try {
+                TranslationReport report = tasks.get(i).get();
+                long bytes = new File(VMTranslator.outputFileName(directory, options)).length();
+                totalBytes += bytes;
+                System.out.println(String.format("%-50s %10.1f %12d", directory, nanos[i] / 1e6, bytes));
+                report.print("    ");
+            } catch (ExecutionException e) {
+                System.out.println(String.format("%-50s %10s %12s", directory, "-", "FAILED"));
+                // a bad .vm file, or anything else, fails this row and the batch goes on
+                if (e.getCause() instanceof VMTranslatorException) {
+                    System.out.println("    " + e.getCause().getMessage().trim());
+                } else {
+                    System.out.println("    " + e.getCause());
+                }
+                failed++;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        pool.shutdown();
+
+        System.out.println(String.format("%-50s %10.1f %12d", "TOTAL (" + (directories.size() - failed) + " of "
+                + directories.size() + " directories)", (System.nanoTime() - start) / 1e6, totalBytes));
+        return failed;
+    }
+}
@@ -0,0 +1,146 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Output sink which writes ASCII bytes straight to a FileChannel.
+ *
+ * - Bytes are collected in one reusable buffer and only written out when the
+ *      buffer is full or the sink is closed.
+ * - In memory-mapped mode the buffer is a mapped window of the file itself, when
+ *      it fills up the next window is mapped. The file is cut down to the bytes
+ *      actually written on close.
+ * - OutputSink methods can not throw an IOException, so one is thrown on as an
+ *      UncheckedIOException for VMTranslator to report.
+ *
+ * @author Jay Montoya
+ * @version 1.0
+ */
+public class ChannelSink implements OutputSink {
+
+    /** the channel of the output file **/
+    private FileChannel channel;
+
+    /** the reusable buffer, or the current mapped window of the file **/
+    private ByteBuffer buffer;
+
+    /** whether the buffer is a mapped window of the file **/
+    private final boolean memoryMapped;
+
+    /** the size of the buffer in bytes **/
+    private final int bufferSize;
+
+    /** file position where the current buffer starts **/
+    private long position;
+
+    /** scratch space for writing the digits of a number **/
+    private final byte[] digits = new byte[11];
+
+    /**
+     * Opens the output file and gets ready to write to it.
+     * @param fileName the name of the desired output file as a string
+     * @param bufferSize the size of the append buffer in bytes
+     * @param memoryMapped true to write through a memory-mapped view of the file
+     */
+    public ChannelSink(String fileName, int bufferSize, boolean memoryMapped) {
+        this.bufferSize = Math.max(64, bufferSize);
+        this.memoryMapped = memoryMapped;
+        position = 0;
+
+        try {
+            channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            buffer = memoryMapped
+                    ? channel.map(FileChannel.MapMode.READ_WRITE, 0, this.bufferSize)
+                    : ByteBuffer.allocate(this.bufferSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public OutputSink append(CharSequence text) {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            buffer.put((byte) text.charAt(i));
+        }
+        return this;
+    }
+
+    @Override
+    public OutputSink append(char c) {
+        if (!buffer.hasRemaining()) {
+            drain();
+        }
+        buffer.put((byte) c);
+        return this;
+    }
+
+    @Override
+    public OutputSink append(int value) {
+        int length = MemorySink.formatInt(value, digits);
+        return append(digits, digits.length - length, length);
+    }
+
+    @Override
+    public OutputSink append(byte[] bytes, int offset, int length) {
+        while (length > 0) {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            int chunk = Math.min(length, buffer.remaining());
+            buffer.put(bytes, offset, chunk);
+            offset += chunk;
+            length -= chunk;
+        }
+        return this;
+    }
+
+    /**
+     * Writes out the buffered bytes and closes the file.
+     */
+    @Override
+    public void close() {
+        try {
+            if (memoryMapped) {
+                // cut off the unused end of the last mapped window
+                position += buffer.position();
+                buffer = null;
+                channel.truncate(position);
+            } else {
+                drain();
+            }
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Helper method called when the buffer is full. Writes the buffer to the
+     * channel, or maps the next window of the file when memory-mapped.
+     */
+    private void drain() {
+        try {
+            if (memoryMapped) {
+                position += buffer.position();
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, bufferSize);
+            } else {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer);
+                }
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
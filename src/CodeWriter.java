@@ -1,10 +1,5 @@
-import sun.tools.java.SyntaxError;
-
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileWriter;
-import java.io.PrintWriter;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Stack;
 import java.util.StringTokenizer;
 
@@ -12,236 +7,769 @@ import java.util.StringTokenizer;
 /**
  * Generates assembly code from the parsed VM command.
  *
+ * All label, file and function state lives in the CodeWriter object, so every
+ * .vm file can be translated by its own CodeWriter. Generated labels carry the
+ * file name so fragments from different files never clash when merged.
+ *
  * @author Jay Montoya
  * @version 1.0
  */
 public class CodeWriter {
 
-    /** connection to the output file where our hack assembly code will be written **/
-    private PrintWriter outputFile;
-    private ArithmeticHashMap arithmeticMapper;
+    /** sink for the output file where our hack assembly code will be written **/
+    private OutputSink out;
+
+    /** the sink behind the peephole optimizer, the same as out if there is none **/
+    private OutputSink sink;
+
+    /** the peephole optimizer, null unless enabled in the options **/
+    private PeepholeOptimizer peephole;
+
+    /** the options the translator was started with **/
+    private TranslatorOptions options;
+
+    /** counts the instructions which really reach the sink, after the peephole optimizer, null unless measuring **/
+    private InstructionCounter counter;
+
+    /** counts the instructions as they are written, before the peephole optimizer, null unless measuring **/
+    private InstructionCounter generated;
+
+    /** the metrics of the file being written, null unless metrics are collected **/
+    private FileMetrics metrics;
+
+    /** the kind of command being written and the instruction count when it started **/
+    private Opcode chargedOpcode;
+    private int chargedFrom;
     private int labelNum;
-    private int valuableLinesWritten;
     private String fileName;
+    private String fileBaseName;
     private String functionName;
 
-    /**
-     * Class extension of a HashMap
-     * Necessary for implementation of unique labels when generating an asm file.
-     */
-    private class ArithmeticHashMap extends HashMap<String, String> {
-       // constructor which initializes label tracking variable.
-        public ArithmeticHashMap() {
-            labelNum = 1;
+    /** functionName + "$" in ASCII, every label of the function starts with it **/
+    private byte[] functionPrefix;
 
-        }
+    /** the ASCII name of every static of the file, by index, made the first time it is used **/
+    private byte[][] staticNames = new byte[16][];
 
-        /**
-         * Overriden get method. When the the key is gt, lt, or eq...
-         * then labels are being used, the hashmap must update the values for these
-         * keys with new labels that are unique.
-         * @param key the arithmetic command
-         * @return The assembly language translation of the supplied vm command.
-         */
-        @Override
-        public String get(Object key) {
+    /** the fileBaseName the static names were made for **/
+    private String staticOwner;
 
-            // save the old value
-            String oldValue = super.get(key);
+    /**
+     * the labels of the function being written, checked when it ends. labelDefinedIn
+     * holds the number of the function which defined each label, by symbol id, so a
+     * label defined twice in the same function or jumped to but never defined is found
+     * without building a set for every function
+     **/
+    private int[] labelDefinedIn = new int[64];
+    private int labelScope = 1;
 
-            // if the key is gt, lt, or eq
-            // update the assembly code with the new unique labels.
-            if( ((String) key).equals("gt") ||
-                    ((String) key).equals("lt") ||
-                    ((String) key).equals("eq")) {
-                labelNum++;
+    /** the symbol ids of the labels the function being written jumps to **/
+    private int[] labelsJumpedTo = new int[16];
+    private int jumpCount;
 
+    /** put in front of every label this CodeWriter generates so they are unique across files **/
+    private String labelPrefix;
 
-                // update the new values
-                this.put("gt","@SP\n" +
-                        "AM = M - 1\n" +
-                        "D = M\n" +
-                        "A = A - 1\n" +
-                        "D = M - D\n" +
-                        "@TRUE_" + labelNum + "\n" +
-                        "D;JGT\n" +
-                        "@SP\n" +
-                        "A = M - 1\n" +
-                        "M = 0\n" +
-                        "@CONTINUE_" + labelNum + "\n" +
-                        "0;JMP\n" +
-                        getTrueLabel() +
-                        "@SP\n" +
-                        "A = M - 1\n" +
-                        "M = -1\n" +
-                        getContinueLabel());
-                this.put("lt", "@SP\n" +
-                        "AM = M - 1\n" +
-                        "D = M\n" +
-                        "A = A - 1\n" +
-                        "D = M - D\n" +
-                        "@TRUE_" + labelNum + "\n" +
-                        "D;JLT\n" +
-                        "@SP\n" +
-                        "A = M - 1\n" +
-                        "M = 0\n" +
-                        "@CONTINUE_" + labelNum + "\n" +
-                        "0;JMP\n" +
-                        getTrueLabel() +
-                        "@SP\n" +
-                        "A = M - 1\n" +
-                        "M = -1\n" +
-                        getContinueLabel());
-                this.put("eq", "@SP\n" +
-                        "AM = M - 1\n" +
-                        "D = M\n" +
-                        "A = A - 1\n" +
-                        "D = M - D\n" +
-                        "@TRUE_" + labelNum + "\n" +
-                        "D;JEQ\n" +
-                        "@SP\n" +
-                        "A = M - 1\n" +
-                        "M = 0\n" +
-                        "@CONTINUE_" + labelNum + "\n" +
-                        "0;JMP\n" +
-                        getTrueLabel() +
-                        "@SP\n" +
-                        "A = M - 1\n" +
-                        "M = -1\n" +
-                        getContinueLabel());
-
-                valuableLinesWritten += 15;
-            } else if (key.equals("add")) {
-                valuableLinesWritten += 5;
-            } else if (key.equals("sub")) {
-                valuableLinesWritten += 5;
-            } else if (key.equals("neg")) {
-                valuableLinesWritten += 3;
-            } else if (key.equals("and")) {
-                valuableLinesWritten += 5;
-            } else if (key.equals("or")) {
-                valuableLinesWritten += 5;
-            } else if (key.equals("not")) {
-                valuableLinesWritten += 3;
-            }
+    /** whether the top of the stack is held in D instead of in RAM, only with --tos **/
+    private boolean topInD;
 
+    /** how many times the top of the stack was used straight from D and had to be stored **/
+    private int topsKept;
+    private int topsSpilled;
 
+    /** how many compares were fused with the if-goto after them **/
+    private int branchesFused;
 
-            // return the previous/current value
+    /** how many commands after the one being written writeCommands() looks at **/
+    public static final int LOOKAHEAD = 2;
 
-            return oldValue;
-        }
-    }
+    /** the next command of the program to write **/
+    private int nextCommand;
+
+    /** the last command of the fused branch or tail call being written, see fusedBranchEnd() **/
+    private int fusedUntil = -1;
+
+    /** the functions which are written at their call sites, null unless --inline **/
+    private FunctionInliner inliner;
 
     /**
-     * Opens the output file stream and gets ready to write to it.
-     * @param fileName the name of the desired output file as a string
-     */
-    public CodeWriter(String fileName) {
-       // next block of code might throw an exception
-        try {
-            // establish the connection to the output file
-            outputFile = new PrintWriter(fileName);
-        } catch (FileNotFoundException e) { // catch that shit
-            // exception handling technique
-            e.printStackTrace();
-            System.exit(0); // force quit
-        }
+     * an inlined stack slot at most this far below SP is reached with a chain of
+     * A = A - 1, further down the distance is subtracted (see writeLoadBelowSP)
+     **/
+    private static final int LOAD_CHAIN_LIMIT = 3;
+    private static final int STORE_CHAIN_LIMIT = 11;
 
-        // get the name of the file without the extension. T
-        StringTokenizer st = new StringTokenizer(VMTranslator.DIRECTORY_NAME);
-        String name = st.nextToken("/");
-        while (st.hasMoreTokens()) {
-            name = st.nextToken("/");
-        }
+    /** code which pushes D, like SPILL_TOP but for values which were never on the stack **/
+    private static final String PUSH_D = "@SP\n" +
+            "AM = M + 1\n" +
+            "A = A - 1\n" +
+            "M = D\n";
 
-        // initialize our lines written
-        valuableLinesWritten = 0;
+    /** label of the global call routine used by the shared call/return mode **/
+    private static final String SHARED_CALL = "Bootstrap$CALL";
 
-        // initialize our arithmetic hashmap which maps arithmetic translations.
-        arithmeticMapper = new ArithmeticHashMap();
+    /** label of the global return routine used by the shared call/return mode **/
+    private static final String SHARED_RETURN = "Bootstrap$RETURN";
 
-        // function name
-        functionName = "";
+    /** label of the global routine which makes a tail call, only with --tail-calls **/
+    private static final String TAIL_CALL = "Bootstrap$TAIL_CALL";
 
-        // build the arithmetic mapper
-        arithmeticMapper.put("add", "@SP\n" +
-                        "AM = M - 1\n" +
-                        "D = M\n" +
-                        "A = A -1\n" +
-                        "M = M + D\n");
-        arithmeticMapper.put("sub", "@SP\n" +
+    /** how many calls followed by a return reused the frame of the caller **/
+    private int tailCalls;
+
+    /**
+     * with --direct, local, argument, this and that up to this index are reached with
+     * A = M + 1 and A = A + 1, which is never longer than adding the index to the base
+     **/
+    private static final int SEGMENT_CHAIN_LIMIT = 2;
+
+    /** how many pushes and pops had their address worked out at compile time **/
+    private int directAccesses;
+
+    /** code which pushes the LCL, ARG, THIS and THAT of the caller **/
+    private static final String PUSH_FRAME = "@LCL // push LCL\n" +
+            "D = M\n" +
+            "@SP\n" +
+            "AM = M + 1\n" +
+            "A = A - 1\n" +
+            "M = D\n" +
+            "@ARG // push ARG\n" +
+            "D = M\n" +
+            "@SP\n" +
+            "AM = M + 1\n" +
+            "A = A - 1\n" +
+            "M = D\n" +
+            "@THIS // push THIS\n" +
+            "D = M\n" +
+            "@SP\n" +
+            "AM = M + 1\n" +
+            "A = A - 1\n" +
+            "M = D\n" +
+            "@THAT // push THAT\n" +
+            "D = M\n" +
+            "@SP\n" +
+            "AM = M + 1\n" +
+            "A = A - 1\n" +
+            "M = D\n";
+
+    /** code which restores the frame of the caller and jumps back to it **/
+    private static final String RETURN_CODE = "@LCL // FRAME = LCL\n" +
+            "D = M\n" +
+            "@FRAME\n" +
+            "M = D\n" +
+            "@FRAME // RET = *(FRAME - 5)\n" +
+            "D = M\n" +
+            "@5\n" +
+            "A = D - A\n" +
+            "D = M\n" +
+            "@RET\n" +
+            "M = D\n" +
+            "@SP //*ARG = pop()\n" +
+            "AM = M-1\n" +
+            "D = M\n" +
+            "@ARG\n" +
+            "A = M\n" +
+            "M = D\n" +
+            "@ARG // SP = ARG + 1\n" +
+            "D = M + 1\n" +
+            "@SP\n" +
+            "M = D\n" +
+            "@FRAME // THAT = *(FRAME - 1)\n" +
+            "A = M -1\n" +
+            "D = M\n" +
+            "@THAT\n" +
+            "M = D\n" +
+            "@FRAME // THIS = *(FRAME - 2)\n" +
+            "D = M\n" +
+            "@2\n" +
+            "A = D - A\n" +
+            "D = M\n" +
+            "@THIS\n" +
+            "M = D\n" +
+            "@FRAME // ARG = *(FRAME - 3)\n" +
+            "D = M\n" +
+            "@3\n" +
+            "A = D - A\n" +
+            "D = M\n" +
+            "@ARG\n" +
+            "M = D\n" +
+            "@FRAME // LCL = *(FRAME-4)\n" +
+            "D = M\n" +
+            "@4\n" +
+            "A = D - A\n" +
+            "D = M\n" +
+            "@LCL\n" +
+            "M = D\n" +
+            "@RET // goto RET\n" +
+            "A = M\n" +
+            "0;JMP\n";
+
+    /** precompiled code for each arithmetic command, indexed by opcode ordinal **/
+    private static final AsmTemplate[] ARITHMETIC_TEMPLATES = new AsmTemplate[Opcode.NOT.ordinal() + 1];
+
+    // build the arithmetic templates
+    static {
+        ARITHMETIC_TEMPLATES[Opcode.ADD.ordinal()] = new AsmTemplate("// add\n" +
+                "@SP\n" +
                 "AM = M - 1\n" +
                 "D = M\n" +
-                "A = A - 1\n" +
-                "M = M - D\n");
-        arithmeticMapper.put("neg", "@SP\n" +
-                "A = M - 1\n" +
-                "M = -M\n");
-        arithmeticMapper.put("eq", "@SP\n" +
+                "A = A -1\n" +
+                "M = M + D\n\n");
+        ARITHMETIC_TEMPLATES[Opcode.SUB.ordinal()] = new AsmTemplate("// sub\n" +
+                "@SP\n" +
                 "AM = M - 1\n" +
                 "D = M\n" +
                 "A = A - 1\n" +
-                "D = M - D\n" +
-                "@TRUE_1\n" +
-                "D;JEQ\n" +
+                "M = M - D\n\n");
+        ARITHMETIC_TEMPLATES[Opcode.NEG.ordinal()] = new AsmTemplate("// neg\n" +
                 "@SP\n" +
                 "A = M - 1\n" +
-                "M = 0\n" +
-                "@CONTINUE_1\n" +
-                "0;JMP\n" +
-                "(TRUE_1)\n" +
+                "M = -M\n\n");
+        ARITHMETIC_TEMPLATES[Opcode.EQ.ordinal()] = comparisonTemplate("eq", "JEQ");
+        ARITHMETIC_TEMPLATES[Opcode.GT.ordinal()] = comparisonTemplate("gt", "JGT");
+        ARITHMETIC_TEMPLATES[Opcode.LT.ordinal()] = comparisonTemplate("lt", "JLT");
+        ARITHMETIC_TEMPLATES[Opcode.AND.ordinal()] = new AsmTemplate("// and\n" +
                 "@SP\n" +
-                "A = M - 1\n" +
-                "M = -1\n" +
-                "(CONTINUE_1)\n");
-        arithmeticMapper.put("gt", "@SP\n" +
                 "AM = M - 1\n" +
                 "D = M\n" +
                 "A = A - 1\n" +
-                "D = M - D\n" +
-                "@TRUE_1\n" +
-                "D;JGT\n" +
+                "M = M&D\n\n");
+        ARITHMETIC_TEMPLATES[Opcode.OR.ordinal()] = new AsmTemplate("// or\n" +
+                "@SP\n" +
+                "AM = M - 1\n" +
+                "D = M\n" +
+                "A = A - 1\n" +
+                "M = M|D\n\n");
+        ARITHMETIC_TEMPLATES[Opcode.NOT.ordinal()] = new AsmTemplate("// not\n" +
                 "@SP\n" +
                 "A = M - 1\n" +
-                "M = 0\n" +
-                "@CONTINUE_1\n" +
+                "M = !M\n\n");
+    }
+
+    /** code which stores the top of the stack from D into RAM, the same as a push of D **/
+    private static final String SPILL_TOP = "@SP // spill D\n" +
+            "AM = M + 1\n" +
+            "A = A - 1\n" +
+            "M = D\n";
+
+    /** code which loads the top of the stack from RAM into D, the same as a pop into D **/
+    private static final String FILL_TOP = "@SP // fill D\n" +
+            "AM = M - 1\n" +
+            "D = M\n";
+
+    /**
+     * precompiled code for each arithmetic command with the top of the stack in D,
+     * indexed by opcode ordinal. The result is left in D as well
+     **/
+    private static final AsmTemplate[] TOP_IN_D_TEMPLATES = new AsmTemplate[Opcode.NOT.ordinal() + 1];
+
+    // build the templates for --tos, y is in D and x is the top of the stack in RAM
+    static {
+        TOP_IN_D_TEMPLATES[Opcode.ADD.ordinal()] = binaryInDTemplate("add", "D = M + D");
+        TOP_IN_D_TEMPLATES[Opcode.SUB.ordinal()] = binaryInDTemplate("sub", "D = M - D");
+        TOP_IN_D_TEMPLATES[Opcode.AND.ordinal()] = binaryInDTemplate("and", "D = M&D");
+        TOP_IN_D_TEMPLATES[Opcode.OR.ordinal()] = binaryInDTemplate("or", "D = M|D");
+        TOP_IN_D_TEMPLATES[Opcode.NEG.ordinal()] = new AsmTemplate("// neg\nD = -D\n\n");
+        TOP_IN_D_TEMPLATES[Opcode.NOT.ordinal()] = new AsmTemplate("// not\nD = !D\n\n");
+        TOP_IN_D_TEMPLATES[Opcode.EQ.ordinal()] = comparisonInDTemplate("eq", "JEQ");
+        TOP_IN_D_TEMPLATES[Opcode.GT.ordinal()] = comparisonInDTemplate("gt", "JGT");
+        TOP_IN_D_TEMPLATES[Opcode.LT.ordinal()] = comparisonInDTemplate("lt", "JLT");
+    }
+
+    /**
+     * Builds the --tos template for a binary command, which pops x into the ALU
+     * and leaves the result in D.
+     * @param command the command (add, sub, and or or)
+     * @param compute the instruction computing D from x in M and y in D
+     * @return the compiled template
+     */
+    private static AsmTemplate binaryInDTemplate(String command, String compute) {
+        return new AsmTemplate("// " + command + "\n" +
+                "@SP\n" +
+                "AM = M - 1\n" +
+                compute + "\n\n");
+    }
+
+    /**
+     * Builds the --tos template for a comparison command, the result is left in D.
+     * @param command the comparison command (gt, lt or eq)
+     * @param jump the jump which is taken when the comparison is true
+     * @return the compiled template
+     */
+    private static AsmTemplate comparisonInDTemplate(String command, String jump) {
+        return new AsmTemplate("// " + command + "\n" +
+                "@SP\n" +
+                "AM = M - 1\n" +
+                "D = M - D\n" +
+                "@{TRUE}\n" +
+                "D;" + jump + "\n" +
+                "D = 0\n" +
+                "@{CONTINUE}\n" +
                 "0;JMP\n" +
-                "(TRUE_1)\n" +
+                "({TRUE})\n" +
+                "D = -1\n" +
+                "({CONTINUE})\n\n");
+    }
+
+    /**
+     * Builds the template for a comparison command. The TRUE and CONTINUE slots
+     * are filled with unique labels when it is emitted.
+     * @param command the comparison command (gt, lt or eq)
+     * @param jump the jump which is taken when the comparison is true
+     * @return the compiled template
+     */
+    private static AsmTemplate comparisonTemplate(String command, String jump) {
+        return new AsmTemplate("// " + command + "\n" +
                 "@SP\n" +
-                "A = M - 1\n" +
-                "M = -1\n" +
-                "(CONTINUE_1)\n");
-        arithmeticMapper.put("lt", "@SP\n" +
                 "AM = M - 1\n" +
                 "D = M\n" +
                 "A = A - 1\n" +
                 "D = M - D\n" +
-                "@TRUE_1\n" +
-                "D;JLT\n" +
+                "@{TRUE}\n" +
+                "D;" + jump + "\n" +
                 "@SP\n" +
                 "A = M - 1\n" +
                 "M = 0\n" +
-                "@CONTINUE_1\n" +
+                "@{CONTINUE}\n" +
                 "0;JMP\n" +
-                "(TRUE_1)\n" +
+                "({TRUE})\n" +
                 "@SP\n" +
                 "A = M - 1\n" +
                 "M = -1\n" +
-                "(CONTINUE_1)\n");
-        arithmeticMapper.put("and", "@SP\n" +
-                "AM = M - 1\n" +
-                "D = M\n" +
-                "A = A - 1\n" +
-                "M = M&D\n");
-        arithmeticMapper.put("or", "@SP\n" +
+                "({CONTINUE})\n\n");
+    }
+
+    /**
+     * Opens the output file stream and gets ready to write to it.
+     * @param fileName the name of the desired output file as a string
+     */
+    public CodeWriter(String fileName) {
+        this(fileName, new TranslatorOptions());
+    }
+
+    /**
+     * Opens the output file stream and gets ready to write to it.
+     * @param fileName the name of the desired output file as a string
+     * @param options the options the translator was started with
+     */
+    public CodeWriter(String fileName, TranslatorOptions options) {
+        this(new ChannelSink(fileName, options.getOutputBufferSize(), options.isMemoryMapped()), options);
+    }
+
+    /**
+     * Gets ready to write to the given output sink. Used with a MemorySink to
+     * translate a single file into an in-memory fragment.
+     * @param sink where the hack assembly code will be written
+     * @param options the options the translator was started with
+     */
+    public CodeWriter(OutputSink sink, TranslatorOptions options) {
+        this.options = options;
+
+        // while measuring, every instruction is counted on its way into the sink
+        if (options.isCollectingMetrics()) {
+            counter = new InstructionCounter(sink);
+            sink = counter;
+        }
+        this.sink = sink;
+
+        // the peephole optimizer sits between the code we write and the sink
+        if (options.isPeephole()) {
+            peephole = new PeepholeOptimizer(sink);
+            out = peephole;
+        } else {
+            out = sink;
+        }
+
+        // the kinds of command are measured before the peephole optimizer
+        if (counter != null && peephole != null) {
+            generated = new InstructionCounter(peephole);
+            out = generated;
+        } else {
+            generated = counter;
+        }
+
+        // get the name of the file without the extension. T
+        StringTokenizer st = new StringTokenizer(VMTranslator.DIRECTORY_NAME);
+        String name = st.nextToken("/");
+        while (st.hasMoreTokens()) {
+            name = st.nextToken("/");
+        }
+
+        // labels are numbered per CodeWriter
+        labelNum = 1;
+
+        // function name
+        setFunctionName("");
+
+        // the bootstrap code is not part of any file
+        fileBaseName = "Bootstrap";
+        labelPrefix = fileBaseName + "$";
+    }
+
+    /**
+     * Writes the assembly code for every command of a program, in order.
+     * @param program the commands of a single .vm file
+     * @throws VMTranslatorException if a label is defined twice or never defined
+     */
+    public void writeProgram(VMProgram program) throws VMTranslatorException {
+        writeCommands(program, program.size());
+        finishProgram(program);
+    }
+
+    /**
+     * Writes the commands of a program which are not written yet, up to the given
+     * one. A program which is still being read can be written a part at a time this
+     * way, as long as LOOKAHEAD more commands are read than written, or the whole
+     * program is read. See TranslationPipeline.
+     * @param program the commands of a single .vm file, read so far
+     * @param end one past the last command to write
+     * @throws VMTranslatorException if a label is defined twice or never defined
+     */
+    public void writeCommands(VMProgram program, int end) throws VMTranslatorException {
+        for (int i = nextCommand; i < end; i++) {
+            Opcode opcode = program.opcode(i);
+
+            // measure where the function starts and what the command before took
+            if (metrics != null) {
+                if (opcode == Opcode.FUNCTION) {
+                    startFunctionMetrics(program.symbolName(i), i);
+                }
+                chargeInstructions(opcode);
+            }
+
+            // the labels are checked as they go by, a function ends where the next starts
+            if (opcode.commandType == CommandType.C_LABEL) {
+                defineLabel(program, i);
+            } else if (opcode.commandType == CommandType.C_GOTO || opcode.commandType == CommandType.C_IF) {
+                jumpTo(program.symbol(i));
+            } else if (opcode == Opcode.FUNCTION) {
+                checkLabels(program);
+            }
+
+            // a call and the return after it can be one jump, see writeTailCall
+            boolean tailCall = opcode == Opcode.CALL && options.isTailCalls() && isTailCall(program, i);
+
+            // tell the profiler which function and command the code below belongs to,
+            // a tail call is a kind of its own since it does not make a new frame
+            if (options.isProfile()) {
+                String owner = (opcode == Opcode.FUNCTION) ? program.symbolName(i)
+                        : functionName.isEmpty() ? fileBaseName : functionName;
+                writeSourceMarker(owner, (tailCall ? "tail-" : "") + program.commandText(i));
+            }
+
+            // the not and if-goto of a fused branch were written with their compare
+            if (i <= fusedUntil) {
+                continue;
+            }
+
+            // call f n; return reuses the frame of the function instead of building one
+            if (tailCall) {
+                writeTailCall(program.symbolName(i), program.operand(i));
+                fusedUntil = i + 1;
+                continue;
+            }
+
+            // compare; if-goto and compare; not; if-goto jump on the compare itself
+            int branch = options.isFuseBranches() ? fusedBranchEnd(program, i) : -1;
+            if (branch != -1) {
+                writeCompareIfGoTo(opcode, branch == i + 2, program.getSymbols().bytes(program.symbol(branch)));
+                fusedUntil = branch;
+                continue;
+            }
+
+            // write the code
+            writeCommand(program, i);
+        }
+        nextCommand = Math.max(nextCommand, end);
+    }
+
+    /**
+     * Finishes a program once all of its commands are written.
+     * @param program the commands of a single .vm file
+     * @throws VMTranslatorException if the last function jumps to a label it never defines
+     */
+    public void finishProgram(VMProgram program) throws VMTranslatorException {
+        nextCommand = 0;
+        fusedUntil = -1;
+
+        // the last function ends with the file
+        checkLabels(program);
+
+        // the next file starts with the whole stack in RAM
+        spillTop();
+
+        if (metrics != null) {
+            if (peephole != null) {
+                peephole.flush();
+            }
+            chargeInstructions(null);
+            metrics.endFunction(program.size(), counter.getCount());
+        }
+    }
+
+    /**
+     * Helper method for writing the code of one command.
+     * @param program the commands of the file
+     * @param i the index of the command
+     */
+    private void writeCommand(VMProgram program, int i) {
+        switch (program.opcode(i).commandType) {
+            case C_ARITHMETIC:
+                writeArithmetic(program.opcode(i));
+                break;
+            case C_PUSH:
+            case C_POP:
+                writePushPop(program.opcode(i).commandType, program.segment(i), program.operand(i));
+                break;
+            case C_LABEL:
+                writeLabel(program.getSymbols().bytes(program.symbol(i)));
+                break;
+            case C_GOTO:
+                writeGoTo(program.getSymbols().bytes(program.symbol(i)));
+                break;
+            case C_IF:
+                writeIfGoTo(program.getSymbols().bytes(program.symbol(i)));
+                break;
+            case C_FUNCTION:
+                writeFunction(program.symbolName(i), program.operand(i));
+                break;
+            case C_CALL:
+                writeCall(program.symbolName(i), program.operand(i));
+                break;
+            case C_RETURN:
+                writeReturn();
+                break;
+        }
+    }
+
+    /**
+     * Helper method for remembering where a label is defined.
+     * @param program the commands of the file
+     * @param i the index of the label command
+     * @throws VMTranslatorException if the function already defined the label
+     */
+    private void defineLabel(VMProgram program, int i) throws VMTranslatorException {
+        int id = program.symbol(i);
+        if (id >= labelDefinedIn.length) {
+            labelDefinedIn = Arrays.copyOf(labelDefinedIn, Math.max(id + 1, labelDefinedIn.length * 2));
+        }
+        if (labelDefinedIn[id] == labelScope) {
+            throw new VMTranslatorException("[DUPLICATE LABEL]: label " + program.symbolName(i)
+                    + " is defined twice in " + scopeName(program));
+        }
+        labelDefinedIn[id] = labelScope;
+    }
+
+    /**
+     * Helper method for remembering a label which is jumped to, it is checked once
+     * the function is done since the label may come further down.
+     * @param id the symbol id of the label
+     */
+    private void jumpTo(int id) {
+        if (jumpCount == labelsJumpedTo.length) {
+            labelsJumpedTo = Arrays.copyOf(labelsJumpedTo, jumpCount * 2);
+        }
+        labelsJumpedTo[jumpCount++] = id;
+    }
+
+    /**
+     * Helper method for checking that every label the function jumps to is defined
+     * in it, and starting on the labels of the next function.
+     * @param program the commands of the file
+     * @throws VMTranslatorException if the function jumps to a label it never defines
+     */
+    private void checkLabels(VMProgram program) throws VMTranslatorException {
+        for (int j = 0; j < jumpCount; j++) {
+            int id = labelsJumpedTo[j];
+            if (id >= labelDefinedIn.length || labelDefinedIn[id] != labelScope) {
+                throw new VMTranslatorException("[UNDEFINED LABEL]: " + scopeName(program) + " jumps to "
+                        + program.getSymbols().name(id) + " but never defines it");
+            }
+        }
+        jumpCount = 0;
+        labelScope++;
+    }
+
+    /**
+     * Helper method for naming the function being written in an error.
+     * @param program the commands of the file
+     * @return the function, or the file for commands outside of any function
+     */
+    private String scopeName(VMProgram program) {
+        return functionName.isEmpty() ? program.getFileName() : functionName;
+    }
+
+    /**
+     * Mutator method for the function being written, its labels are scoped to it.
+     * @param name the name of the function, empty outside of any function
+     */
+    private void setFunctionName(String name) {
+        functionName = name;
+        functionPrefix = (name + "$").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Helper method for appending a label of the function being written, the way
+     * the assembler sees it: function$label.
+     * @param labelName the label in ASCII
+     * @return the sink so calls can be chained
+     */
+    private OutputSink appendLabel(byte[] labelName) {
+        return out.append(functionPrefix, 0, functionPrefix.length).append(labelName, 0, labelName.length);
+    }
+
+    /**
+     * Helper method for appending the symbol of a static of the file being written,
+     * File.index. The names are made once per file and index.
+     * @param index the index into the static segment
+     * @return the sink so calls can be chained
+     */
+    private OutputSink appendStatic(int index) {
+        // an inlined body swaps in the name of its own file
+        if (!fileBaseName.equals(staticOwner)) {
+            Arrays.fill(staticNames, null);
+            staticOwner = fileBaseName;
+        }
+        if (index >= staticNames.length) {
+            staticNames = Arrays.copyOf(staticNames, Math.max(index + 1, staticNames.length * 2));
+        }
+        byte[] name = staticNames[index];
+        if (name == null) {
+            name = (fileBaseName + "." + index).getBytes(StandardCharsets.US_ASCII);
+            staticNames[index] = name;
+        }
+        return out.append(name, 0, name.length);
+    }
+
+    /**
+     * Helper method for checking if a call can be written as a tail call: a return
+     * comes right after it, it is made from inside a function and it is not inlined.
+     * @param program the commands of the file
+     * @param i the index of the call
+     * @return true if the call can reuse the frame of the function making it
+     */
+    private boolean isTailCall(VMProgram program, int i) {
+        return i + 1 < program.size() && program.opcode(i + 1) == Opcode.RETURN && !functionName.isEmpty()
+                && inlinedBody(program.symbolName(i), program.operand(i)) == null;
+    }
+
+    /**
+     * Helper method for finding a compare followed by an if-goto, with or without a
+     * not in between, which can be written as one conditional jump.
+     * @param program the commands of the file
+     * @param i the index of the command which might be the compare
+     * @return the index of the if-goto, -1 if the commands are no fusable branch
+     */
+    private static int fusedBranchEnd(VMProgram program, int i) {
+        Opcode opcode = program.opcode(i);
+        if (opcode != Opcode.EQ && opcode != Opcode.GT && opcode != Opcode.LT) {
+            return -1;
+        }
+        int next = i + 1;
+        if (next < program.size() && program.opcode(next) == Opcode.NOT) {
+            next++;
+        }
+        return (next < program.size() && program.opcode(next) == Opcode.IF_GOTO) ? next : -1;
+    }
+
+    /**
+     * Writes a compare and the if-goto after it as a single subtract and conditional
+     * jump, no boolean is ever put on the stack. Both operands are popped, a not
+     * between the two commands turns the jump around.
+     * @param compare the comparison (eq, gt or lt)
+     * @param negated true if there was a not between the compare and the if-goto
+     * @param labelName the label of the if-goto
+     */
+    public void writeCompareIfGoTo(Opcode compare, boolean negated, String labelName) {
+        writeCompareIfGoTo(compare, negated, labelName.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Writes a compare and the if-goto after it, with the label already in ASCII.
+     * @param compare the comparison (eq, gt or lt)
+     * @param negated true if there was a not between the compare and the if-goto
+     * @param labelName the label of the if-goto in ASCII
+     */
+    private void writeCompareIfGoTo(Opcode compare, boolean negated, byte[] labelName) {
+        String jump;
+        if (compare == Opcode.EQ) {
+            jump = negated ? "JNE" : "JEQ";
+        } else if (compare == Opcode.GT) {
+            jump = negated ? "JLE" : "JGT";
+        } else {
+            jump = negated ? "JGE" : "JLT";
+        }
+
+        out.append("// ").append(compare.keyword).append(negated ? " not" : "").append(" if-goto\n");
+        if (topInD) {
+            // with --tos y is already in D
+            topInD = false;
+            topsKept++;
+        } else {
+            out.append(FILL_TOP);
+        }
+        out.append("@SP\n" +
                 "AM = M - 1\n" +
-                "D = M\n" +
-                "A = A - 1\n" +
-                "M = M|D\n");
-        arithmeticMapper.put("not", "@SP\n" +
-                "A = M - 1\n" +
-                "M = !M\n");
+                "D = M - D\n" +
+                "@");
+        appendLabel(labelName).append("\nD;").append(jump).append("\n\n");
+        branchesFused++;
+    }
+
+    /**
+     * Helper method for charging the instructions written since the last command
+     * started to the kind of that command. They are counted before the peephole
+     * optimizer, which works across commands, so what it removed is not charged
+     * to any kind (see FileMetrics).
+     * @param next the kind of the command about to be written, null at the end
+     */
+    private void chargeInstructions(Opcode next) {
+        if (chargedOpcode != null) {
+            metrics.addInstructions(chargedOpcode, generated.getCount() - chargedFrom);
+        }
+        chargedOpcode = next;
+        chargedFrom = generated.getCount();
+    }
+
+    /**
+     * Helper method for measuring where a function starts. The peephole optimizer
+     * holds back a few lines, they are flushed first so they count for the function
+     * before. The function label would flush them anyway, so the code is the same.
+     * @param name the name of the function
+     * @param command the index of the function command in the program
+     */
+    private void startFunctionMetrics(String name, int command) {
+        if (peephole != null) {
+            peephole.flush();
+        }
+        metrics.startFunction(name, command, counter.getCount());
+    }
+
+    /**
+     * Writes a source map marker, a comment line HackAssembler turns into the source
+     * map the HackProfiler charges cycles to. Every instruction up to the next marker
+     * belongs to this function and command.
+     * @param owner the function, or the file for commands outside of any function
+     * @param command the VM command, its first word is the kind of command
+     */
+    private void writeSourceMarker(String owner, String command) {
+        out.append(HackAssembler.SOURCE_MARKER).append(owner).append(' ').append(command).append('\n');
+    }
+
+    /**
+     * Mutator method for the metrics of the file being written.
+     * @param metrics where the bytes and instructions of each function are recorded
+     */
+    public void setMetrics(FileMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Mutator method for the inlined functions, calls to them are replaced by their body.
+     * @param inliner the pass which found the functions to inline
+     */
+    public void setInliner(FunctionInliner inliner) {
+        this.inliner = inliner;
     }
 
     /**
@@ -249,61 +777,153 @@ public class CodeWriter {
      * @param command the given input command as a string
      */
     public void writeArithmetic(String command) {
-        if (arithmeticMapper.containsKey(command)) {
-            String code = "// " + command + "\n";
-            code = code + arithmeticMapper.get(command) + "\n";
-
-            outputFile.write(code);
-            outputFile.flush();
+        Opcode opcode = Opcode.fromKeyword(command);
+        if (opcode != null && opcode.commandType == CommandType.C_ARITHMETIC) {
+            writeArithmetic(opcode);
         } else {
             // do nothing
         }
     }
 
+    /**
+     * Writes to the output file the assembly code that implements the given arithmetic opcode.
+     * Comparisons get a new label number so their labels are unique.
+     * @param opcode the arithmetic opcode
+     */
+    public void writeArithmetic(Opcode opcode) {
+        AsmTemplate template = ARITHMETIC_TEMPLATES[opcode.ordinal()];
+        if (opcode == Opcode.EQ || opcode == Opcode.GT || opcode == Opcode.LT) {
+            labelNum++;
+        }
+
+        // with --tos the operand on top comes from D and the result stays there,
+        // neg and not work in RAM like before if the top is not in D already
+        if (options.isTopOfStackInD()) {
+            boolean unary = opcode == Opcode.NEG || opcode == Opcode.NOT;
+            if (topInD) {
+                topsKept++;
+            } else if (!unary) {
+                out.append(FILL_TOP);
+                topInD = true;
+            }
+            if (topInD) {
+                template = TOP_IN_D_TEMPLATES[opcode.ordinal()];
+            }
+        }
+        template.emit(out, labelPrefix, labelNum);
+    }
+
+    /**
+     * Helper method for storing the top of the stack from D back into RAM, so the
+     * whole stack is in RAM again. Done before labels, jumps, calls and returns,
+     * which expect it there. Nothing is written if the top is not in D.
+     */
+    private void spillTop() {
+        if (topInD) {
+            out.append(SPILL_TOP);
+            topInD = false;
+            topsSpilled++;
+        }
+    }
+
+    /**
+     * Adds what the --tos and --fuse modes did to the report.
+     * @param report the report of the run
+     */
+    public void addTo(TranslationReport report) {
+        if (options.isTopOfStackInD()) {
+            report.add("TOS values used straight from D (stack store and reload skipped)", topsKept);
+            report.add("TOS values spilled from D to the stack", topsSpilled);
+        }
+        if (options.isFuseBranches()) {
+            report.add("FUSE compare and if-goto written as one jump", branchesFused);
+        }
+        if (options.isTailCalls()) {
+            report.add("TAIL calls reusing the frame of the caller (call and return written as one jump)", tailCalls);
+        }
+        if (options.isDirectAddressing()) {
+            report.add("DIRECT pushes and pops addressed at compile time", directAccesses);
+        }
+    }
+
     /**
      * Sets the fileName instance variable to the given name.
      * @param name The name of the file as the string.
      */
     public void setFileName(String name) {
         fileName = name;
+        fileBaseName = name.substring(0, name.indexOf('.'));
+        labelPrefix = fileBaseName + "$";
     }
 
     /**
-     * Helper method for building and returning a 'continue' label which is unique.
-     * @return (CONTINUE_#) where '#' is a unique label id
+     * Writes an already translated fragment of assembly code as-is.
+     * @param fragment the assembly code of a single translated file
      */
-    public String getContinueLabel() {
-        return "(CONTINUE_" + labelNum + ")\n";
+    public void writeFragment(MemorySink fragment) {
+        // the fragment was optimized when it was translated
+        if (peephole != null) {
+            peephole.flush();
+        }
+        fragment.writeTo(sink);
     }
 
     /**
-     * Helper method for building and returning a 'true' label which is unique.
-     * @return (TRUE_#) where '#' is a unique label id
+     * Writes to the output file the assembly code that implements the given command where
+     * the given command is either C_PUSH or C_POP.
+     * @param commandType the command type as the enumerated data type 'CommandType'
      */
-    public String getTrueLabel() {
-        return "(TRUE_" + labelNum + ")\n";
+    public void writePushPop(CommandType commandType, String segment, int index) {
+        writePushPop(commandType, Segment.fromKeyword(segment), index);
     }
 
     /**
      * Writes to the output file the assembly code that implements the given command where
      * the given command is either C_PUSH or C_POP.
      * @param commandType the command type as the enumerated data type 'CommandType'
+     * @param segment the memory segment
+     * @param index the index into the segment
      */
-    public void writePushPop(CommandType commandType, String segment, int index) {
-        String code = "// " + commandType  + " " + segment + " " + index + "\n";
+    public void writePushPop(CommandType commandType, Segment segment, int index) {
+        out.append("// ").append(commandType.name()).append(' ').append(segment.keyword).append(' ')
+                .append(index).append('\n');
+
+        // with --tos a push only loads D, the value it held goes to RAM first
+        if (options.isTopOfStackInD()) {
+            if (commandType == CommandType.C_PUSH) {
+                spillTop();
+                writeLoadD(segment, index);
+                topInD = true;
+                out.append('\n');
+                return;
+            } else if (topInD) {
+                writeStoreD(segment, index);
+                topInD = false;
+                topsKept++;
+                out.append('\n');
+                return;
+            }
+            // a pop with the top in RAM is the same as without --tos
+        }
+
+        // with --direct the address is not computed at run time where it is known
+        if (options.isDirectAddressing() && writeDirectPushPop(commandType, segment, index)) {
+            out.append('\n');
+            return;
+        }
 
         // if we're dealing with local, argument, this, or that
-        if (segment.equals("local") ||
-            segment.equals("argument") ||
-            segment.equals("this") ||
-            segment.equals("that")) {
+        if (segment == Segment.LOCAL ||
+            segment == Segment.ARGUMENT ||
+            segment == Segment.THIS ||
+            segment == Segment.THAT) {
 
             // pushing and popping to these 4 segments use the same code for
             // addr = LCL + arg2
             if (commandType == CommandType.C_PUSH) {
-                code = code + "@" + index + "\n" +
+                out.append('@').append(index).append("\n" +
                         "D = A\n" +
-                        "@" + getSymbolFromWord(segment) + "\n" +
+                        "@").append(segment.symbol).append("\n" +
                         "A = M + D\n" +
                         "D = M\n" +
                         "\n" +
@@ -311,13 +931,11 @@ public class CodeWriter {
                         "A = M\n" +
                         "M = D\n" +
                         "@SP\n" +
-                        "M = M + 1\n";
-
-                        valuableLinesWritten += 10;
+                        "M = M + 1\n");
             } else {
-                code = code + "@" + index + "\n" +
+                out.append('@').append(index).append("\n" +
                         "D = A\n" +
-                        "@" + getSymbolFromWord(segment) + "\n" +
+                        "@").append(segment.symbol).append("\n" +
                         "A = M + D\n" +
                         "D = A\n" +
                         "@addr\n" +
@@ -327,50 +945,55 @@ public class CodeWriter {
                         "D = M\n" +
                         "@addr\n" +
                         "A = M\n" +
-                        "M = D\n";
-
-                        valuableLinesWritten += 13;
+                        "M = D\n");
             }
         // handling the constant segment
-        } else if (segment.equals("constant")) {
-            // we can only push these constants
-            code = code + "@" + index + "\n" +
-                    "D = A\n" +
-                    "@SP\n" +
+        } else if (segment == Segment.CONSTANT) {
+            // we can only push these constants. Only folded constants are negative,
+            // an A instruction cannot hold those so D is computed from -index
+            if (index >= 0) {
+                out.append('@').append(index).append("\n" +
+                        "D = A\n");
+            } else if (index == -1) {
+                out.append("D = -1\n");
+            } else if (index > -32768) {
+                out.append('@').append(-index).append("\n" +
+                        "D = -A\n");
+            } else {
+                out.append("@32767\n" +
+                        "D = -A\n" +
+                        "D = D - 1\n");
+            }
+            out.append("@SP\n" +
                     "AM = M + 1\n" +
-                    "A = A - 1\n" +
-                    "M = D\n";
-
-            valuableLinesWritten += 6;
-
+                    "A = A - 1\n" +
+                    "M = D\n");
 
-            if (VMTranslator.DEBUG) System.out.println("\t\tcodeWriter - > WRITING CONSTANT CODE");
         // handling the static segment
-        } else if (segment.equals("static")) {
+        } else if (segment == Segment.STATIC) {
             switch(commandType){
                 case C_POP:
-                    code = code + "@SP\n" +
+                    out.append("@SP\n" +
                             "AM = M-1\n" +
                             "D = M\n" +
-                            "@" + fileName.substring(0, fileName.indexOf('.')) + "." + index + "\n" +
-                            "M = D\n";
-                    valuableLinesWritten += 5;
+                            "@");
+                    appendStatic(index).append("\nM = D\n");
                     break;
                 case C_PUSH:
-                    code = code + "@" + fileName.substring(0, fileName.indexOf('.')) + "." + index + "\n" +
+                    out.append('@');
+                    appendStatic(index).append("\n" +
                             "D = M\n" +
                             "@SP\n" +
                             "AM = M + 1\n" +
                             "A = A - 1\n" +
-                            "M = D\n";
-                    valuableLinesWritten += 6;
+                            "M = D\n");
                     break;
             }
         // now for the temp segment
-        } else if (segment.equals("temp")) {
+        } else if (segment == Segment.TEMP) {
 
             if (commandType == CommandType.C_PUSH) {
-                code = code + "@" + index + "\n" +
+                out.append('@').append(index).append("\n" +
                         "D = A\n" +
                         "@5\n" +
                         "A = A + D\n" +
@@ -379,10 +1002,9 @@ public class CodeWriter {
                         "A = M\n" +
                         "M = D\n" +
                         "@SP\n" +
-                        "M = M + 1\n";
-                valuableLinesWritten += 10;
+                        "M = M + 1\n");
             } else {
-                code = code + "@" + index + "\n" +
+                out.append('@').append(index).append("\n" +
                         "D = A\n" +
                         "@5\n" +
                         "D = A + D\n" +
@@ -393,108 +1015,263 @@ public class CodeWriter {
                         "D = M\n" +
                         "@addr\n" +
                         "A = M\n" +
-                        "M = D\n";
-                valuableLinesWritten += 12;
+                        "M = D\n");
             }
         // and the pointer segment
-        } else if (segment.equals("pointer")) {
+        } else if (segment == Segment.POINTER) {
 
-            String thisOrThat = (index == 0) ? getSymbolFromWord("this")
-                    : getSymbolFromWord("that");
+            String thisOrThat = (index == 0) ? Segment.THIS.symbol
+                    : Segment.THAT.symbol;
 
             if (commandType == CommandType.C_PUSH) {
-                code = code + "@" + thisOrThat + "\n" +
+                out.append('@').append(thisOrThat).append("\n" +
                         "D = M\n" +
                         "@SP\n" +
                         "AM = M + 1\n" +
                         "A = A - 1\n" +
-                        "M = D\n";
-                valuableLinesWritten += 6;
+                        "M = D\n");
             } else if (commandType == CommandType.C_POP) {
-                code = code + "@SP\n" +
+                out.append("@SP\n" +
                         "AM = M - 1\n" +
                         "D = M\n" +
-                        "@" + thisOrThat + "\n" +
-                        "M = D\n";
-                valuableLinesWritten += 5;
+                        "@").append(thisOrThat).append("\n" +
+                        "M = D\n");
             } else {
                 // well then why am I in this method?
             }
         }
 
         // add a space between each vm command for readability and debugging help
-        code = code + "\n";
-
-        // write and flush
-        outputFile.write(code);
-        outputFile.flush();
+        out.append('\n');
     }
 
     /**
-     * Writes an infinite loop at the end of the output file.
+     * Helper method for the --direct push and pop of local, argument, this, that and
+     * temp. The address of temp i is 5 + i, small indices of the other four are
+     * reached from the base with increments and a pop to any other index adds the
+     * value to the address, so the two can be told apart again without a RAM variable.
+     * @param commandType C_PUSH or C_POP
+     * @param segment the memory segment
+     * @param index the index into the segment
+     * @return false if the segment is one the usual code already addresses directly
      */
-    public void writeEnding() {
+    private boolean writeDirectPushPop(CommandType commandType, Segment segment, int index) {
+        boolean framed = segment == Segment.LOCAL || segment == Segment.ARGUMENT
+                || segment == Segment.THIS || segment == Segment.THAT;
+        if (!framed && segment != Segment.TEMP) {
+            return false;
+        }
 
-        String code = "(END)\n" +
-                "@END\n" +
-                "0;JMP\n";
+        if (commandType == CommandType.C_PUSH) {
+            if (isDirect(segment, index)) {
+                writeDirectAddress(segment, index);
+                out.append("D = M\n");
+            } else {
+                out.append('@').append(index).append("\n" +
+                        "D = A\n" +
+                        "@").append(segment.symbol).append("\n" +
+                        "A = M + D\n" +
+                        "D = M\n");
+            }
+            out.append(PUSH_D);
+        } else if (isDirect(segment, index)) {
+            out.append("@SP\n" +
+                    "AM = M - 1\n" +
+                    "D = M\n");
+            writeDirectAddress(segment, index);
+            out.append("M = D\n");
+        } else {
+            // D = address + value, then A = D - value and M = D - address
+            out.append('@').append(segment.symbol).append("\n" +
+                    "D = M\n" +
+                    "@").append(index).append("\n" +
+                    "D = D + A\n" +
+                    "@SP\n" +
+                    "AM = M - 1\n" +
+                    "D = D + M\n" +
+                    "A = D - M\n" +
+                    "M = D - A\n");
+        }
+        return true;
+    }
 
-        valuableLinesWritten += 2;
-        // write and flush
-        outputFile.write(code);
-        outputFile.flush();
+    /**
+     * Helper method for checking if --direct can put the address of a segment
+     * index in A without touching D.
+     * @param segment the memory segment
+     * @param index the index into the segment
+     * @return true for temp and for small indices of local, argument, this and that
+     */
+    private boolean isDirect(Segment segment, int index) {
+        if (!options.isDirectAddressing()) {
+            return false;
+        }
+        return segment == Segment.TEMP || ((segment == Segment.LOCAL || segment == Segment.ARGUMENT
+                || segment == Segment.THIS || segment == Segment.THAT) && index <= SEGMENT_CHAIN_LIMIT);
     }
 
     /**
-     * Gets the assembly symbol from segment type. ex.. local = LCL
-     * @param segment the given segment type as a String
-     * @return the assembly symbol corresponding to the memory segment
+     * Helper method for putting the address of a segment index in A, see isDirect().
+     * @param segment the memory segment
+     * @param index the index into the segment
      */
-    private String getSymbolFromWord(String segment) {
+    private void writeDirectAddress(Segment segment, int index) {
+        directAccesses++;
+        if (segment == Segment.TEMP) {
+            // the number, not R5..R15, which runs out at temp 10 and turns temp 11 into a variable
+            out.append('@').append(5 + index).append('\n');
+            return;
+        }
+        out.append('@').append(segment.symbol).append('\n');
+        if (index == 0) {
+            out.append("A = M\n");
+            return;
+        }
+        out.append("A = M + 1\n");
+        for (int i = 1; i < index; i++) {
+            out.append("A = A + 1\n");
+        }
+    }
 
-        String returnThis = "";
+    /**
+     * Helper method for the --tos push, which loads the value into D and nothing else.
+     * @param segment the memory segment
+     * @param index the index into the segment
+     */
+    private void writeLoadD(Segment segment, int index) {
+        if (isDirect(segment, index)) {
+            writeDirectAddress(segment, index);
+            out.append("D = M\n");
+        } else if (segment == Segment.LOCAL || segment == Segment.ARGUMENT
+                || segment == Segment.THIS || segment == Segment.THAT) {
+            out.append('@').append(index).append("\n" +
+                    "D = A\n" +
+                    "@").append(segment.symbol).append("\n" +
+                    "A = M + D\n" +
+                    "D = M\n");
+        } else if (segment == Segment.CONSTANT) {
+            // negative constants only come from folding, see writePushPop
+            if (index >= 0) {
+                out.append('@').append(index).append("\nD = A\n");
+            } else if (index == -1) {
+                out.append("D = -1\n");
+            } else if (index > -32768) {
+                out.append('@').append(-index).append("\nD = -A\n");
+            } else {
+                out.append("@32767\nD = -A\nD = D - 1\n");
+            }
+        } else if (segment == Segment.STATIC) {
+            out.append('@');
+            appendStatic(index).append("\nD = M\n");
+        } else if (segment == Segment.TEMP) {
+            out.append('@').append(index).append("\n" +
+                    "D = A\n" +
+                    "@5\n" +
+                    "A = A + D\n" +
+                    "D = M\n");
+        } else if (segment == Segment.POINTER) {
+            out.append('@').append(index == 0 ? Segment.THIS.symbol : Segment.THAT.symbol).append("\nD = M\n");
+        }
+    }
 
-        switch(segment) {
-            case "local":
-                returnThis = "LCL";
-                break;
-            case "argument":
-                returnThis = "ARG";
-                break;
-            case "this":
-                returnThis = "THIS";
-                break;
-            case "that":
-                returnThis = "THAT";
-                break;
-            default:
-                //throw new SyntaxException();
+    /**
+     * Helper method for the --tos pop with the value already in D. Where the
+     * address has to be computed the value waits in R13 and the address in R14.
+     * @param segment the memory segment
+     * @param index the index into the segment
+     */
+    private void writeStoreD(Segment segment, int index) {
+        if (isDirect(segment, index)) {
+            writeDirectAddress(segment, index);
+            out.append("M = D\n");
+        } else if (segment == Segment.STATIC) {
+            out.append('@');
+            appendStatic(index).append("\nM = D\n");
+        } else if (segment == Segment.POINTER) {
+            out.append('@').append(index == 0 ? Segment.THIS.symbol : Segment.THAT.symbol).append("\nM = D\n");
+        } else {
+            // local, argument, this, that and temp
+            out.append("@R13\n" +
+                    "M = D\n" +
+                    "@").append(index).append("\n" +
+                    "D = A\n");
+            if (segment == Segment.TEMP) {
+                out.append("@5\nD = A + D\n");
+            } else {
+                out.append('@').append(segment.symbol).append("\nD = M + D\n");
+            }
+            out.append("@R14\n" +
+                    "M = D\n" +
+                    "@R13\n" +
+                    "D = M\n" +
+                    "@R14\n" +
+                    "A = M\n" +
+                    "M = D\n");
+        }
+    }
+
+    /**
+     * Writes an infinite loop at the end of the output file.
+     */
+    public void writeEnding() {
+        if (options.isProfile()) {
+            writeSourceMarker(fileBaseName, "end");
         }
-        return returnThis;
+
+        out.append("(END)\n" +
+                "@END\n" +
+                "0;JMP\n");
     }
 
     /**
      * Closes the output file.
      */
-    public void close() { outputFile.close(); }
+    public void close() { out.close(); }
+
+    /**
+     * Accessor method for the number of hack instructions written so far. Code still
+     * held back by the peephole optimizer is only counted once it is passed on.
+     * Instructions are only counted while metrics are collected.
+     * @return the instruction count, 0 if metrics are not collected
+     */
+    public int getInstructionsWritten() {
+        return (counter == null) ? 0 : counter.getCount();
+    }
+
+    /**
+     * Accessor method for the peephole optimizer.
+     * @return the optimizer, null if it is not enabled
+     */
+    public PeepholeOptimizer getPeepholeOptimizer() {
+        return peephole;
+    }
 
     /**
      * Writes the bootstrap code into the assembly file.
      */
     public void writeInit() {
-        outputFile.write("// SET SP = 256\n@256\n" +
+        if (options.isProfile()) {
+            writeSourceMarker(fileBaseName, "bootstrap");
+        }
+        out.append("// SET SP = 256\n@256\n" +
                 "D = A\n" +
                 "@SP\n" +
                 "M = D\n\n"// SP = 256
         );
-        outputFile.flush();
-
-        // update the amount of lines written
-        valuableLinesWritten += 4;
-        if (VMTranslator.DEBUG) System.out.println("WRITE INIT: Valuable lines written: " + valuableLinesWritten);
 
         // perform "call Sys.init"
+        if (options.isProfile()) {
+            writeSourceMarker(fileBaseName, "call Sys.init 0");
+        }
         writeCall("Sys.init", 0);
+
+        // Sys.init never returns, so the shared routines can go right after the call
+        if (options.isSharedCallReturn()) {
+            writeSharedRoutines();
+        }
+        if (options.isTailCalls()) {
+            writeTailCallRoutine();
+        }
     }
 
     /**
@@ -502,9 +1279,18 @@ public class CodeWriter {
      * @param labelName
      */
     public void writeLabel(String labelName) {
-        outputFile.write("// LABEL GENERATION\n" +
-                    "(" + functionName + "$" + labelName + ")\n");
-        outputFile.flush();
+        writeLabel(labelName.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Generates a label with the name already in ASCII.
+     * @param labelName the label name in ASCII
+     */
+    private void writeLabel(byte[] labelName) {
+        // code can jump here from anywhere, it all expects the stack in RAM
+        spillTop();
+        out.append("// LABEL GENERATION\n(");
+        appendLabel(labelName).append(")\n");
     }
 
     /**
@@ -512,9 +1298,17 @@ public class CodeWriter {
      * @param labelName the label name as a string.
      */
     public void writeGoTo(String labelName) {
-        outputFile.write("// GOTO\n@" + functionName + "$" + labelName + "\n0;JMP\n\n");
-        outputFile.flush();
-        valuableLinesWritten += 2;
+        writeGoTo(labelName.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Writes a GOTO with the label name already in ASCII.
+     * @param labelName the label name in ASCII
+     */
+    private void writeGoTo(byte[] labelName) {
+        spillTop();
+        out.append("// GOTO\n@");
+        appendLabel(labelName).append("\n0;JMP\n\n");
     }
 
     /**
@@ -522,9 +1316,24 @@ public class CodeWriter {
      * @param labelName the label name as a string.
      */
     public void writeIfGoTo(String labelName) {
-        outputFile.write("// IF-GOTO\n@SP\nAM = M - 1\nD = M\n@" + functionName + "$" + labelName + "\nD;JNE\n\n");
-        outputFile.flush();
-        valuableLinesWritten += 5;
+        writeIfGoTo(labelName.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Writes an if-GOTO with the label name already in ASCII.
+     * @param labelName the label name in ASCII
+     */
+    private void writeIfGoTo(byte[] labelName) {
+        // with --tos the condition is already in D, no need to pop it
+        if (topInD) {
+            out.append("// IF-GOTO\n@");
+            appendLabel(labelName).append("\nD;JNE\n\n");
+            topInD = false;
+            topsKept++;
+            return;
+        }
+        out.append("// IF-GOTO\n@SP\nAM = M - 1\nD = M\n@");
+        appendLabel(labelName).append("\nD;JNE\n\n");
     }
 
     /**
@@ -536,25 +1345,24 @@ public class CodeWriter {
     public void writeFunction(String functionName, int nVars) {
         // declare label (f)
         // repeat nVars times: PUSH const 0
-        this.functionName = functionName;
+        setFunctionName(functionName);
+
+        // nothing falls into a function, but if it did it would expect the stack in RAM
+        spillTop();
 
-        outputFile.write("// DEFINE FUNCTION " + functionName + "\n");
-        outputFile.flush();
+        out.append("// DEFINE FUNCTION ").append(functionName).append('\n');
 
         // declare label (f)
-        outputFile.write("(" + functionName + ")\n");
-        outputFile.flush();
+        out.append('(').append(functionName).append(")\n");
 
         // repeat nVars times
         for ( int i = 1; i <= nVars; i++) {
             // PUSH 0
-            writePushPop(CommandType.C_PUSH, "constant", 0);
+            writePushPop(CommandType.C_PUSH, Segment.CONSTANT, 0);
         }
 
         // new line to seperate
-        outputFile.write("\n");
-        outputFile.flush();
-
+        out.append('\n');
     }
 
     /**
@@ -563,6 +1371,13 @@ public class CodeWriter {
      * @param nVars the number of arguments to take off the stack
      */
     public void writeCall(String functionName, int nVars) {
+        // small functions are written right here instead, see FunctionInliner
+        FunctionInliner.Body body = inlinedBody(functionName, nVars);
+        if (body != null) {
+            writeInlineCall(functionName, nVars, body);
+            return;
+        }
+
         // calling needs to accomplish the following:
         // push (return-address)
         // push LCL
@@ -574,51 +1389,49 @@ public class CodeWriter {
         // goto f
         // label (return-address)
 
-        // we're about to write 42 lines of code
-        valuableLinesWritten += 42;
+        // the return address is a unique symbolic label so the code does not
+        // depend on where it ends up in the final output file
+        labelNum++;
+        String returnAddress = labelPrefix + "RET_" + labelNum;
+
+        // the arguments have to be in RAM for the callee
+        spillTop();
 
-        System.out.println("CALL valuable lines: " + valuableLinesWritten);
+        if (options.isSharedCallReturn()) {
+            // R13 = nArgs
+            out.append("// CALL ").append(functionName).append('\n');
+            if (nVars <= 1) {
+                out.append("@R13\nM = ").append(nVars).append('\n');
+            } else {
+                out.append('@').append(nVars).append("\nD = A\n@R13\nM = D\n");
+            }
+
+            // R14 = f, D = return address, goto the shared call routine
+            out.append('@').append(functionName).append("\n" +
+                    "D = A\n" +
+                    "@R14\n" +
+                    "M = D\n" +
+                    "@").append(returnAddress).append("\n" +
+                    "D = A\n" +
+                    "@" + SHARED_CALL + "\n" +
+                    "0;JMP\n" +
+                    "(").append(returnAddress).append(")\n\n");
+            return;
+        }
 
         // push the return address onto the stack
-        outputFile.write("// CALL " + functionName + "\n@" + (valuableLinesWritten + 2) + "\n" +
+        out.append("// CALL ").append(functionName).append("\n@").append(returnAddress).append("\n" +
                 "D = A\n" +
                 "@SP\n" +
                 "AM = M + 1\n" +
                 "A = A-1\n" +
-                "M = D\n"); //TODO: FIX THIS
-
-        // now push the LCL
-        outputFile.write("@LCL // push LCL\n" +
-                "D = M\n" +
-                "@SP\n" +
-                "AM = M + 1\n" +
-                "A = A - 1\n" +
-                "M = D\n");
-
-        // now push ARG
-        outputFile.write("@ARG // push ARG\n" +
-                "D = M\n" +
-                "@SP\n" +
-                "AM = M + 1\n" +
-                "A = A - 1\n" +
                 "M = D\n");
 
-        // and THIS/THAT
-        outputFile.write("@THIS // push THIS\n" +
-                "D = M\n" +
-                "@SP\n" +
-                "AM = M + 1\n" +
-                "A = A - 1\n" +
-                "M = D\n");
-        outputFile.write("@THAT // push THAT\n" +
-                "D = M\n" +
-                "@SP\n" +
-                "AM = M + 1\n" +
-                "A = A - 1\n" +
-                "M = D\n");
+        // now push LCL, ARG, THIS and THAT
+        out.append(PUSH_FRAME);
 
         // ARG = SP - n - 5
-        outputFile.write("@" + nVars + "// ARG = SP - n - 5\n" +
+        out.append('@').append(nVars).append("// ARG = SP - n - 5\n" +
                 "D = A\n" +
                 "@SP\n" +
                 "D = M - D\n" +
@@ -628,97 +1441,506 @@ public class CodeWriter {
                 "M = D\n");
 
         // LCL = SP
-        outputFile.write("@SP // LCL = SP\n" +
+        out.append("@SP // LCL = SP\n" +
                         "D = M\n" +
                         "@LCL\n" +
                         "M = D\n" ); // point the LCL segment
 
-        outputFile.flush();
 
         // transfer control GOTO F
-        writeGoTo(functionName);
+        out.append('@').append(functionName).append(" // goto f\n0;JMP\n");
 
         // declare a label for the return address
-        writeLabel("" + valuableLinesWritten);
+        out.append('(').append(returnAddress).append(")\n\n");
 
         // end of things to do for the call
     }
 
     /**
-     * Writes the assembly language for a return command.
+     * Helper method for finding the body to write in place of a call.
+     * @param callee the function called
+     * @param nArgs the number of arguments the caller pushed
+     * @return the body of the function, null if the call is not inlined
      */
-    public void writeReturn() {
+    private FunctionInliner.Body inlinedBody(String callee, int nArgs) {
+        FunctionInliner.Body body = (inliner == null) ? null : inliner.get(callee);
+        return (body != null && nArgs >= body.getArguments()) ? body : null;
+    }
 
-        // FRAME = LCL
-        outputFile.write("// RETURN\n@LCL // FRAME = LCL\n" +
-                "D = M\n" +
-                "@FRAME\n" +
-                "M = D\n");
+    /**
+     * Writes a call followed by a return as a tail call. The callee returns straight
+     * to whoever called the function making the call, so there is no need for a frame
+     * of its own: the frame of the caller is reused, the arguments are moved down over
+     * the arguments of the caller and the callee is jumped to.
+     *
+     * The saved frame of the caller has to end up right above the new arguments. When
+     * the caller got as many arguments as it passes on, like in a recursive call, it
+     * is there already and the arguments are copied right here. Anything else jumps to
+     * the shared tail call routine, which moves the frame as well.
+     * @param functionName the function called
+     * @param nArgs the number of arguments the caller pushed
+     */
+    public void writeTailCall(String functionName, int nArgs) {
+        // the arguments have to be in RAM to be moved
+        spillTop();
 
-        // RET = *(FRAME - 5)
-        outputFile.write("@FRAME // RET = *(FRAME - 5)\n" +
+        labelNum++;
+        String moveFrame = labelPrefix + "TAIL_" + labelNum;
+
+        // the frame is in the right place if LCL = ARG + n + 5
+        out.append("// TAIL CALL ").append(functionName).append("\n" +
+                "@ARG\n" +
                 "D = M\n" +
-                "@5\n" +
-                "A = D - A\n" +
+                "@").append(nArgs + 5).append("\n" +
+                "D = D + A\n" +
+                "@LCL\n" +
+                "D = M - D\n" +
+                "@").append(moveFrame).append("\n" +
+                "D;JNE\n");
+
+        // copy the arguments from SP - n down to ARG, R13 and R14 walk up both
+        if (nArgs > 0) {
+            out.append("@SP\n" +
+                    "D = M\n" +
+                    "@").append(nArgs + 1).append("\n" +
+                    "D = D - A\n" +
+                    "@R13\n" +
+                    "M = D\n" +
+                    "@ARG\n" +
+                    "D = M - 1\n" +
+                    "@R14\n" +
+                    "M = D\n");
+            for (int i = 0; i < nArgs; i++) {
+                out.append("@R13\nAM = M + 1\nD = M\n@R14\nAM = M + 1\nM = D\n");
+            }
+        }
+
+        // SP = LCL, goto f
+        out.append("@LCL\n" +
                 "D = M\n" +
-                "@RET\n" +
-                "M = D\n");
+                "@SP\n" +
+                "M = D\n" +
+                "@").append(functionName).append("\n" +
+                "0;JMP\n");
+
+        // the frame moves as well, R13 = nArgs and R14 = f for the shared routine
+        out.append('(').append(moveFrame).append(")\n");
+        if (nArgs <= 1) {
+            out.append("@R13\nM = ").append(nArgs).append('\n');
+        } else {
+            out.append('@').append(nArgs).append("\nD = A\n@R13\nM = D\n");
+        }
+        out.append('@').append(functionName).append("\n" +
+                "D = A\n" +
+                "@R14\n" +
+                "M = D\n" +
+                "@" + TAIL_CALL + "\n" +
+                "0;JMP\n\n");
+        tailCalls++;
+    }
+
+    /**
+     * Writes the body of an inlined function in place of a call to it. There is no
+     * frame, argument and local are addressed relative to SP instead:
+     *
+     *   argument 0 .. n-1     where the caller pushed them, the return value goes to argument 0
+     *   saved THIS / THAT     only if the body pops pointer
+     *   local 0 .. nLocals-1
+     *   working stack         getDepth() values high before each command
+     *
+     * Labels of the body get a name of their own for every call site, and static
+     * belongs to the file of the function, not the caller.
+     * @param callee the name of the inlined function
+     * @param nArgs the number of arguments the caller pushed
+     * @param body the body of the function
+     */
+    private void writeInlineCall(String callee, int nArgs, FunctionInliner.Body body) {
+        spillTop();
+        labelNum++;
+
+        String callerFunction = functionName;
+        byte[] callerPrefix = functionPrefix;
+        String callerFile = fileBaseName;
+        setFunctionName(labelPrefix + "INLINE_" + labelNum + "_" + callee);
+        fileBaseName = body.getFileBaseName();
+
+        out.append("// INLINE ").append(callee).append('\n');
+        if (body.isSavingThis()) {
+            out.append("@THIS // save THIS\nD = M\n").append(PUSH_D);
+        }
+        if (body.isSavingThat()) {
+            out.append("@THAT // save THAT\nD = M\n").append(PUSH_D);
+        }
+        for (int i = 0; i < body.getLocals(); i++) {
+            out.append("@SP // local ").append(i).append(" = 0\nAM = M + 1\nA = A - 1\nM = 0\n");
+        }
+
+        // how far below SP argument 0 and local 0 are when the working stack is empty
+        int argumentBase = nArgs + body.getSavedPointers() + body.getLocals();
+        int localBase = body.getLocals();
+
+        VMProgram commands = body.getCommands();
+        boolean returnedEarly = false;
+        int fusedUntil = -1;
+        for (int i = 0; i < commands.size(); i++) {
+            if (i <= fusedUntil) {
+                continue;
+            }
+            Opcode opcode = commands.opcode(i);
+            Segment segment = commands.segment(i);
+            int depth = body.getDepth(i);
+
+            int branch = options.isFuseBranches() ? fusedBranchEnd(commands, i) : -1;
+            if (branch != -1) {
+                writeCompareIfGoTo(opcode, branch == i + 2, commands.getSymbols().bytes(commands.symbol(branch)));
+                fusedUntil = branch;
+            } else if (segment == Segment.ARGUMENT) {
+                writeInlinePushPop(opcode.commandType, segment, commands.operand(i),
+                        argumentBase + depth - commands.operand(i));
+            } else if (segment == Segment.LOCAL) {
+                writeInlinePushPop(opcode.commandType, segment, commands.operand(i),
+                        localBase + depth - commands.operand(i));
+            } else if (opcode == Opcode.RETURN) {
+                boolean last = i == commands.size() - 1;
+                writeInlineReturn(body, nArgs, argumentBase + depth - 1, last ? null : functionName);
+                returnedEarly |= !last;
+            } else {
+                writeCommand(commands, i);
+            }
+        }
+
+        // every return but the last one jumps here
+        if (returnedEarly) {
+            out.append('(').append(functionName).append(")\n");
+        }
+        out.append('\n');
+        functionName = callerFunction;
+        functionPrefix = callerPrefix;
+        fileBaseName = callerFile;
+    }
+
+    /**
+     * Helper method for an inlined push or pop of argument or local.
+     * @param commandType C_PUSH or C_POP
+     * @param segment argument or local
+     * @param index the index into the segment
+     * @param distance how far below SP the slot is, with the whole stack in RAM
+     */
+    private void writeInlinePushPop(CommandType commandType, Segment segment, int index, int distance) {
+        out.append("// ").append(commandType.name()).append(' ').append(segment.keyword).append(' ')
+                .append(index).append(" (inlined)\n");
+        if (commandType == CommandType.C_PUSH) {
+            spillTop();
+            writeLoadBelowSP(distance);
+            if (options.isTopOfStackInD()) {
+                topInD = true;
+            } else {
+                out.append(PUSH_D);
+            }
+        } else {
+            if (topInD) {
+                topInD = false;
+                topsKept++;
+            } else {
+                out.append("@SP\nAM = M - 1\nD = M\n");
+            }
+            // the value is off the stack now, so the slot is one closer to SP
+            writeStoreBelowSP(distance - 1);
+        }
+        out.append('\n');
+    }
+
+    /**
+     * Helper method for an inlined return: the return value goes where argument 0
+     * was, THIS and THAT get their saved values back and SP ends up right above
+     * the return value, like after a real call.
+     * @param body the body of the function
+     * @param nArgs the number of arguments the caller pushed
+     * @param distance how far below SP argument 0 is once the return value is popped
+     * @param endLabel where to jump after the return, null if it is the last command
+     */
+    private void writeInlineReturn(FunctionInliner.Body body, int nArgs, int distance, String endLabel) {
+        out.append("// RETURN (inlined)\n");
+        if (topInD) {
+            topInD = false;
+            topsKept++;
+        } else {
+            out.append("@SP\nAM = M - 1\nD = M\n");
+        }
+
+        // the return value waits in R13 while the pointers are restored
+        if (body.getSavedPointers() > 0) {
+            out.append("@R13\nM = D\n");
+            int saved = distance - nArgs;
+            if (body.isSavingThis()) {
+                writeLoadBelowSP(saved--);
+                out.append("@THIS\nM = D\n");
+            }
+            if (body.isSavingThat()) {
+                writeLoadBelowSP(saved);
+                out.append("@THAT\nM = D\n");
+            }
+            out.append("@R13\nD = M\n");
+        }
+
+        // *argument 0 = return value, SP = argument 0 + 1
+        if (distance == 0) {
+            out.append(PUSH_D);
+        } else if (distance == 1) {
+            out.append("@SP\nA = M - 1\nM = D\n");
+        } else {
+            writeStoreBelowSP(distance);
+            out.append("D = A + 1\n@SP\nM = D\n");
+        }
+
+        if (endLabel != null) {
+            out.append('@').append(endLabel).append("\n0;JMP\n");
+        }
+        out.append('\n');
+    }
+
+    /**
+     * Helper method for loading the value a fixed distance below SP into D. Close to
+     * SP a chain of A = A - 1 is shortest, further down the distance is subtracted.
+     * @param distance how far below SP, at least 1
+     */
+    private void writeLoadBelowSP(int distance) {
+        if (distance <= LOAD_CHAIN_LIMIT) {
+            out.append("@SP\nA = M - 1\n");
+            for (int i = 1; i < distance; i++) {
+                out.append("A = A - 1\n");
+            }
+        } else {
+            out.append('@').append(distance).append("\nD = A\n@SP\nA = M - D\n");
+        }
+        out.append("D = M\n");
+    }
+
+    /**
+     * Helper method for storing D a fixed distance below SP. Close to SP a chain of
+     * A = A - 1 is shortest, further down the address is computed while the value
+     * waits in R13. Either way A is left pointing at the slot.
+     * @param distance how far below SP, at least 1
+     */
+    private void writeStoreBelowSP(int distance) {
+        if (distance <= STORE_CHAIN_LIMIT) {
+            out.append("@SP\nA = M - 1\n");
+            for (int i = 1; i < distance; i++) {
+                out.append("A = A - 1\n");
+            }
+            out.append("M = D\n");
+        } else {
+            out.append("@R13\n" +
+                    "M = D\n" +
+                    "@").append(distance).append("\n" +
+                    "D = A\n" +
+                    "@SP\n" +
+                    "D = M - D\n" +
+                    "@R14\n" +
+                    "M = D\n" +
+                    "@R13\n" +
+                    "D = M\n" +
+                    "@R14\n" +
+                    "A = M\n" +
+                    "M = D\n");
+        }
+    }
+
+    /**
+     * Writes the assembly language for a return command.
+     */
+    public void writeReturn() {
+        // the return value is popped from RAM
+        spillTop();
+
+        if (options.isSharedCallReturn()) {
+            out.append("// RETURN\n@" + SHARED_RETURN + "\n0;JMP\n\n");
+            return;
+        }
+
+        out.append("// RETURN\n").append(RETURN_CODE).append('\n');
+    }
 
-        // *ARG = pop()
-        outputFile.write("@SP //*ARG = pop()\n" +
-                "AM = M-1\n" +
+    /**
+     * Writes the global call and return routines used by the shared call/return mode.
+     * A call site jumps to the call routine with the return address in D, nArgs in
+     * R13 and the address of the function in R14. A return jumps to the return routine.
+     */
+    private void writeSharedRoutines() {
+        if (options.isProfile()) {
+            writeSourceMarker(fileBaseName, "call (shared routine)");
+        }
+        out.append("// SHARED CALL ROUTINE: D = return address, R13 = nArgs, R14 = f\n" +
+                "(" + SHARED_CALL + ")\n" +
+                "@SP // push return address\n" +
+                "AM = M + 1\n" +
+                "A = A - 1\n" +
+                "M = D\n");
+        out.append(PUSH_FRAME);
+        out.append("@R13 // ARG = SP - n - 5\n" +
                 "D = M\n" +
+                "@5\n" +
+                "D = D + A\n" +
+                "@SP\n" +
+                "D = M - D\n" +
                 "@ARG\n" +
+                "M = D\n" +
+                "@SP // LCL = SP\n" +
+                "D = M\n" +
+                "@LCL\n" +
+                "M = D\n" +
+                "@R14 // goto f\n" +
                 "A = M\n" +
-                "M = D\n");
+                "0;JMP\n\n");
 
-        // SP = ARG + 1
-        outputFile.write("@ARG // SP = ARG + 1\n" +
-                "D = M + 1\n" +
-                "@SP\n" +
-                "M = D\n");
+        if (options.isProfile()) {
+            writeSourceMarker(fileBaseName, "return (shared routine)");
+        }
+        out.append("// SHARED RETURN ROUTINE\n" +
+                "(" + SHARED_RETURN + ")\n").append(RETURN_CODE).append('\n');
+    }
 
-        // THAT = *(FRAME - 1)
-        outputFile.write("@FRAME // THAT = *(FRAME - 1)\n" +
-                "A = M -1\n" +
+    /**
+     * Writes the global routine the tail calls jump to, with nArgs in R13 and the
+     * address of the callee in R14. The saved frame (return address, LCL, ARG, THIS
+     * and THAT) of the function making the call has to end up right above the new
+     * arguments, at ARG + nArgs, which is kept in R15:
+     * - the same number of arguments: the frame is already there, only the arguments move
+     * - fewer arguments: the frame moves down first, then the arguments
+     * - more arguments: the frame would land on the arguments, so it is copied above
+     *      them first and then the arguments and the frame move down together
+     * Everything only ever moves down, so every copy goes from low to high addresses.
+     */
+    private void writeTailCallRoutine() {
+        if (options.isProfile()) {
+            writeSourceMarker(fileBaseName, "tail-call (shared routine)");
+        }
+        out.append("// SHARED TAIL CALL ROUTINE: R13 = nArgs, R14 = f\n" +
+                "(" + TAIL_CALL + ")\n" +
+                "@R13 // R15 = ARG + n, where the saved frame goes\n" +
                 "D = M\n" +
-                "@THAT\n" +
-                "M = D\n");
+                "@ARG\n" +
+                "D = D + M\n" +
+                "@R15\n" +
+                "M = D\n" +
+                "@5 // D = LCL - 5 - R15, how far down the saved frame moves\n" +
+                "D = A\n" +
+                "@LCL\n" +
+                "D = M - D\n" +
+                "@R15\n" +
+                "D = D - M\n" +
+                "@" + TAIL_CALL + "_ARGS\n" +
+                "D;JEQ\n" +
+                "@" + TAIL_CALL + "_UP\n" +
+                "D;JLT\n");
 
-        // THIS = *(FRAME - 2)
-        outputFile.write("@FRAME // THIS = *(FRAME - 2)\n" +
-                "D = M\n" +
-                "@2\n" +
-                "A = D - A\n" +
+        // fewer arguments, the frame moves down to R15
+        out.append("@5 // copy the frame down\n" +
+                "D = A\n" +
+                "@LCL\n" +
+                "D = M - D\n" +
+                "@SRC\n" +
+                "M = D\n" +
+                "@R15\n" +
                 "D = M\n" +
-                "@THIS\n" +
+                "@DST\n" +
+                "M = D\n" +
+                "@5\n" +
+                "D = A\n" +
+                "@COUNT\n" +
                 "M = D\n");
+        writeCopyLoop(TAIL_CALL + "_FRAME");
 
-        // ARG = *(FRAME - 3)
-        outputFile.write("@FRAME // ARG = *(FRAME - 3)\n" +
+        // the arguments move from SP - n down to ARG
+        out.append("(" + TAIL_CALL + "_ARGS)\n" +
+                "@R13 // copy the arguments down\n" +
                 "D = M\n" +
-                "@3\n" +
-                "A = D - A\n" +
+                "@" + TAIL_CALL + "_JUMP\n" +
+                "D;JEQ\n" +
+                "@COUNT\n" +
+                "M = D\n" +
+                "@SP\n" +
                 "D = M\n" +
+                "@R13\n" +
+                "D = D - M\n" +
+                "@SRC\n" +
+                "M = D\n" +
                 "@ARG\n" +
+                "D = M\n" +
+                "@DST\n" +
                 "M = D\n");
+        writeCopyLoop(TAIL_CALL + "_ARGS_LOOP");
 
-        // LCL = *(FRAME - 4)
-        outputFile.write("@FRAME // LCL = *(FRAME-4)\n" +
-                "D = M\n" +
-                "@4\n" +
-                "A = D - A\n" +
+        // SP = LCL = ARG + n + 5, goto f
+        out.append("(" + TAIL_CALL + "_JUMP)\n" +
+                "@R15 // SP = LCL = ARG + n + 5\n" +
                 "D = M\n" +
+                "@5\n" +
+                "D = D + A\n" +
+                "@SP\n" +
+                "M = D\n" +
                 "@LCL\n" +
-                "M = D\n");
-
-        // goto RET
-        outputFile.write("@RET // goto RET\n" +
+                "M = D\n" +
+                "@R14 // goto f\n" +
                 "A = M\n" +
                 "0;JMP\n");
 
-        // flush all code
-        outputFile.flush();
-        valuableLinesWritten += 50;
+        // more arguments, the frame is copied to SP first, then n + 5 words move down
+        out.append("(" + TAIL_CALL + "_UP)\n" +
+                "@5 // copy the frame above the arguments\n" +
+                "D = A\n" +
+                "@LCL\n" +
+                "D = M - D\n" +
+                "@SRC\n" +
+                "M = D\n" +
+                "@SP\n" +
+                "D = M\n" +
+                "@DST\n" +
+                "M = D\n" +
+                "@5\n" +
+                "D = A\n" +
+                "@COUNT\n" +
+                "M = D\n");
+        writeCopyLoop(TAIL_CALL + "_STAGE");
+        out.append("@R13 // copy the arguments and the frame down\n" +
+                "D = M\n" +
+                "@5\n" +
+                "D = D + A\n" +
+                "@COUNT\n" +
+                "M = D\n" +
+                "@SP\n" +
+                "D = M\n" +
+                "@R13\n" +
+                "D = D - M\n" +
+                "@SRC\n" +
+                "M = D\n" +
+                "@ARG\n" +
+                "D = M\n" +
+                "@DST\n" +
+                "M = D\n");
+        writeCopyLoop(TAIL_CALL + "_MOVE");
+        out.append("@" + TAIL_CALL + "_JUMP\n" +
+                "0;JMP\n\n");
+    }
+
+    /**
+     * Helper method for the loops of the tail call routine, which copy COUNT words
+     * from SRC to DST, from low to high addresses. COUNT has to be at least 1.
+     * @param label the label of the loop
+     */
+    private void writeCopyLoop(String label) {
+        out.append('(').append(label).append(")\n" +
+                "@SRC // *DST++ = *SRC++\n" +
+                "M = M + 1\n" +
+                "A = M - 1\n" +
+                "D = M\n" +
+                "@DST\n" +
+                "M = M + 1\n" +
+                "A = M - 1\n" +
+                "M = D\n" +
+                "@COUNT\n" +
+                "MD = M - 1\n" +
+                "@").append(label).append("\n" +
+                "D;JGT\n");
     }
 }
@@ -0,0 +1,151 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded ring buffer which hands the commands of a file from the thread reading
+ * it to the thread writing its code (see TranslationPipeline).
+ *
+ * There is exactly one producer and one consumer, so no locks are needed: each
+ * side only ever moves its own counter and reads the other one, and a command is
+ * published by the ordered write of the producer's counter after its slot is
+ * filled. The slots are plain ints, four per command (the compact form of
+ * VMProgram), so nothing is allocated per command.
+ *
+ * A side which finds the ring full (or empty) yields until the other side catches
+ * up, and counts it as a stall. The stalls are the backpressure of the pipeline:
+ * many reader stalls mean codegen is the slow stage, many codegen stalls mean the
+ * reader is.
+ *
+ * @author Jay Montoya
+ * @version 1.0
+ */
+public class CommandRing {
+
+    /** the ints of a command: opcode, segment, operand and symbol **/
+    private static final int SLOT_SIZE = 4;
+
+    /** the slots of every command in the ring **/
+    private final int[] slots;
+
+    /** the number of commands the ring holds, a power of two **/
+    private final int capacity;
+
+    /** capacity - 1, to turn a counter into a slot **/
+    private final int mask;
+
+    /** how many commands were put in so far, only moved by the producer **/
+    private final AtomicLong head = new AtomicLong();
+
+    /** how many commands were taken out so far, only moved by the consumer **/
+    private final AtomicLong tail = new AtomicLong();
+
+    /** set by the producer after its last command **/
+    private volatile boolean closed;
+
+    /** the producer's copy of tail, only read again when the ring looks full **/
+    private long producerTail;
+
+    /** the consumer's copy of head, only read again when the ring looks empty **/
+    private long consumerHead;
+
+    /** how many times each side had to wait for the other **/
+    private long producerStalls;
+    private long consumerStalls;
+
+    /**
+     * Constructor for an empty ring.
+     * @param capacity the number of commands it holds, rounded up to a power of two
+     */
+    public CommandRing(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        mask = size - 1;
+        slots = new int[size * SLOT_SIZE];
+    }
+
+    /**
+     * Puts a command in the ring, waiting while it is full. Producer only.
+     * @param opcode the opcode ordinal
+     * @param segment the segment ordinal, VMProgram.NONE if there is none
+     * @param operand the index, nVars or nArgs
+     * @param symbol the symbol id, VMProgram.NONE if there is none
+     */
+    public void put(int opcode, int segment, int operand, int symbol) {
+        long h = head.get();
+        if (h - producerTail == capacity) {
+            producerTail = tail.get();
+            if (h - producerTail == capacity) {
+                producerStalls++;
+                do {
+                    Thread.yield();
+                    producerTail = tail.get();
+                } while (h - producerTail == capacity);
+            }
+        }
+
+        int slot = (int) (h & mask) * SLOT_SIZE;
+        slots[slot] = opcode;
+        slots[slot + 1] = segment;
+        slots[slot + 2] = operand;
+        slots[slot + 3] = symbol;
+        head.lazySet(h + 1);
+    }
+
+    /**
+     * Marks the end of the commands. Producer only, after its last put().
+     */
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * Moves every command in the ring to the end of a program, waiting while the
+     * ring is empty. Consumer only.
+     * @param program the program the commands are added to
+     * @return false once the producer is done and every command was taken
+     */
+    public boolean drainTo(VMProgram program) {
+        long t = tail.get();
+        boolean stalled = false;
+        while (t == consumerHead) {
+            // closed is read before head, so nothing put before close() is missed
+            boolean done = closed;
+            consumerHead = head.get();
+            if (t == consumerHead) {
+                if (done) {
+                    return false;
+                }
+                if (!stalled) {
+                    consumerStalls++;
+                    stalled = true;
+                }
+                Thread.yield();
+            }
+        }
+
+        for (; t < consumerHead; t++) {
+            int slot = (int) (t & mask) * SLOT_SIZE;
+            program.addEncoded(slots[slot], slots[slot + 1], slots[slot + 2], slots[slot + 3]);
+        }
+        tail.lazySet(t);
+        return true;
+    }
+
+    /**
+     * Accessor method for the reader stalls, read once both sides are done.
+     * @return how many times the producer found the ring full
+     */
+    public long getProducerStalls() {
+        return producerStalls;
+    }
+
+    /**
+     * Accessor method for the codegen stalls, read once both sides are done.
+     * @return how many times the consumer found the ring empty
+     */
+    public long getConsumerStalls() {
+        return consumerStalls;
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * Folding pass which runs over a VMProgram before any code is written for it.
+ *
+ * - Constant expressions (push constant a, push constant b, add) are evaluated and
+ *      replaced by a single push of the result.
+ * - Identities which leave the value on the stack as it was (push constant 0, add /
+ *      not, not / neg, neg ...) are dropped.
+ * - Values follow the 16-bit semantics of the hack code the CodeWriter generates:
+ *      results wrap around, and gt/lt test the sign of the wrapped difference just
+ *      like the generated code does, so folding never changes what a program computes.
+ * - Only commands which sit right next to each other are folded, so a label in
+ *      between (a jump target) stops folding.
+ *
+ * @author Jay Montoya
+ * @version 1.0
+ */
+public class ConstantFolder {
+
+    /** where the number of commands removed is reported **/
+    private final TranslationReport report;
+
+    /** the number of commands removed by folding **/
+    private int folded;
+
+    /** the number of commands removed by identities **/
+    private int simplified;
+
+    /**
+     * Constructor for a folder reporting to the given report.
+     * @param report where the number of commands removed is reported
+     */
+    public ConstantFolder(TranslationReport report) {
+        this.report = report;
+    }
+
+    /**
+     * Folds every constant expression of a program.
+     * @param program the commands of a single .vm file
+     * @return a new program with the expressions folded
+     */
+    public VMProgram fold(VMProgram program) {
+        VMProgram result = new VMProgram(program.getFileName(), program.getSymbols(), program.size());
+
+        // copy every command, folding the end of the result after each one
+        for (int i = 0; i < program.size(); i++) {
+            result.add(program.opcode(i), program.segment(i), program.operand(i), program.symbol(i));
+            while (reduce(result)) {
+                // keep folding, one fold can make room for the next
+            }
+        }
+
+        report.add("FOLD constant expressions (commands removed)", folded);
+        report.add("FOLD identities (commands removed)", simplified);
+        return result;
+    }
+
+    /**
+     * Helper method for folding the commands at the end of a program once.
+     * @param program the program being built
+     * @return true if something was folded
+     */
+    private boolean reduce(VMProgram program) {
+        int last = program.size() - 1;
+        if (last < 1 || program.opcode(last).commandType != CommandType.C_ARITHMETIC) {
+            return false;
+        }
+        Opcode opcode = program.opcode(last);
+
+        // unary commands
+        if (opcode == Opcode.NEG || opcode == Opcode.NOT) {
+            if (isConstant(program, last - 1)) {
+                int value = program.operand(last - 1);
+                value = (opcode == Opcode.NEG) ? -value : ~value;
+                replaceWithConstant(program, last - 1, value);
+                folded++;
+                return true;
+            }
+            if (program.opcode(last - 1) == opcode) {
+                // not not x == x, neg neg x == x
+                program.truncate(last - 1);
+                simplified += 2;
+                return true;
+            }
+            return false;
+        }
+
+        // binary commands
+        if (!isConstant(program, last - 1)) {
+            return false;
+        }
+        int y = program.operand(last - 1);
+
+        if (last >= 2 && isConstant(program, last - 2)) {
+            int x = program.operand(last - 2);
+            replaceWithConstant(program, last - 2, evaluate(opcode, x, y));
+            folded += 2;
+            return true;
+        }
+
+        // x + 0, x - 0, x | 0 and x & -1 are all just x
+        if ((y == 0 && (opcode == Opcode.ADD || opcode == Opcode.SUB || opcode == Opcode.OR))
+                || (y == -1 && opcode == Opcode.AND)) {
+            program.truncate(last - 1);
+            simplified += 2;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Evaluates a binary command on two constants the way the generated code would.
+     * @param opcode the arithmetic command
+     * @param x the value below the top of the stack
+     * @param y the value on top of the stack
+     * @return the result as a 16-bit value
+     */
+    static int evaluate(Opcode opcode, int x, int y) {
+        short difference = (short) (x - y);
+        switch (opcode) {
+            case ADD:
+                return (short) (x + y);
+            case SUB:
+                return difference;
+            case AND:
+                return (short) (x & y);
+            case OR:
+                return (short) (x | y);
+            case EQ:
+                return (difference == 0) ? -1 : 0;
+            case GT:
+                return (difference > 0) ? -1 : 0;
+            case LT:
+                return (difference < 0) ? -1 : 0;
+            default:
+                throw new IllegalArgumentException(opcode + " is not a binary command");
+        }
+    }
+
+    /**
+     * Helper method for checking if a command is a push of a constant.
+     * @param program the program being built
+     * @param i the index of the command
+     * @return true if the command is push constant
+     */
+    private static boolean isConstant(VMProgram program, int i) {
+        return program.opcode(i) == Opcode.PUSH && program.segment(i) == Segment.CONSTANT;
+    }
+
+    /**
+     * Helper method for replacing the end of a program with a single constant.
+     * @param program the program being built
+     * @param from the index of the first command to replace
+     * @param value the constant, wrapped to 16 bits
+     */
+    private static void replaceWithConstant(VMProgram program, int from, int value) {
+        program.truncate(from);
+        program.add(Opcode.PUSH, Segment.CONSTANT, (short) value, VMProgram.NONE);
+    }
+}
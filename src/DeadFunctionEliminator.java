@@ -0,0 +1,170 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Whole-program pass which drops every function that can never be reached
+ * from Sys.init, the only function the bootstrap code calls.
+ *
+ * ALGORITHM:
+ * 1) Splits every program into function bodies, a body runs from its function
+ *      command up to the next one.
+ * 2) Builds the call graph from the call commands in each body, leaving out the
+ *      calls to inlined functions.
+ * 3) Walks the call graph from Sys.init and keeps every function it reaches.
+ * 4) Copies every program without the bodies of the functions it did not reach,
+ *      and prints what was removed along with the instructions it would have cost.
+ *
+ * @author Jay Montoya
+ * @version 1.0
+ */
+public class DeadFunctionEliminator {
+
+    /** the function the bootstrap code calls **/
+    public static final String ENTRY_FUNCTION = "Sys.init";
+
+    /** the options the translator was started with **/
+    private final TranslatorOptions options;
+
+    /** where the totals are reported **/
+    private final TranslationReport report;
+
+    /** functions written at their call sites, a call to them does not reach them **/
+    private HashSet<String> inlined = new HashSet<>();
+
+    /**
+     * Constructor for the pass.
+     * @param options the options the translator was started with
+     * @param report where the totals are reported
+     */
+    public DeadFunctionEliminator(TranslatorOptions options, TranslationReport report) {
+        this.options = options;
+        this.report = report;
+    }
+
+    /**
+     * Mutator method for the functions which are inlined (see FunctionInliner).
+     * @param inlined the names of the inlined functions
+     */
+    public void setInlined(HashSet<String> inlined) {
+        this.inlined = inlined;
+    }
+
+    /**
+     * Drops the functions Sys.init can never reach.
+     * @param programs the programs of every file, in file order
+     * @return the programs without the unreachable functions, in the same order
+     * @throws VMTranslatorException if a dead function has a bad label, it is written to be counted
+     */
+    public ArrayList<VMProgram> eliminate(ArrayList<VMProgram> programs) throws VMTranslatorException {
+        // who calls who
+        HashMap<String, ArrayList<String>> calls = new HashMap<>();
+        for (VMProgram program : programs) {
+            String function = null;
+            for (int i = 0; i < program.size(); i++) {
+                if (program.opcode(i) == Opcode.FUNCTION) {
+                    function = program.symbolName(i);
+                    calls.put(function, new ArrayList<>());
+                } else if (program.opcode(i) == Opcode.CALL && function != null
+                    && !inlined.contains(program.symbolName(i))) {
+                    calls.get(function).add(program.symbolName(i));
+                }
+            }
+        }
+
+        if (!calls.containsKey(ENTRY_FUNCTION)) {
+            report.message("WARNING: no " + ENTRY_FUNCTION + " function, dead function elimination skipped");
+            return programs;
+        }
+
+        // walk the call graph from the entry function
+        HashSet<String> reachable = new HashSet<>();
+        ArrayDeque<String> toVisit = new ArrayDeque<>();
+        reachable.add(ENTRY_FUNCTION);
+        toVisit.add(ENTRY_FUNCTION);
+        while (!toVisit.isEmpty()) {
+            ArrayList<String> callees = calls.get(toVisit.remove());
+            if (callees == null) {
+                continue; // calls a function which is not defined anywhere
+            }
+            for (String callee : callees) {
+                if (reachable.add(callee)) {
+                    toVisit.add(callee);
+                }
+            }
+        }
+
+        // copy the programs without the dead bodies
+        ArrayList<VMProgram> result = new ArrayList<>();
+        for (VMProgram program : programs) {
+            result.add(removeDead(program, reachable));
+        }
+        return result;
+    }
+
+    /**
+     * Helper method for copying a program without the functions not reached.
+     * @param program the commands of a single file
+     * @param reachable the names of the functions to keep
+     * @return the copied program
+     * @throws VMTranslatorException if a dead function has a bad label
+     */
+    private VMProgram removeDead(VMProgram program, HashSet<String> reachable) throws VMTranslatorException {
+        VMProgram kept = new VMProgram(program.getFileName(), program.getSymbols(), program.size());
+        int start = 0;
+        while (start < program.size()) {
+            // find the end of this body
+            int end = start + 1;
+            while (end < program.size() && program.opcode(end) != Opcode.FUNCTION) {
+                end++;
+            }
+
+            if (program.opcode(start) == Opcode.FUNCTION && !reachable.contains(program.symbolName(start))) {
+                int instructions = countInstructions(program, start, end);
+                report.message("DEAD FUNCTION " + program.symbolName(start) + " removed ("
+                        + (end - start) + " commands, " + instructions + " instructions saved)");
+                report.add("DCE functions removed", 1);
+                report.add("DCE instructions saved", instructions);
+            } else {
+                copy(program, start, end, kept);
+            }
+            start = end;
+        }
+        return kept;
+    }
+
+    /**
+     * Helper method for counting the hack instructions a range of commands would
+     * be translated to, by writing them to a throwaway CodeWriter.
+     * @param program the commands of a single file
+     * @param start the first command of the range
+     * @param end one past the last command of the range
+     * @return the number of instructions
+     * @throws VMTranslatorException if the commands have a bad label
+     */
+    private int countInstructions(VMProgram program, int start, int end) throws VMTranslatorException {
+        VMProgram body = new VMProgram(program.getFileName(), program.getSymbols(), end - start);
+        copy(program, start, end, body);
+
+        InstructionCounter counter = new InstructionCounter(new MemorySink(VMTranslator.FRAGMENT_BUFFER_SIZE));
+        CodeWriter codeWriter = new CodeWriter(counter, options);
+        codeWriter.setFileName(program.getFileName());
+        codeWriter.writeProgram(body);
+        codeWriter.close();
+        return counter.getCount();
+    }
+
+    /**
+     * Helper method for copying a range of commands to the end of another program.
+     * @param from the program to copy from
+     * @param start the first command of the range
+     * @param end one past the last command of the range
+     * @param to the program to copy to
+     */
+    private static void copy(VMProgram from, int start, int end, VMProgram to) {
+        for (int i = start; i < end; i++) {
+            to.add(from.opcode(i), from.segment(i), from.operand(i), from.symbol(i));
+        }
+    }
+}
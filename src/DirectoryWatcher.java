@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the translator running and translates the directory again whenever one
+ * of its .vm files is created, changed or deleted.
+ *
+ * - The JVM stays up, so after the first few builds everything is JIT compiled.
+ * - Fragments are kept in a TranslationCache between builds, so only the files
+ *      which changed are parsed and translated again. With --cache the entries
+ *      also go to the disk like a normal run.
+ * - The .asm file is moved into place once it is complete, so whatever is
+ *      watching it never reads half of it.
+ * - Every build reports the time from the change being seen to the new .asm file
+ *      being in place.
+ *
+ * @author Jay Montoya
+ * @version 1.0
+ */
+public class DirectoryWatcher {
+
+    /** editors often save a file in several steps, wait this long for them to finish **/
+    public static final long SETTLE_MILLIS = 50;
+
+    /** the options the translator was started with **/
+    private final TranslatorOptions options;
+
+    /** the fragments of the files, kept between builds **/
+    private final TranslationCache cache;
+
+    /**
+     * Constructor for a watcher of the directory given in the options.
+     * @param options the options the translator was started with
+     */
+    public DirectoryWatcher(TranslatorOptions options) {
+        this.options = options;
+        cache = new TranslationCache(options.getDirectoryName(), options, options.isCache());
+    }
+
+    /**
+     * Translates the directory, then again every time a .vm file in it changes.
+     * Only returns if the directory goes away or the thread is interrupted.
+     * @throws VMTranslatorException if the directory can not be watched
+     */
+    public void run() throws VMTranslatorException {
+        Path directory = Paths.get(options.getDirectoryName());
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            // register before the first build so no change is missed while it runs
+            directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            build("first build", System.nanoTime());
+            System.out.println("WATCHING " + directory + " for changes to .vm files (ctrl-c to stop)");
+
+            while (true) {
+                WatchKey key = watcher.take();
+                long changed = System.nanoTime();
+
+                // collect every change until the directory has been quiet for a moment
+                TreeSet<String> files = new TreeSet<>();
+                while (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            files.add("(events lost)");
+                        } else if (event.context().toString().endsWith(".vm")) {
+                            files.add(event.context().toString());
+                        }
+                    }
+                    if (!key.reset()) {
+                        System.out.println("ERROR: " + directory + " can not be watched anymore, stopping");
+                        return;
+                    }
+                    key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+
+                // the .asm file we write lives in the same directory, ignore it
+                if (!files.isEmpty()) {
+                    build(String.join(", ", files), changed);
+                }
+            }
+        } catch (IOException e) {
+            throw new VMTranslatorException("[INVALID FILE]: can not watch '" + directory + "' -> " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Helper method for translating the directory once and reporting on it.
+     * @param reason what changed
+     * @param changed System.nanoTime() of when the change was seen
+     */
+    private void build(String reason, long changed) {
+        TranslationMetrics metrics = options.isCollectingMetrics() ? new TranslationMetrics() : null;
+
+        TranslationReport report;
+        try {
+            report = VMTranslator.translateDirectory(options, metrics, cache);
+        } catch (VMTranslatorException e) {
+            // keep watching, the next change may well fix it
+            System.out.println("ERROR: the build failed (" + reason + "), the last good output stays in place");
+            System.out.println(e.getMessage());
+            return;
+        }
+        long latency = System.nanoTime() - changed;
+
+        // only hold on to the fragments of the files as they are now
+        cache.forgetUnused();
+
+        report.print();
+        if (options.getMetricsFile() != null) {
+            try {
+                metrics.writeJson(options.getMetricsFile());
+            } catch (VMTranslatorException e) {
+                // the build itself is fine, keep watching
+                System.out.println("ERROR: the metrics were not written");
+                System.out.println(e.getMessage());
+            }
+        }
+        if (options.isSizeReport()) {
+            metrics.printSizes();
+        }
+        System.out.println(String.format("REBUILT (%s) in %.1f ms from change to output",
+                reason, latency / 1e6));
+    }
+}
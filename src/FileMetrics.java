@@ -0,0 +1,208 @@
+import java.util.ArrayList;
+
+/**
+ * The metrics of a single .vm file: how many commands of each type it has, how
+ * long every phase took on it and how much code was written for it and for each
+ * of its functions.
+ *
+ * A FileMetrics object is only ever used by the task translating its file, so
+ * nothing here is synchronized. See TranslationMetrics for the whole run.
+ *
+ * @author Jay Montoya
+ * @version 1.0
+ */
+public class FileMetrics {
+
+    /** the name of the .vm file **/
+    private final String fileName;
+
+    /** the number of commands parsed, indexed by CommandType ordinal **/
+    private final long[] commands = new long[CommandType.values().length];
+
+    /** nanoseconds spent in each phase, indexed by Phase ordinal **/
+    private final long[] phaseNanos = new long[TranslationMetrics.Phase.values().length];
+
+    /** the fragment the code of the file is written to, null until codegen starts **/
+    private MemorySink fragment;
+
+    /** the bytes of assembly code written for the file **/
+    private long bytes;
+
+    /** the hack instructions written for the file, after the peephole optimizer **/
+    private int instructions;
+
+    /** the hack instructions written for each kind of command before the peephole optimizer, by Opcode ordinal **/
+    private final int[] kindInstructions = new int[Opcode.values().length];
+
+    /** every function of the file, in the order they were written **/
+    private final ArrayList<Function> functions = new ArrayList<>();
+
+    /** the function being written, null outside of functions **/
+    private Function current;
+
+    /**
+     * The code written for one function. Holds where the function started until it
+     * ends, and from then on how much it took.
+     */
+    public static class Function {
+        private final String name;
+        private int commands;
+        private long bytes;
+        private int instructions;
+
+        Function(String name, int command, long bytes, int instructions) {
+            this.name = name;
+            this.commands = command;
+            this.bytes = bytes;
+            this.instructions = instructions;
+        }
+
+        public String getName() { return name; }
+        public int getCommands() { return commands; }
+        public long getBytes() { return bytes; }
+        public int getInstructions() { return instructions; }
+    }
+
+    /**
+     * Constructor for the metrics of a file.
+     * @param fileName the name of the .vm file
+     */
+    public FileMetrics(String fileName) {
+        this.fileName = fileName;
+    }
+
+    /**
+     * Counts the commands of the program by their type.
+     * @param program the commands of the file, as they were parsed
+     */
+    public void countCommands(VMProgram program) {
+        for (int i = 0; i < program.size(); i++) {
+            commands[program.opcode(i).commandType.ordinal()]++;
+        }
+    }
+
+    /**
+     * Adds to the time spent in a phase.
+     * @param phase the phase
+     * @param nanos the time in nanoseconds
+     */
+    public void addTime(TranslationMetrics.Phase phase, long nanos) {
+        phaseNanos[phase.ordinal()] += nanos;
+    }
+
+    /**
+     * Mutator method for the fragment the code of the file is written to, which is
+     * where the bytes of each function are measured.
+     * @param fragment the in-memory fragment of the file
+     */
+    public void setFragment(MemorySink fragment) {
+        this.fragment = fragment;
+    }
+
+    /**
+     * Marks the start of a function, which is also the end of the one before it.
+     * @param name the name of the function
+     * @param command the index of the function command in the program
+     * @param instructionsWritten the instructions written by the CodeWriter so far
+     */
+    public void startFunction(String name, int command, int instructionsWritten) {
+        endFunction(command, instructionsWritten);
+        current = new Function(name, command, fragment.size(), instructionsWritten);
+        functions.add(current);
+    }
+
+    /**
+     * Marks the end of the function being written, if there is one.
+     * @param command the index of the first command after the function
+     * @param instructionsWritten the instructions written by the CodeWriter so far
+     */
+    public void endFunction(int command, int instructionsWritten) {
+        if (current == null) {
+            return;
+        }
+        current.commands = command - current.commands;
+        current.bytes = fragment.size() - current.bytes;
+        current.instructions = instructionsWritten - current.instructions;
+        current = null;
+    }
+
+    /**
+     * Adds the instructions written for a command to its kind. The peephole optimizer
+     * works across commands, so these are counted before it, what it removed is the
+     * difference to the instructions of the file.
+     * @param opcode the kind of command
+     * @param instructions the instructions written for it
+     */
+    public void addInstructions(Opcode opcode, int instructions) {
+        kindInstructions[opcode.ordinal()] += instructions;
+    }
+
+    /**
+     * Records the totals of the file once all of its code is written.
+     * @param bytes the size of the finished fragment
+     * @param instructions the instructions written for the file
+     */
+    public void setTotals(long bytes, int instructions) {
+        this.bytes = bytes;
+        this.instructions = instructions;
+    }
+
+    /**
+     * Accessor method for the file name.
+     * @return the name of the .vm file
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * Accessor method for the number of commands of a type.
+     * @param type the command type
+     * @return how many commands of the type were parsed
+     */
+    public long getCommands(CommandType type) {
+        return commands[type.ordinal()];
+    }
+
+    /**
+     * Accessor method for the time spent in a phase.
+     * @param phase the phase
+     * @return the time in nanoseconds
+     */
+    public long getNanos(TranslationMetrics.Phase phase) {
+        return phaseNanos[phase.ordinal()];
+    }
+
+    /**
+     * Accessor method for the bytes written.
+     * @return the bytes of assembly code written for the file
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Accessor method for the instructions written.
+     * @return the hack instructions written for the file
+     */
+    public int getInstructions() {
+        return instructions;
+    }
+
+    /**
+     * Accessor method for the instructions written for a kind of command.
+     * @param opcode the kind of command
+     * @return the hack instructions written for every command of that kind
+     */
+    public int getInstructions(Opcode opcode) {
+        return kindInstructions[opcode.ordinal()];
+    }
+
+    /**
+     * Accessor method for the functions.
+     * @return every function of the file, in the order they were written
+     */
+    public ArrayList<Function> getFunctions() {
+        return functions;
+    }
+}
@@ -0,0 +1,332 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Whole-program pass which finds the small functions whose body can be written
+ * right at their call sites, so the call and return code (around 90 instructions
+ * for the frame alone) is never written or run for them. The CodeWriter does the
+ * actual inlining when it gets to a call of one of them (see CodeWriter.writeCall).
+ *
+ * A function can be inlined if:
+ * 1) it has at most --inline N commands and is not Sys.init
+ * 2) it calls nothing, so it can never be recursive and never needs a frame of its own
+ * 3) its last command is a return and it never uses a local it does not have
+ * 4) the stack is always the same height at each of its labels, however it gets
+ *      there, so every argument and local is a fixed distance below SP
+ * 5) every call to it passes all the arguments it uses
+ *
+ * Inside the inlined body, argument and local are read and written relative to SP
+ * since there is no frame, the arguments are still where the caller pushed them and
+ * the locals are pushed right above them. THIS and THAT are saved only if the body
+ * pops pointer. The pass prints what each function costs at its call sites next to
+ * what the calls cost, the body itself stays in the output unless --dce drops it,
+ * and then what that saves is reported with the other dead functions.
+ *
+ * @author Jay Montoya
+ * @version 1.0
+ */
+public class FunctionInliner {
+
+    /** the options the translator was started with **/
+    private final TranslatorOptions options;
+
+    /** where the totals are reported **/
+    private final TranslationReport report;
+
+    /** every function which is inlined, by name. Only read once the pass is done **/
+    private final HashMap<String, Body> bodies = new HashMap<>();
+
+    /**
+     * The body of a function which is inlined, without its function command.
+     */
+    public static class Body {
+        private final String fileBaseName;
+        private final VMProgram commands;
+        private final int locals;
+        private final int arguments;
+        private final int[] depth;
+        private final boolean savesThis;
+        private final boolean savesThat;
+
+        Body(String fileBaseName, VMProgram commands, int locals, int arguments, int[] depth,
+             boolean savesThis, boolean savesThat) {
+            this.fileBaseName = fileBaseName;
+            this.commands = commands;
+            this.locals = locals;
+            this.arguments = arguments;
+            this.depth = depth;
+            this.savesThis = savesThis;
+            this.savesThat = savesThat;
+        }
+
+        /** the file the function is in, its statics belong to that file **/
+        public String getFileBaseName() { return fileBaseName; }
+        public VMProgram getCommands() { return commands; }
+        public int getLocals() { return locals; }
+
+        /** how many arguments a call has to pass, one more than the highest used **/
+        public int getArguments() { return arguments; }
+
+        /** how many values the body has on the stack, above its locals, before command i **/
+        public int getDepth(int i) { return depth[i]; }
+        public boolean isSavingThis() { return savesThis; }
+        public boolean isSavingThat() { return savesThat; }
+
+        /** how many of THIS and THAT are saved below the locals **/
+        public int getSavedPointers() { return (savesThis ? 1 : 0) + (savesThat ? 1 : 0); }
+    }
+
+    /**
+     * Constructor for the pass.
+     * @param options the options the translator was started with
+     * @param report where the totals are reported
+     */
+    public FunctionInliner(TranslatorOptions options, TranslationReport report) {
+        this.options = options;
+        this.report = report;
+    }
+
+    /**
+     * Finds every function which can be inlined and prints what inlining it costs.
+     * @param programs the programs of every file, in file order
+     */
+    public void findCandidates(ArrayList<VMProgram> programs) {
+        for (VMProgram program : programs) {
+            int start = 0;
+            while (start < program.size()) {
+                // find the end of this body
+                int end = start + 1;
+                while (end < program.size() && program.opcode(end) != Opcode.FUNCTION) {
+                    end++;
+                }
+                if (program.opcode(start) == Opcode.FUNCTION) {
+                    Body body = analyse(program, start, end);
+                    if (body != null) {
+                        bodies.put(program.symbolName(start), body);
+                    }
+                }
+                start = end;
+            }
+        }
+
+        // a call which does not pass every argument would need the real function,
+        // so its function is not inlined anywhere
+        TreeMap<String, ArrayList<Integer>> callSites = new TreeMap<>();
+        HashSet<String> notInlined = new HashSet<>();
+        for (VMProgram program : programs) {
+            for (int i = 0; i < program.size(); i++) {
+                if (program.opcode(i) != Opcode.CALL) {
+                    continue;
+                }
+                String callee = program.symbolName(i);
+                Body body = bodies.get(callee);
+                if (body == null) {
+                    continue;
+                }
+                if (program.operand(i) < body.getArguments()) {
+                    notInlined.add(callee);
+                }
+                callSites.computeIfAbsent(callee, k -> new ArrayList<>()).add(program.operand(i));
+            }
+        }
+        bodies.keySet().removeAll(notInlined);
+
+        // what the call sites cost before and after
+        for (Map.Entry<String, ArrayList<Integer>> entry : callSites.entrySet()) {
+            String callee = entry.getKey();
+            if (!bodies.containsKey(callee)) {
+                continue;
+            }
+            int inlined = 0;
+            int called = 0;
+            for (int nArgs : entry.getValue()) {
+                inlined += callInstructions(callee, nArgs, true);
+                called += callInstructions(callee, nArgs, false);
+            }
+            int sites = entry.getValue().size();
+            report.message("INLINED " + callee + " (" + bodies.get(callee).getCommands().size()
+                    + " commands) at " + sites + " call sites: " + inlined + " instructions instead of "
+                    + called + " for the calls, " + (called - inlined) + " saved, "
+                    + (options.isEliminateDeadFunctions() ? "--dce drops the body" : "the body stays in the output"));
+            report.add("INLINE functions inlined", 1);
+            report.add("INLINE call sites", sites);
+            report.add("INLINE instructions saved at call sites, without the bodies --dce drops "
+                    + "(negative if the code grew)", called - inlined);
+        }
+    }
+
+    /**
+     * Accessor method for an inlined function.
+     * @param functionName the name of the function
+     * @return its body, null if it is not inlined
+     */
+    public Body get(String functionName) {
+        return bodies.get(functionName);
+    }
+
+    /**
+     * Accessor method for the names of the inlined functions. Every call to them is
+     * inlined, so nothing calls them anymore.
+     * @return the names of the inlined functions
+     */
+    public HashSet<String> getInlined() {
+        return new HashSet<>(bodies.keySet());
+    }
+
+    /**
+     * Helper method for checking if a function can be inlined, and working out the
+     * height of the stack before each of its commands if it can.
+     * @param program the commands of a single file
+     * @param start the index of the function command
+     * @param end one past the last command of the function
+     * @return the body of the function, null if it can not be inlined
+     */
+    private Body analyse(VMProgram program, int start, int end) {
+        int size = end - start - 1;
+        if (program.symbolName(start).equals(DeadFunctionEliminator.ENTRY_FUNCTION)
+                || size == 0 || size > options.getInlineLimit() || program.opcode(end - 1) != Opcode.RETURN) {
+            return null;
+        }
+
+        int locals = program.operand(start);
+        int arguments = 0;
+        boolean savesThis = false;
+        boolean savesThat = false;
+        int[] depth = new int[size];
+
+        // the height of the stack at every label, by symbol id, from the jumps and
+        // the commands falling into it
+        HashMap<Integer, Integer> labelDepth = new HashMap<>();
+        HashSet<Integer> labels = new HashSet<>();
+        int d = 0;
+        boolean reachable = true;
+
+        for (int i = start + 1; i < end; i++) {
+            Opcode opcode = program.opcode(i);
+            Segment segment = program.segment(i);
+
+            if (opcode == Opcode.LABEL) {
+                Integer jumped = labelDepth.get(program.symbol(i));
+                if (!reachable) {
+                    if (jumped == null) {
+                        return null; // only reached by a jump further down, or never
+                    }
+                    d = jumped;
+                    reachable = true;
+                } else if (jumped != null && jumped != d) {
+                    return null;
+                }
+                labelDepth.put(program.symbol(i), d);
+                labels.add(program.symbol(i));
+            } else if (!reachable) {
+                return null; // dead code, we can't tell how high the stack is
+            }
+            depth[i - start - 1] = d;
+
+            switch (opcode.commandType) {
+                case C_PUSH:
+                case C_POP:
+                    if (segment == Segment.LOCAL && program.operand(i) >= locals) {
+                        return null;
+                    }
+                    if (segment == Segment.ARGUMENT) {
+                        arguments = Math.max(arguments, program.operand(i) + 1);
+                    }
+                    if (opcode == Opcode.POP && segment == Segment.POINTER) {
+                        if (program.operand(i) == 0) {
+                            savesThis = true;
+                        } else {
+                            savesThat = true;
+                        }
+                    }
+                    d += (opcode == Opcode.PUSH) ? 1 : -1;
+                    break;
+                case C_ARITHMETIC:
+                    if (opcode != Opcode.NEG && opcode != Opcode.NOT) {
+                        d--;
+                    }
+                    break;
+                case C_GOTO:
+                case C_IF:
+                    if (opcode == Opcode.IF_GOTO) {
+                        d--;
+                    } else {
+                        reachable = false;
+                    }
+                    Integer jumped = labelDepth.get(program.symbol(i));
+                    if (jumped != null && jumped != d) {
+                        return null;
+                    }
+                    labelDepth.put(program.symbol(i), d);
+                    break;
+                case C_RETURN:
+                    if (d < 1) {
+                        return null;
+                    }
+                    reachable = false;
+                    break;
+                case C_CALL:
+                    return null; // only leaf functions are inlined
+                default:
+                    break;
+            }
+            if (d < 0) {
+                return null; // pops into the locals
+            }
+        }
+
+        // every jump has to stay inside the body
+        if (!labels.containsAll(labelDepth.keySet())) {
+            return null;
+        }
+
+        VMProgram commands = new VMProgram(program.getFileName(), program.getSymbols(), size);
+        for (int i = start + 1; i < end; i++) {
+            commands.add(program.opcode(i), program.segment(i), program.operand(i), program.symbol(i));
+        }
+        String fileName = program.getFileName();
+        return new Body(fileName.substring(0, fileName.indexOf('.')), commands, locals, arguments, depth,
+                savesThis, savesThat);
+    }
+
+    /**
+     * Helper method for counting the hack instructions of one call site, by writing
+     * it to a throwaway CodeWriter. The arguments are pushed first, like at a real
+     * call site, so the call starts out with the same state (with --tos the last
+     * argument is still in D and has to be stored), and their pushes are taken off again.
+     * @param callee the function called
+     * @param nArgs the number of arguments passed
+     * @param inline true to count the inlined body, false to count the call
+     * @return the number of instructions
+     */
+    private int callInstructions(String callee, int nArgs, boolean inline) {
+        return countInstructions(callee, nArgs, inline) - countInstructions(null, nArgs, false);
+    }
+
+    /**
+     * Helper method for counting the hack instructions of pushing the arguments and
+     * then calling, on a throwaway CodeWriter.
+     * @param callee the function called, null to only push the arguments
+     * @param nArgs the number of arguments pushed
+     * @param inline true to write the inlined body, false to write the call
+     * @return the number of instructions
+     */
+    private int countInstructions(String callee, int nArgs, boolean inline) {
+        InstructionCounter counter = new InstructionCounter(new MemorySink(VMTranslator.FRAGMENT_BUFFER_SIZE));
+        CodeWriter codeWriter = new CodeWriter(counter, options);
+        if (inline) {
+            codeWriter.setInliner(this);
+        }
+        for (int i = 0; i < nArgs; i++) {
+            codeWriter.writePushPop(CommandType.C_PUSH, Segment.ARGUMENT, i);
+        }
+        if (callee != null) {
+            codeWriter.writeCall(callee, nArgs);
+        }
+        codeWriter.close();
+        return counter.getCount();
+    }
+}
@@ -0,0 +1,244 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Turns Hack assembly code into Hack machine code, the way the nand2tetris
+ * assembler does, so the code from CodeWriter can be run on the HackEmulator.
+ *
+ * - The first pass gives every (LABEL) the ROM address of the instruction after it.
+ * - The second pass encodes every instruction, new @symbols become variables from RAM[16] up.
+ * - Source map markers (comments starting with SOURCE_MARKER, written by CodeWriter
+ *      with --profile) are collected into a SourceMap which tells for every ROM
+ *      address which VM function and command it was written for.
+ *
+ * @author Jay Montoya
+ * @version 1.0
+ */
+public class HackAssembler {
+
+    /** comment which starts a source map marker: //@ function command **/
+    public static final String SOURCE_MARKER = "//@ ";
+
+    /** the first RAM address given to variables **/
+    public static final int FIRST_VARIABLE = 16;
+
+    /** the a bit and comp bits of every computation, keyed without spaces **/
+    private static final HashMap<String, Integer> COMP = new HashMap<>();
+
+    /** the jump bits of every jump **/
+    private static final HashMap<String, Integer> JUMP = new HashMap<>();
+
+    /** the symbols every program starts with **/
+    static final HashMap<String, Integer> PREDEFINED = new HashMap<>();
+
+    static {
+        String[][] table = {
+                {"0", "0101010"}, {"1", "0111111"}, {"-1", "0111010"},
+                {"D", "0001100"}, {"A", "0110000"}, {"!D", "0001101"}, {"!A", "0110001"},
+                {"-D", "0001111"}, {"-A", "0110011"}, {"D+1", "0011111"}, {"A+1", "0110111"},
+                {"D-1", "0001110"}, {"A-1", "0110010"}, {"D+A", "0000010"}, {"D-A", "0010011"},
+                {"A-D", "0000111"}, {"D&A", "0000000"}, {"D|A", "0010101"},
+                // the same computations with 1+x and the operands swapped
+                {"1+D", "0011111"}, {"1+A", "0110111"}, {"A+D", "0000010"},
+                {"A&D", "0000000"}, {"A|D", "0010101"}
+        };
+        for (String[] row : table) {
+            int bits = Integer.parseInt(row[1], 2);
+            COMP.put(row[0], bits);
+            // M is A with the a bit set
+            if (row[0].contains("A")) {
+                COMP.put(row[0].replace('A', 'M'), bits | 0b1000000);
+            }
+        }
+
+        String[] jumps = {"", "JGT", "JEQ", "JGE", "JLT", "JNE", "JLE", "JMP"};
+        for (int i = 0; i < jumps.length; i++) {
+            JUMP.put(jumps[i], i);
+        }
+
+        PREDEFINED.put("SP", 0);
+        PREDEFINED.put("LCL", 1);
+        PREDEFINED.put("ARG", 2);
+        PREDEFINED.put("THIS", 3);
+        PREDEFINED.put("THAT", 4);
+        for (int i = 0; i < 16; i++) {
+            PREDEFINED.put("R" + i, i);
+        }
+        PREDEFINED.put("SCREEN", 16384);
+        PREDEFINED.put("KBD", 24576);
+    }
+
+    /** the machine code, one instruction per ROM address **/
+    private short[] rom;
+
+    /** how many instructions are in the ROM **/
+    private int size;
+
+    /** every label and variable **/
+    private final HashMap<String, Integer> symbols = new HashMap<>();
+
+    /** where the VM code of every ROM address came from, empty if there were no markers **/
+    private final SourceMap sourceMap = new SourceMap();
+
+    /**
+     * Constructor for an assembler with the predefined symbols.
+     */
+    public HackAssembler() {
+        symbols.putAll(PREDEFINED);
+    }
+
+    /**
+     * Assembles a .asm file.
+     * @param fileName the name of the .asm file
+     * @throws VMTranslatorException if an instruction is not valid Hack assembly
+     */
+    public void assembleFile(String fileName) throws VMTranslatorException {
+        try {
+            assemble(Files.readAllLines(Paths.get(fileName)));
+        } catch (IOException e) {
+            throw new VMTranslatorException("[INVALID FILE]: could not read '" + fileName + "' -> " + e.getMessage());
+        }
+    }
+
+    /**
+     * Assembles lines of Hack assembly code.
+     * @param lines the code, one line per entry
+     * @throws VMTranslatorException if an instruction is not valid Hack assembly
+     */
+    public void assemble(List<String> lines) throws VMTranslatorException {
+        // first pass: find the labels and the source map
+        ArrayList<String> instructions = new ArrayList<>();
+        for (String line : lines) {
+            String trimmed = line.trim();
+            if (trimmed.startsWith(SOURCE_MARKER)) {
+                sourceMap.mark(instructions.size(), trimmed.substring(SOURCE_MARKER.length()));
+                continue;
+            }
+
+            int comment = trimmed.indexOf("//");
+            String code = ((comment == -1) ? trimmed : trimmed.substring(0, comment))
+                    .replace(" ", "").replace("\t", "");
+            if (code.isEmpty()) {
+                continue;
+            }
+            if (code.startsWith("(")) {
+                String label = code.substring(1, code.length() - 1);
+                symbols.put(label, instructions.size());
+                sourceMap.label(instructions.size(), label);
+            } else {
+                instructions.add(code);
+            }
+        }
+
+        // second pass: encode every instruction
+        rom = new short[instructions.size()];
+        size = instructions.size();
+        int nextVariable = FIRST_VARIABLE;
+        for (int i = 0; i < size; i++) {
+            String code = instructions.get(i);
+            if (code.startsWith("@")) {
+                String symbol = code.substring(1);
+                int value;
+                if (Character.isDigit(symbol.charAt(0))) {
+                    value = Integer.parseInt(symbol);
+                } else {
+                    Integer known = symbols.get(symbol);
+                    if (known == null) {
+                        known = nextVariable++;
+                        symbols.put(symbol, known);
+                    }
+                    value = known;
+                }
+                if (value > 32767) {
+                    throw new VMTranslatorException("[INVALID INSTRUCTION]: constant too big '" + code + "'");
+                }
+                rom[i] = (short) value;
+            } else {
+                rom[i] = (short) encode(code);
+            }
+        }
+        sourceMap.finish(size);
+    }
+
+    /**
+     * Encodes a C instruction, dest=comp;jump.
+     * @param code the instruction without spaces
+     * @return the machine code
+     * @throws VMTranslatorException if the instruction is not valid
+     */
+    static int encode(String code) throws VMTranslatorException {
+        String dest = "";
+        String comp = code;
+        String jump = "";
+        int equals = comp.indexOf('=');
+        if (equals != -1) {
+            dest = comp.substring(0, equals);
+            comp = comp.substring(equals + 1);
+        }
+        int semicolon = comp.indexOf(';');
+        if (semicolon != -1) {
+            jump = comp.substring(semicolon + 1);
+            comp = comp.substring(0, semicolon);
+        }
+
+        Integer compBits = COMP.get(comp);
+        Integer jumpBits = JUMP.get(jump);
+        if (compBits == null || jumpBits == null) {
+            throw new VMTranslatorException("[INVALID INSTRUCTION]: not a Hack instruction '" + code + "'");
+        }
+        int destBits = 0;
+        for (int i = 0; i < dest.length(); i++) {
+            switch (dest.charAt(i)) {
+                case 'A':
+                    destBits |= 4;
+                    break;
+                case 'D':
+                    destBits |= 2;
+                    break;
+                case 'M':
+                    destBits |= 1;
+                    break;
+                default:
+                    throw new VMTranslatorException("[INVALID INSTRUCTION]: bad destination '" + code + "'");
+            }
+        }
+        return 0b111 << 13 | compBits << 6 | destBits << 3 | jumpBits;
+    }
+
+    /**
+     * Accessor method for the machine code.
+     * @return the ROM, only the first getSize() entries are used
+     */
+    public short[] getRom() {
+        return rom;
+    }
+
+    /**
+     * Accessor method for the number of instructions.
+     * @return how many instructions are in the ROM
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Accessor method for the value of a label or variable.
+     * @param name the symbol
+     * @return the ROM address of the label or the RAM address of the variable, null if unknown
+     */
+    public Integer symbol(String name) {
+        return symbols.get(name);
+    }
+
+    /**
+     * Accessor method for the source map.
+     * @return where the VM code of every ROM address came from
+     */
+    public SourceMap getSourceMap() {
+        return sourceMap;
+    }
+}
@@ -0,0 +1,190 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Headless Hack CPU which runs machine code one instruction per clock cycle, like
+ * the nand2tetris CPU emulator does without the screen and keyboard.
+ *
+ * A run ends when the program jumps to the instruction right before the jump and
+ * that instruction loads its own address (an @LOOP, 0;JMP infinite loop, which is
+ * how every translated program ends), when the PC runs off the end of the ROM or
+ * after the given number of cycles.
+ *
+ * @author Jay Montoya
+ * @version 1.0
+ */
+public class HackEmulator {
+
+    /** the size of the RAM in words **/
+    public static final int RAM_SIZE = 32768;
+
+    /** the machine code **/
+    private final short[] rom;
+
+    /** how many instructions are in the ROM **/
+    private final int size;
+
+    /** the data memory **/
+    private final short[] ram = new short[RAM_SIZE];
+
+    /** the registers and the program counter **/
+    private short a;
+    private short d;
+    private int pc;
+
+    /** the clock cycles run so far **/
+    private long cycles;
+
+    /** how many instructions read M and how many wrote it **/
+    private long ramReads;
+    private long ramWrites;
+
+    /** whether the program ended in its final infinite loop **/
+    private boolean halted;
+
+    /**
+     * Constructor for an emulator loaded with machine code.
+     * @param rom the machine code
+     * @param size how many instructions of the array are used
+     */
+    public HackEmulator(short[] rom, int size) {
+        this.rom = rom;
+        this.size = size;
+    }
+
+    /**
+     * Reads the machine code of a .hack file, one 16 digit binary number per line.
+     * @param fileName the name of the .hack file
+     * @return the machine code
+     * @throws VMTranslatorException if the file can not be read or has a bad line
+     */
+    public static short[] readHackFile(String fileName) throws VMTranslatorException {
+        try {
+            List<String> lines = Files.readAllLines(Paths.get(fileName));
+            short[] rom = new short[lines.size()];
+            int size = 0;
+            for (String line : lines) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (line.length() != 16 || !line.matches("[01]+")) {
+                    throw new VMTranslatorException("[INVALID INSTRUCTION]: not Hack machine code '" + line + "'");
+                }
+                rom[size++] = (short) Integer.parseInt(line, 2);
+            }
+            return Arrays.copyOf(rom, size);
+        } catch (IOException e) {
+            throw new VMTranslatorException("[INVALID FILE]: could not read '" + fileName + "' -> " + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs the program from where it stopped.
+     * @param maxCycles stop after this many more cycles
+     * @param profiler told about every cycle and every jump, null for none
+     */
+    public void run(long maxCycles, HackProfiler profiler) {
+        long end = cycles + maxCycles;
+        while (cycles < end && pc < size) {
+            int instruction = rom[pc];
+            if (profiler != null) {
+                profiler.cycle(pc);
+            }
+            cycles++;
+
+            // A instruction: load a 15 bit constant
+            if ((instruction & 0x8000) == 0) {
+                a = (short) instruction;
+                pc++;
+                continue;
+            }
+
+            // C instruction: 111a cccc ccdd djjj
+            int address = a & 0x7FFF;
+            int x = d;
+            int y = a;
+            if ((instruction & 0x1000) != 0) {
+                y = ram[address];
+                ramReads++;
+            }
+            if ((instruction & 0x0800) != 0) x = 0;     // zx
+            if ((instruction & 0x0400) != 0) x = ~x;    // nx
+            if ((instruction & 0x0200) != 0) y = 0;     // zy
+            if ((instruction & 0x0100) != 0) y = ~y;    // ny
+            int out = ((instruction & 0x0080) != 0) ? x + y : x & y;   // f
+            if ((instruction & 0x0040) != 0) out = ~out;                // no
+            short result = (short) out;
+
+            // the jump goes to A as it was before this instruction
+            int target = a & 0xFFFF;
+            boolean jump = ((instruction & 0x4) != 0 && result < 0)
+                    || ((instruction & 0x2) != 0 && result == 0)
+                    || ((instruction & 0x1) != 0 && result > 0);
+
+            if ((instruction & 0x08) != 0) {
+                ram[address] = result;
+                ramWrites++;
+            }
+            if ((instruction & 0x20) != 0) a = result;
+            if ((instruction & 0x10) != 0) d = result;
+
+            if (!jump) {
+                pc++;
+                continue;
+            }
+            if ((instruction & 0x7) == 0x7 && target == pc - 1 && rom[pc - 1] == pc - 1) {
+                halted = true;
+                return;
+            }
+            if (profiler != null) {
+                profiler.jumped(pc, target);
+            }
+            pc = target;
+        }
+    }
+
+    /**
+     * Accessor method for a word of the RAM.
+     * @param address the RAM address
+     * @return the value there
+     */
+    public short ram(int address) {
+        return ram[address];
+    }
+
+    /**
+     * Accessor method for the number of cycles run.
+     * @return the clock cycles, one per instruction executed
+     */
+    public long getCycles() {
+        return cycles;
+    }
+
+    /**
+     * Accessor method for the number of RAM reads.
+     * @return how many instructions run so far read M
+     */
+    public long getRamReads() {
+        return ramReads;
+    }
+
+    /**
+     * Accessor method for the number of RAM writes.
+     * @return how many instructions run so far wrote M
+     */
+    public long getRamWrites() {
+        return ramWrites;
+    }
+
+    /**
+     * Accessor method for how the run ended.
+     * @return true if the program reached its final infinite loop
+     */
+    public boolean isHalted() {
+        return halted;
+    }
+}
@@ -0,0 +1,329 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runs translated code on the HackEmulator and tells where the cycles went.
+ *
+ * - The flat profile charges every cycle to the VM command, VM function and kind
+ *      of command (push, call, eq, ...) the instruction was written for, using the
+ *      SourceMap from the markers CodeWriter writes with --profile.
+ * - The call tree follows the calls as they happen: a jump from the code of a call
+ *      to the start of a function is a call, a jump from the code of a return to the
+ *      return address of the current frame is its return. Where the jump comes from
+ *      matters, a return address can be the start of the next function in the ROM.
+ *      A jump from the tail call routine to a function is a call which takes over
+ *      the frame of the function making it, and with it its return address.
+ *      Every node has its own cycles and the cycles of its callees.
+ *
+ * Usage: java HackProfiler file.asm|file.hack [--max-cycles N]
+ *      A .hack file has no markers, the source map is taken from the .asm file
+ *      next to it if there is one.
+ *
+ * @author Jay Montoya
+ * @version 1.0
+ */
+public class HackProfiler {
+
+    /** cycles run before giving up on a program which never ends **/
+    public static final long DEFAULT_MAX_CYCLES = 100_000_000L;
+
+    /** how many VM commands the flat profile lists **/
+    public static final int TOP_COMMANDS = 20;
+
+    /** how deep the call tree is printed, recursion goes deeper than anyone reads **/
+    public static final int MAX_TREE_DEPTH = 24;
+
+    /** the RAM address of LCL **/
+    private static final int LCL = 1;
+
+    /** where the code came from **/
+    private final SourceMap sourceMap;
+
+    /** the emulator running the code **/
+    private HackEmulator emulator;
+
+    /** the cycles run at every ROM address **/
+    private final long[] cyclesAt;
+
+    /** the root of the call tree, the bootstrap code **/
+    private final Node root = new Node("(bootstrap)");
+
+    /** the calls being run, innermost last **/
+    private final ArrayList<Frame> frames = new ArrayList<>();
+
+    /** the node the running code is charged to **/
+    private Node current = root;
+
+    /**
+     * A function in the call tree, reached through the calls of the nodes above it.
+     */
+    private static class Node {
+        private final String function;
+        private final HashMap<String, Node> children = new HashMap<>();
+        private long calls;
+        private long self;
+
+        Node(String function) {
+            this.function = function;
+        }
+
+        long total() {
+            long total = self;
+            for (Node child : children.values()) {
+                total += child.total();
+            }
+            return total;
+        }
+    }
+
+    /**
+     * A call being run: the node it is charged to and where it returns to.
+     */
+    private static class Frame {
+        private final Node node;
+        private final int returnAddress;
+
+        Frame(Node node, int returnAddress) {
+            this.node = node;
+            this.returnAddress = returnAddress;
+        }
+    }
+
+    /**
+     * Constructor for a profiler of code with the given source map.
+     * @param sourceMap where the code came from
+     * @param romSize how many instructions are in the ROM
+     */
+    public HackProfiler(SourceMap sourceMap, int romSize) {
+        this.sourceMap = sourceMap;
+        cyclesAt = new long[romSize];
+    }
+
+    /**
+     * Profiles a .asm or .hack file from the command line.
+     * @param args the file followed by the options
+     */
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.out.println("usage: java HackProfiler file.asm|file.hack [--max-cycles N]");
+            System.exit(0);
+        }
+        long maxCycles = DEFAULT_MAX_CYCLES;
+        for (int i = 1; i + 1 < args.length; i++) {
+            if (args[i].equals("--max-cycles")) {
+                maxCycles = Long.parseLong(args[++i]);
+            }
+        }
+        profileFile(args[0], maxCycles);
+    }
+
+    /**
+     * Runs a .asm or .hack file and prints its profile.
+     * @param fileName the name of the file
+     * @param maxCycles stop after this many cycles
+     */
+    public static void profileFile(String fileName, long maxCycles) {
+        try {
+            HackAssembler assembler = new HackAssembler();
+            short[] rom;
+            int size;
+            if (fileName.endsWith(".hack")) {
+                rom = HackEmulator.readHackFile(fileName);
+                size = rom.length;
+                String asmName = fileName.substring(0, fileName.length() - ".hack".length()) + ".asm";
+                if (new File(asmName).isFile()) {
+                    assembler.assembleFile(asmName);
+                }
+            } else {
+                assembler.assembleFile(fileName);
+                rom = assembler.getRom();
+                size = assembler.getSize();
+            }
+
+            HackProfiler profiler = new HackProfiler(assembler.getSourceMap(), size);
+            profiler.run(new HackEmulator(rom, size), maxCycles);
+            profiler.print();
+        } catch (VMTranslatorException e) {
+            System.out.println("FATAL ERROR");
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs the emulator with this profiler attached.
+     * @param emulator the emulator loaded with the code
+     * @param maxCycles stop after this many cycles
+     */
+    public void run(HackEmulator emulator, long maxCycles) {
+        this.emulator = emulator;
+        emulator.run(maxCycles, this);
+    }
+
+    /**
+     * Charges a cycle, called by the emulator for every instruction.
+     * @param pc the ROM address of the instruction
+     */
+    void cycle(int pc) {
+        cyclesAt[pc]++;
+        current.self++;
+    }
+
+    /**
+     * Follows the call tree, called by the emulator for every jump taken.
+     * @param from the ROM address of the jump instruction
+     * @param target the ROM address jumped to
+     */
+    void jumped(int from, int target) {
+        int command = sourceMap.commandAt(from);
+        if (command == -1) {
+            return;
+        }
+        String kind = sourceMap.kind(command);
+
+        if (kind.equals("return")) {
+            if (!frames.isEmpty() && frames.get(frames.size() - 1).returnAddress == target) {
+                frames.remove(frames.size() - 1);
+                current = frames.isEmpty() ? root : frames.get(frames.size() - 1).node;
+            }
+            return;
+        }
+
+        String function = sourceMap.functionAt(target);
+        if (function != null && kind.equals("tail-call") && !frames.isEmpty()) {
+            // the callee returns to where the caller would have, the caller never returns
+            Frame replaced = frames.remove(frames.size() - 1);
+            enter(function, replaced.returnAddress);
+        } else if (function != null && kind.equals("call")) {
+            // the call has just set LCL = SP, the return address is 5 below it
+            int frame = emulator.ram(LCL) - 5;
+            int returnAddress = (frame >= 0) ? emulator.ram(frame) & 0xFFFF : -1;
+            enter(function, returnAddress);
+        }
+    }
+
+    /**
+     * Helper method for following a call into a function, below the running node.
+     * @param function the function called
+     * @param returnAddress where the call returns to
+     */
+    private void enter(String function, int returnAddress) {
+        Node child = current.children.get(function);
+        if (child == null) {
+            child = new Node(function);
+            current.children.put(function, child);
+        }
+        child.calls++;
+        frames.add(new Frame(child, returnAddress));
+        current = child;
+    }
+
+    /**
+     * Prints the flat profile and the call tree.
+     */
+    public void print() {
+        long total = emulator.getCycles();
+        System.out.println("PROFILE: " + total + " cycles, " + emulator.getRamReads() + " RAM reads, "
+                + emulator.getRamWrites() + " RAM writes, "
+                + (emulator.isHalted() ? "ran to the end" : "stopped before the end"));
+        if (sourceMap.isEmpty()) {
+            System.out.println("no source map, translate with --profile to see where the cycles went");
+            return;
+        }
+
+        // charge the cycles of every ROM address to its command
+        long[] byCommand = new long[sourceMap.commandCount()];
+        long unmapped = 0;
+        for (int address = 0; address < cyclesAt.length; address++) {
+            int command = sourceMap.commandAt(address);
+            if (command == -1) {
+                unmapped += cyclesAt[address];
+            } else {
+                byCommand[command] += cyclesAt[address];
+            }
+        }
+
+        HashMap<String, Long> byKind = new HashMap<>();
+        HashMap<String, Long> byFunction = new HashMap<>();
+        for (int command = 0; command < byCommand.length; command++) {
+            byKind.merge(sourceMap.kind(command), byCommand[command], Long::sum);
+            byFunction.merge(sourceMap.owner(command), byCommand[command], Long::sum);
+        }
+        if (unmapped > 0) {
+            byKind.put("(unmapped)", unmapped);
+            byFunction.put("(unmapped)", unmapped);
+        }
+
+        System.out.println("\nFLAT PROFILE BY COMMAND KIND");
+        printSorted(byKind, total, Integer.MAX_VALUE);
+        System.out.println("\nFLAT PROFILE BY FUNCTION (self cycles)");
+        printSorted(byFunction, total, Integer.MAX_VALUE);
+
+        HashMap<String, Long> byCommandText = new HashMap<>();
+        for (int command = 0; command < byCommand.length; command++) {
+            if (byCommand[command] > 0) {
+                byCommandText.put(sourceMap.owner(command) + " #" + command + ": " + sourceMap.command(command),
+                        byCommand[command]);
+            }
+        }
+        System.out.println("\nFLAT PROFILE BY VM COMMAND (top " + TOP_COMMANDS + ")");
+        printSorted(byCommandText, total, TOP_COMMANDS);
+
+        System.out.println("\nCALL TREE (calls, self cycles, total cycles)");
+        printTree(root, 0, total);
+    }
+
+    /**
+     * Helper method for printing counters from the biggest down.
+     * @param counters the cycles of every name
+     * @param total the cycles of the whole run, what the percentages are of
+     * @param limit how many lines to print at most
+     */
+    static void printSorted(HashMap<String, Long> counters, long total, int limit) {
+        ArrayList<Map.Entry<String, Long>> entries = new ArrayList<>(counters.entrySet());
+        entries.sort((x, y) -> Long.compare(y.getValue(), x.getValue()));
+        for (int i = 0; i < entries.size() && i < limit; i++) {
+            Map.Entry<String, Long> entry = entries.get(i);
+            System.out.println(String.format("%14d %6.2f%%  %s", entry.getValue(),
+                    percent(entry.getValue(), total), entry.getKey()));
+        }
+    }
+
+    /**
+     * Helper method for printing a node of the call tree and everything below it.
+     * @param node the node
+     * @param depth how deep the node is
+     * @param total the cycles of the whole run
+     */
+    private static void printTree(Node node, int depth, long total) {
+        long nodeTotal = node.total();
+        StringBuilder indent = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            indent.append("  ");
+        }
+        System.out.println(String.format("%s%s  calls=%d self=%d total=%d (%.2f%%)", indent, node.function,
+                node.calls, node.self, nodeTotal, percent(nodeTotal, total)));
+
+        if (depth == MAX_TREE_DEPTH && !node.children.isEmpty()) {
+            System.out.println(indent + "  ...");
+            return;
+        }
+        ArrayList<Node> children = new ArrayList<>(node.children.values());
+        children.sort((x, y) -> Long.compare(y.total(), x.total()));
+        for (Node child : children) {
+            printTree(child, depth + 1, total);
+        }
+    }
+
+    /**
+     * Helper method for a share of the run.
+     * @param cycles the cycles of a part of the run
+     * @param total the cycles of the whole run
+     * @return the percentage
+     */
+    private static double percent(long cycles, long total) {
+        return (total == 0) ? 0 : 100.0 * cycles / total;
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Output sink which counts the hack instructions passing through it on their way
+ * to another sink. A line is an instruction unless it is blank, a comment or a
+ * label, the same rule the assembler uses, so the count is exactly how many ROM
+ * words the code takes.
+ *
+ * The CodeWriter puts it right in front of its sink, behind the peephole
+ * optimizer, so what is counted is the code which really ends up in the output.
+ * Looking at every byte is not free, so it is only there while metrics are collected.
+ *
+ * @author Jay Montoya
+ * @version 1.0
+ */
+public class InstructionCounter implements OutputSink {
+
+    /** the sink the code is passed on to **/
+    private final OutputSink downstream;
+
+    /** the instructions counted so far **/
+    private int count;
+
+    /** whether nothing but spaces has been seen on the current line yet **/
+    private boolean lineStart = true;
+
+    /**
+     * Constructor for a counter passing the code on to the given sink.
+     * @param downstream the sink the code is written to
+     */
+    public InstructionCounter(OutputSink downstream) {
+        this.downstream = downstream;
+    }
+
+    @Override
+    public OutputSink append(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            see(text.charAt(i));
+        }
+        downstream.append(text);
+        return this;
+    }
+
+    @Override
+    public OutputSink append(char c) {
+        see(c);
+        downstream.append(c);
+        return this;
+    }
+
+    @Override
+    public OutputSink append(int value) {
+        // a number is never a comment or a label
+        see('0');
+        downstream.append(value);
+        return this;
+    }
+
+    @Override
+    public OutputSink append(byte[] bytes, int offset, int length) {
+        // the same as see() on every byte, with the state kept in locals
+        boolean start = lineStart;
+        int lines = count;
+        for (int i = offset; i < offset + length; i++) {
+            byte c = bytes[i];
+            if (c == '\n') {
+                start = true;
+            } else if (start && c != ' ' && c != '\t') {
+                start = false;
+                if (c != '/' && c != '(') {
+                    lines++;
+                }
+            }
+        }
+        lineStart = start;
+        count = lines;
+        downstream.append(bytes, offset, length);
+        return this;
+    }
+
+    @Override
+    public void close() {
+        downstream.close();
+    }
+
+    /**
+     * Accessor method for the number of instructions.
+     * @return the instructions passed on so far
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Helper method for counting a line when its first character shows up.
+     * @param c the next character of the code
+     */
+    private void see(int c) {
+        if (c == '\n') {
+            lineStart = true;
+        } else if (lineStart && c != ' ' && c != '\t') {
+            lineStart = false;
+            if (c != '/' && c != '(') {
+                count++;
+            }
+        }
+    }
+}
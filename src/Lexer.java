@@ -0,0 +1,223 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Splits a .vm file into lines and tokens straight from a memory-mapped view of
+ * the file.
+ *
+ * - A token is only remembered as a start position and a length in the buffer,
+ *      nothing is allocated while lexing.
+ * - Comments (//) and blank space (spaces, tabs and carriage returns) are skipped.
+ * - Tokens are classified to Opcode and Segment values and numbers are parsed
+ *      where they sit in the buffer.
+ *
+ * @author Jay Montoya
+ * @version 1.0
+ */
+public class Lexer {
+
+    /** the most tokens of a line we keep track of, one more than any command needs **/
+    private static final int MAX_TOKENS = 4;
+
+    /** the contents of the file **/
+    private ByteBuffer input;
+
+    /** position of the next byte to read **/
+    private int position;
+
+    /** where each token of the current line starts **/
+    private final int[] tokenStart = new int[MAX_TOKENS];
+
+    /** how long each token of the current line is **/
+    private final int[] tokenLength = new int[MAX_TOKENS];
+
+    /** the number of tokens on the current line **/
+    private int tokenCount;
+
+    /** scratch space for turning a token into a string **/
+    private byte[] scratch = new byte[64];
+
+    /**
+     * Constructor for a lexer reading the given file.
+     * @param fileName the path of the file you wish to read
+     * @throws VMTranslatorException if the file can not be read
+     */
+    public Lexer(String fileName) throws VMTranslatorException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            input = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            throw new VMTranslatorException("[INVALID FILE]: could not read '" + fileName + "' -> " + e);
+        }
+        position = 0;
+    }
+
+    /**
+     * Constructor for a lexer reading from a buffer already in memory.
+     * @param input the contents of a .vm file
+     */
+    public Lexer(ByteBuffer input) {
+        this.input = input;
+        position = input.position();
+    }
+
+    /**
+     * Simple method for determining if there are more lines to read.
+     * @return true if there is at least one more line
+     */
+    public boolean hasMoreLines() {
+        return position < input.limit();
+    }
+
+    /**
+     * Reads the next line and splits it into tokens, dropping any comment.
+     * @return the number of tokens found on the line, 0 for a blank line
+     */
+    public int nextLine() {
+        int limit = input.limit();
+        tokenCount = 0;
+
+        // walk up to the end of the line
+        while (position < limit) {
+            byte b = input.get(position);
+            if (b == '\n') {
+                position++;
+                break;
+            } else if (b == ' ' || b == '\t' || b == '\r') {
+                position++;
+            } else if (b == '/' && position + 1 < limit && input.get(position + 1) == '/') {
+                // skip the rest of the line
+                while (position < limit && input.get(position) != '\n') {
+                    position++;
+                }
+            } else {
+                // read a token
+                int start = position;
+                while (position < limit) {
+                    b = input.get(position);
+                    if (b == ' ' || b == '\t' || b == '\r' || b == '\n'
+                            || (b == '/' && position + 1 < limit && input.get(position + 1) == '/')) {
+                        break;
+                    }
+                    position++;
+                }
+                if (tokenCount < MAX_TOKENS) {
+                    tokenStart[tokenCount] = start;
+                    tokenLength[tokenCount] = position - start;
+                }
+                tokenCount++;
+            }
+        }
+        return tokenCount;
+    }
+
+    /**
+     * Accessor method for the number of tokens on the current line.
+     * @return the token count
+     */
+    public int getTokenCount() {
+        return tokenCount;
+    }
+
+    /**
+     * Classifies a token of the current line as an opcode.
+     * @param token the index of the token on the line
+     * @return the matching opcode, or null if the token is not a command
+     */
+    public Opcode opcode(int token) {
+        for (Opcode opcode : Opcode.VALUES) {
+            if (matches(token, opcode.bytes)) {
+                return opcode;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Classifies a token of the current line as a memory segment.
+     * @param token the index of the token on the line
+     * @return the matching segment, or null if the token is not a segment
+     */
+    public Segment segment(int token) {
+        for (Segment segment : Segment.VALUES) {
+            if (matches(token, segment.bytes)) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses a token of the current line as a non-negative decimal number.
+     * @param token the index of the token on the line
+     * @return the value of the number
+     * @throws VMTranslatorException if the token is not a number
+     */
+    public int number(int token) throws VMTranslatorException {
+        int start = tokenStart[token];
+        int length = tokenLength[token];
+        int value = 0;
+        for (int i = start; i < start + length; i++) {
+            byte b = input.get(i);
+            if (b < '0' || b > '9' || value > (Integer.MAX_VALUE - 9) / 10) {
+                throw new VMTranslatorException("[INVALID NUMBER]: '" + text(token) + "' is not a number");
+            }
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Copies a token of the current line out as a string.
+     * @param token the index of the token on the line
+     * @return the token as a string
+     */
+    public String text(int token) {
+        int length = tokenLength[token];
+        if (scratch.length < length) {
+            scratch = new byte[length];
+        }
+        for (int i = 0; i < length; i++) {
+            scratch[i] = input.get(tokenStart[token] + i);
+        }
+        return new String(scratch, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Copies the current line, without comments, out as a string. Only meant
+     * for debugging output.
+     * @return the tokens of the line separated by single spaces
+     */
+    public String lineText() {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < Math.min(tokenCount, MAX_TOKENS); i++) {
+            if (i > 0) {
+                line.append(' ');
+            }
+            line.append(text(i));
+        }
+        return line.toString();
+    }
+
+    /**
+     * Helper method for comparing a token of the current line with a keyword.
+     * @param token the index of the token on the line
+     * @param keyword the keyword as ASCII bytes
+     * @return true if the token is exactly the keyword
+     */
+    private boolean matches(int token, byte[] keyword) {
+        if (tokenLength[token] != keyword.length) {
+            return false;
+        }
+        int start = tokenStart[token];
+        for (int i = 0; i < keyword.length; i++) {
+            if (input.get(start + i) != keyword[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
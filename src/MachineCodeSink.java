@@ -0,0 +1,273 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Output sink which turns the hack assembly code it is given straight into Hack
+ * machine code, so no .asm file has to be written and assembled again later.
+ *
+ * - Spaces and comments are dropped as the characters come in, every line is
+ *      encoded into a 16 bit word as soon as it ends.
+ * - The same C instructions come up over and over, so each one is only encoded
+ *      once and looked up after that.
+ * - Labels are collected as they come by and every @symbol is remembered with
+ *      its ROM address. On close the symbols are filled in (the second pass of the
+ *      symbol table), new ones become variables from RAM[16] up in the same order
+ *      HackAssembler gives them out, so the machine code is the same.
+ * - The words are written to the downstream sink as .hack text, one 16 digit
+ *      binary number per line, or packed as two bytes per word, high byte first.
+ * - Code which is not valid Hack, does not fit in the ROM or has a label past the
+ *      last address an A instruction can hold is not written at all. The first
+ *      thing wrong with it is kept and check() throws it once the sink is closed,
+ *      just like HackAssembler would have failed on the .asm file.
+ *
+ * @author Jay Montoya
+ * @version 1.0
+ */
+public class MachineCodeSink implements OutputSink {
+
+    /** the number of instructions the Hack ROM holds **/
+    public static final int ROM_SIZE = 32768;
+
+    /** the sink the machine code is written to **/
+    private final OutputSink downstream;
+
+    /** whether the words are packed two bytes each instead of written as .hack text **/
+    private final boolean binary;
+
+    /** the machine code so far, @symbols are 0 until close **/
+    private short[] rom = new short[4096];
+
+    /** how many instructions are in the ROM **/
+    private int size;
+
+    /** the ROM address of every label **/
+    private final HashMap<String, Integer> labels = new HashMap<>();
+
+    /** the machine code of every C instruction seen so far **/
+    private final HashMap<String, Integer> encoded = new HashMap<>();
+
+    /** the ROM address and symbol of every @symbol, filled in on close **/
+    private int[] symbolAt = new int[1024];
+    private String[] symbolNames = new String[1024];
+    private int symbolCount;
+
+    /** the line being collected, without spaces and comments **/
+    private byte[] line = new byte[64];
+    private int length;
+
+    /** whether the rest of the line is a comment **/
+    private boolean comment;
+
+    /** the first thing wrong with the code, null if nothing is **/
+    private String error;
+
+    /** scratch space for writing the digits of a number **/
+    private final byte[] digits = new byte[11];
+
+    /**
+     * Constructor for a sink writing machine code to the given sink.
+     * @param downstream the sink the machine code is written to
+     * @param binary true to pack the words, false to write .hack text
+     */
+    public MachineCodeSink(OutputSink downstream, boolean binary) {
+        this.downstream = downstream;
+        this.binary = binary;
+    }
+
+    @Override
+    public OutputSink append(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            append(text.charAt(i));
+        }
+        return this;
+    }
+
+    @Override
+    public OutputSink append(char c) {
+        if (c == '\n') {
+            endLine();
+        } else if (comment || c == ' ' || c == '\t' || c == '\r') {
+            // nothing to encode
+        } else if (c == '/' && length > 0 && line[length - 1] == '/') {
+            length--;
+            comment = true;
+        } else {
+            if (length == line.length) {
+                line = Arrays.copyOf(line, length * 2);
+            }
+            line[length++] = (byte) c;
+        }
+        return this;
+    }
+
+    @Override
+    public OutputSink append(int value) {
+        int count = MemorySink.formatInt(value, digits);
+        return append(digits, digits.length - count, count);
+    }
+
+    @Override
+    public OutputSink append(byte[] bytes, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            append((char) bytes[i]);
+        }
+        return this;
+    }
+
+    /**
+     * Fills in the symbols, writes the machine code and closes the downstream sink.
+     * Nothing is written if the code is not valid, see check().
+     */
+    @Override
+    public void close() {
+        endLine();
+
+        // second pass: labels first, then the predefined symbols, then new variables
+        HashMap<String, Integer> variables = new HashMap<>();
+        for (int i = 0; i < symbolCount; i++) {
+            String symbol = symbolNames[i];
+            Integer value = labels.get(symbol);
+            if (value == null) {
+                value = HackAssembler.PREDEFINED.get(symbol);
+            }
+            if (value == null) {
+                value = variables.get(symbol);
+                if (value == null) {
+                    value = HackAssembler.FIRST_VARIABLE + variables.size();
+                    variables.put(symbol, value);
+                }
+            }
+            if (value > 32767) {
+                fail("[INVALID INSTRUCTION]: constant too big '@" + symbol + "'");
+            }
+            rom[symbolAt[i]] = (short) (int) value;
+        }
+        if (size > ROM_SIZE) {
+            fail("[TOO BIG]: " + size + " instructions do not fit in the " + ROM_SIZE + " words of the ROM");
+        }
+        if (error != null) {
+            downstream.close();
+            return;
+        }
+
+        byte[] word = new byte[binary ? 2 : 17];
+        for (int i = 0; i < size; i++) {
+            int instruction = rom[i];
+            if (binary) {
+                word[0] = (byte) (instruction >> 8);
+                word[1] = (byte) instruction;
+            } else {
+                for (int bit = 0; bit < 16; bit++) {
+                    word[bit] = (byte) (((instruction >> (15 - bit)) & 1) == 0 ? '0' : '1');
+                }
+                word[16] = '\n';
+            }
+            downstream.append(word, 0, word.length);
+        }
+        downstream.close();
+    }
+
+    /**
+     * Checks the code once the sink is closed.
+     * @throws VMTranslatorException with the first thing wrong with the code, if anything is
+     */
+    public void check() throws VMTranslatorException {
+        if (error != null) {
+            throw new VMTranslatorException(error);
+        }
+    }
+
+    /**
+     * Accessor method for the number of instructions.
+     * @return how many instructions were encoded
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Helper method for encoding the line collected so far, if it holds an instruction.
+     */
+    private void endLine() {
+        comment = false;
+        if (length == 0) {
+            return;
+        }
+        if (line[0] == '(') {
+            labels.put(new String(line, 1, length - 2, StandardCharsets.US_ASCII), size);
+        } else if (line[0] == '@') {
+            boolean number = line[1] >= '0' && line[1] <= '9';
+            addInstruction(number ? constant() : 0);
+            if (!number) {
+                addSymbol(new String(line, 1, length - 1, StandardCharsets.US_ASCII));
+            }
+        } else {
+            String code = new String(line, 0, length, StandardCharsets.US_ASCII);
+            Integer instruction = encoded.get(code);
+            if (instruction == null) {
+                try {
+                    instruction = HackAssembler.encode(code);
+                } catch (VMTranslatorException e) {
+                    fail(e.getMessage());
+                    instruction = 0;
+                }
+                encoded.put(code, instruction);
+            }
+            addInstruction(instruction);
+        }
+        length = 0;
+    }
+
+    /**
+     * Helper method for reading the number of an @constant line.
+     * @return the number
+     */
+    private int constant() {
+        int value = 0;
+        for (int i = 1; i < length; i++) {
+            value = value * 10 + (line[i] - '0');
+            if (line[i] < '0' || line[i] > '9' || value > 32767) {
+                fail("[INVALID INSTRUCTION]: not a Hack constant '"
+                        + new String(line, 0, length, StandardCharsets.US_ASCII) + "'");
+                return 0;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Helper method for adding an instruction to the ROM.
+     * @param instruction the machine code
+     */
+    private void addInstruction(int instruction) {
+        if (size == rom.length) {
+            rom = Arrays.copyOf(rom, size * 2);
+        }
+        rom[size++] = (short) instruction;
+    }
+
+    /**
+     * Helper method for remembering that the last instruction loads a symbol.
+     * @param symbol the label or variable
+     */
+    private void addSymbol(String symbol) {
+        if (symbolCount == symbolAt.length) {
+            symbolAt = Arrays.copyOf(symbolAt, symbolCount * 2);
+            symbolNames = Arrays.copyOf(symbolNames, symbolCount * 2);
+        }
+        symbolAt[symbolCount] = size - 1;
+        symbolNames[symbolCount++] = symbol;
+    }
+
+    /**
+     * Helper method for remembering what is wrong with the code, only the first
+     * thing is kept.
+     * @param message what is wrong
+     */
+    private void fail(String message) {
+        if (error == null) {
+            error = message;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+import java.util.Arrays;
+
+/**
+ * Output sink which keeps everything in a growable in-memory byte array.
+ * Used to hold the translated fragment of a single .vm file until it is
+ * merged into the output file.
+ *
+ * @author Jay Montoya
+ * @version 1.0
+ */
+public class MemorySink implements OutputSink {
+
+    /** the bytes written so far **/
+    private byte[] buffer;
+
+    /** how many bytes of the buffer are in use **/
+    private int size;
+
+    /** scratch space for writing the digits of a number **/
+    private final byte[] digits = new byte[11];
+
+    /**
+     * Constructor for a memory sink with the given starting capacity.
+     * @param initialCapacity the number of bytes to reserve up front
+     */
+    public MemorySink(int initialCapacity) {
+        buffer = new byte[Math.max(16, initialCapacity)];
+        size = 0;
+    }
+
+    @Override
+    public OutputSink append(CharSequence text) {
+        int length = text.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            buffer[size++] = (byte) text.charAt(i);
+        }
+        return this;
+    }
+
+    @Override
+    public OutputSink append(char c) {
+        ensureCapacity(1);
+        buffer[size++] = (byte) c;
+        return this;
+    }
+
+    @Override
+    public OutputSink append(int value) {
+        int length = formatInt(value, digits);
+        return append(digits, digits.length - length, length);
+    }
+
+    @Override
+    public OutputSink append(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, buffer, size, length);
+        size += length;
+        return this;
+    }
+
+    /**
+     * Nothing to release, the bytes stay available for writeTo().
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Copies everything written so far into another sink.
+     * @param sink the sink to copy into
+     */
+    public void writeTo(OutputSink sink) {
+        sink.append(buffer, 0, size);
+    }
+
+    /**
+     * Copies everything written so far into a new array.
+     * @return the bytes written
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    /**
+     * Accessor method for the number of bytes written.
+     * @return the size in bytes
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Helper method for growing the buffer so the given number of bytes fit.
+     * @param extra the number of bytes about to be written
+     */
+    private void ensureCapacity(int extra) {
+        if (size + extra > buffer.length) {
+            byte[] bigger = new byte[Math.max(buffer.length * 2, size + extra)];
+            System.arraycopy(buffer, 0, bigger, 0, size);
+            buffer = bigger;
+        }
+    }
+
+    /**
+     * Writes the decimal digits of a number into the end of the given array.
+     * @param value the number to format
+     * @param digits scratch array of at least 11 bytes
+     * @return how many bytes at the end of the array hold the number
+     */
+    static int formatInt(int value, byte[] digits) {
+        int position = digits.length;
+        long remaining = value;
+        boolean negative = remaining < 0;
+        if (negative) {
+            remaining = -remaining;
+        }
+        do {
+            digits[--position] = (byte) ('0' + (remaining % 10));
+            remaining /= 10;
+        } while (remaining != 0);
+        if (negative) {
+            digits[--position] = '-';
+        }
+        return digits.length - position;
+    }
+}
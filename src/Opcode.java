@@ -0,0 +1,61 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Enumerated data type of every VM command keyword, along with the CommandType
+ * it belongs to. The keyword is kept as ASCII bytes so the Lexer can classify a
+ * token straight from the input buffer without building a string.
+ *
+ * @author Jay Montoya
+ * @version 1.0
+ */
+enum Opcode {
+    ADD("add", CommandType.C_ARITHMETIC),
+    SUB("sub", CommandType.C_ARITHMETIC),
+    NEG("neg", CommandType.C_ARITHMETIC),
+    EQ("eq", CommandType.C_ARITHMETIC),
+    GT("gt", CommandType.C_ARITHMETIC),
+    LT("lt", CommandType.C_ARITHMETIC),
+    AND("and", CommandType.C_ARITHMETIC),
+    OR("or", CommandType.C_ARITHMETIC),
+    NOT("not", CommandType.C_ARITHMETIC),
+    PUSH("push", CommandType.C_PUSH),
+    POP("pop", CommandType.C_POP),
+    LABEL("label", CommandType.C_LABEL),
+    GOTO("goto", CommandType.C_GOTO),
+    IF_GOTO("if-goto", CommandType.C_IF),
+    FUNCTION("function", CommandType.C_FUNCTION),
+    CALL("call", CommandType.C_CALL),
+    RETURN("return", CommandType.C_RETURN);
+
+    /** every opcode, cached so lookups do not copy the values() array **/
+    static final Opcode[] VALUES = values();
+
+    /** the keyword as it appears in a .vm file **/
+    final String keyword;
+
+    /** the keyword as ASCII bytes **/
+    final byte[] bytes;
+
+    /** the type of command this opcode is **/
+    final CommandType commandType;
+
+    Opcode(String keyword, CommandType commandType) {
+        this.keyword = keyword;
+        this.bytes = keyword.getBytes(StandardCharsets.US_ASCII);
+        this.commandType = commandType;
+    }
+
+    /**
+     * Finds the opcode for a keyword given as a string.
+     * @param word the keyword
+     * @return the matching opcode, or null if there is none
+     */
+    static Opcode fromKeyword(String word) {
+        for (Opcode opcode : VALUES) {
+            if (opcode.keyword.equals(word)) {
+                return opcode;
+            }
+        }
+        return null;
+    }
+}
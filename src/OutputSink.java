@@ -0,0 +1,47 @@
+/**
+ * Destination for the hack assembly code generated by the CodeWriter.
+ *
+ * - Everything written is plain ASCII, so characters are written as single bytes.
+ * - Implementations buffer what they are given and only hand it on when their
+ *      buffer fills up or when the sink is closed.
+ *
+ * @author Jay Montoya
+ * @version 1.0
+ */
+public interface OutputSink {
+
+    /**
+     * Appends every character of the given text.
+     * @param text the ASCII text to append
+     * @return this sink so calls can be chained
+     */
+    OutputSink append(CharSequence text);
+
+    /**
+     * Appends a single character.
+     * @param c the ASCII character to append
+     * @return this sink so calls can be chained
+     */
+    OutputSink append(char c);
+
+    /**
+     * Appends the decimal digits of the given number without building a string.
+     * @param value the number to append
+     * @return this sink so calls can be chained
+     */
+    OutputSink append(int value);
+
+    /**
+     * Appends raw bytes which are already ASCII encoded.
+     * @param bytes the array holding the bytes
+     * @param offset where in the array to start
+     * @param length how many bytes to append
+     * @return this sink so calls can be chained
+     */
+    OutputSink append(byte[] bytes, int offset, int length);
+
+    /**
+     * Writes out anything still buffered and releases the sink.
+     */
+    void close();
+}
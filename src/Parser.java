@@ -1,7 +1,4 @@
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.util.Scanner;
-import java.util.StringTokenizer;
+import java.nio.ByteBuffer;
 
 /**
  * Class responsible for parsing and updating fields for translation during the
@@ -11,6 +8,9 @@ import java.util.StringTokenizer;
  * - Reads a VM command, parses it into it's lexical components, and provides convenient
  *      access to these components.
  * - Ignores all whitespace and comments.
+ * - Reads the file through a Lexer, so commands are classified and numbers parsed
+ *      straight from the file bytes. Only label and function names are turned into
+ *      strings, and only when they are asked for.
  *
  * @author Jay Montoya
  * @version 1.0
@@ -20,36 +20,42 @@ public class Parser {
     /** the first argument of the VM command (ex. 'pop local') **/
     private String arg1;
 
-    /** the memory segment if applicable */
+    /** the memory segment if applicable, null until asked for when it is a name */
     private String arg2;
 
     /** the second argument of the VM command (usually having to do with registers) **/
     private int arg3;
 
+    /** the opcode of the current command **/
+    private Opcode opcode;
 
+    /** the memory segment of the current command if it is a push or pop **/
+    private Segment segment;
 
-    /** a scanner object to be used to read the input file **/
-    private Scanner inputFile;
+    /** the lexer used to read the input file **/
+    private Lexer lexer;
 
     /** the type of command the parser has encounters (see CommandType.java) **/
     private CommandType commandType;
 
-    /** raw line of the file **/
-    private String rawLine;
-    private String cleanLine;
     private int lineNumber;
 
     /**
      * Constructor for a parser object given the file name
      * @param fileName the path of the file you wish to read
+     * @throws VMTranslatorException if the file can not be read
      */
-    public Parser(String fileName) {
-        // initialize the scanner field
-        try {
-            inputFile = new Scanner(new File(fileName));
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        }
+    public Parser(String fileName) throws VMTranslatorException {
+        lexer = new Lexer(fileName);
+        lineNumber = 0;
+    }
+
+    /**
+     * Constructor for a parser object reading a file already in memory
+     * @param input the contents of a .vm file
+     */
+    public Parser(ByteBuffer input) {
+        lexer = new Lexer(input);
         lineNumber = 0;
     }
 
@@ -58,7 +64,7 @@ public class Parser {
      * @return a boolean value indicating if the parse can continue.
      */
     public boolean hasMoreCommands() {
-        return inputFile.hasNextLine();
+        return lexer.hasMoreLines();
     }
 
     /**
@@ -66,17 +72,16 @@ public class Parser {
      * Reads the next command from the input and makes it the current command.
      * Should be called only if hasMoreCommands() is true. Initially, there is
      * no current command
+     * @throws VMTranslatorException if the line is not a valid command
      */
-    public void advance() {
-        // get the net raw line.
-        rawLine = inputFile.nextLine(); // hi
+    public void advance() throws VMTranslatorException {
+        // split the next line into tokens
+        int tokens = lexer.nextLine();
 
-        cleanLine();
-
-        if (cleanLine.equals("")) {
-            //if (VMTranslator.DEBUG) System.out.println("\t\t\tEMPTY LINE");
-            //System.out.println("Unrecognized Command!");
+        if (tokens == 0) {
             commandType = CommandType.C_NONE;
+            opcode = null;
+            segment = null;
             setArg1("");
             arg2 = "";
             return;
@@ -84,137 +89,92 @@ public class Parser {
             lineNumber++;
         }
 
-        // parse everything
-        try {
-            parse();
-        } catch (Exception e) {
-            System.out.println("FATAL ERROR");
-            System.out.println(e.getMessage());
-            System.exit(0);
-        }
-
-        // show results
-        if (VMTranslator.DEBUG && commandType != CommandType.C_NONE) System.out.println("\tadvance() LINE " + lineNumber + " [ "
-                + cleanLine + " ] // " + getCommandType() + " // " + arg1 + " " + arg2 + " " + arg3);
-
-
+        // parse everything, a bad line is reported by whoever is translating the file
+        parse();
     }
 
 
     /**
      * Helper method for determining the command type of the line
      */
-    private void parse() throws Exception {
-
-        StringTokenizer st = new StringTokenizer(cleanLine);
-        if (VMTranslator.DEBUG) System.out.println("\tcleanLine -> " + cleanLine);
-
-        String firstWord = st.nextToken(" ");
-        if (VMTranslator.DEBUG) System.out.println("\tfirstWord -> " + firstWord);
-
-        if (validateArithmetic(firstWord)) {
-            // then it is an arithmetic command
-            arg1 = firstWord;
-            commandType = CommandType.C_ARITHMETIC;
-
-            // checking for extraneous syntax
-            if (st.hasMoreTokens()) {
-                String badToken = st.nextToken();
-                throw new VMTranslatorException("[ILLEGAL SYNTAX]: arithmetic commands must be stand alone -> found '"
-                        + badToken + "'");
-            }
-
-        } else if (firstWord.equals("push")) {
-            String secondWord = st.nextToken(" ");
-            if (!validateMemSegment(secondWord)) {
-                throw new VMTranslatorException("[INVALID MEMORY SEGMENT]: '" + secondWord + "' is not a validated memory segment");
-            }
-
-            commandType = CommandType.C_PUSH;
-            setArg1(firstWord);
-            arg2 = secondWord;
-
-            // get the specific number
-            setArg3(Integer.parseInt(st.nextToken()));
-
-        } else if (firstWord.equals("pop")) {
-            String secondWord = st.nextToken(" ");
-            if (!validateMemSegment(secondWord)) {
-                throw new VMTranslatorException("[INVALID MEMORY SEGMENT]: '" + secondWord + "' is not a validated memory segment");
-            }
-            commandType = CommandType.C_POP;
-            arg2 = secondWord;
-
-            // get the specific number
-            setArg3(Integer.parseInt(st.nextToken()));
-
-            // check for popping a constant
-            if (arg2.equals("constant")) {
-                throw new VMTranslatorException("[ILLEGAL COMMAND]: attempt to pop constant " + arg3);
-            }
-
-        } else if (validateBranchingCommand(firstWord)) {
-            String secondWord = st.nextToken(" ");
-
-            // set the command
-            switch (firstWord) {
-                case "label":
-                    commandType = CommandType.C_LABEL;
-                    break;
-                case "goto":
-                    commandType = CommandType.C_GOTO;
-                    break;
-                case "if-goto":
-                    commandType = CommandType.C_IF;
-                    break;
-            }
-
-            // let the second argument be the secondWord
-            // we are defining a label so we will recognize this as the label we wish to define.
-            // TODO: Check the label mapper to see if this word has already been mapped
-            // TODO: Make a label mapper lol
-            arg2 = secondWord;
-
-            // checking for extraneous syntax
-            if (st.hasMoreTokens()) {
-                String badToken = st.nextToken();
-                throw new VMTranslatorException("[ILLEGAL SYNTAX]: label commands must be two-part -> found extraneous '"
-                        + badToken + "'");
-            }
-        } else if (validateFunctionCommand(firstWord)) {
-            String secondWord = "";
-            try {
-                secondWord = st.nextToken(" ");
-            } catch (Exception e) {
-                System.out.println("nice try buddy");
-            }
-
-            // set the command
-            switch (firstWord) {
-                case "function":
-                    commandType = CommandType.C_FUNCTION;
-                    break;
-                case "call":
-                    commandType = CommandType.C_CALL;
-                    break;
-                case "return":
-                    commandType = CommandType.C_RETURN;
-                    break;
-            }
-
-            // let this second word be the function name
-            // TODO: Check the function name mapper to see if this word has already been mapped
-            // TODO: Make a function mapper lol <- combine with the label mapper??
-            if (!secondWord.equals(""))
-                arg2 = secondWord;
-
-            // let the next integer be the nArgs
-            // get the specific number (this will be the nArgs)
-            if (!secondWord.equals(""))
-                setArg3(Integer.parseInt(st.nextToken()));
+    private void parse() throws VMTranslatorException {
 
-        } else {
-            throw new VMTranslatorException("[INVALID COMMAND]: unrecognized command! '" + firstWord + "'");
+        int tokens = lexer.getTokenCount();
+
+        opcode = lexer.opcode(0);
+        if (opcode == null) {
+            throw new VMTranslatorException("[INVALID COMMAND]: unrecognized command! '" + lexer.text(0) + "'");
+        }
+
+        commandType = opcode.commandType;
+        setArg1(opcode.keyword);
+        segment = null;
+        arg2 = "";
+
+        switch (commandType) {
+            case C_ARITHMETIC:
+                // checking for extraneous syntax
+                if (tokens > 1) {
+                    throw new VMTranslatorException("[ILLEGAL SYNTAX]: arithmetic commands must be stand alone -> found '"
+                            + lexer.text(1) + "'");
+                }
+                break;
+
+            case C_PUSH:
+            case C_POP:
+                if (tokens < 3) {
+                    throw new VMTranslatorException("[ILLEGAL SYNTAX]: " + opcode.keyword
+                            + " commands need a memory segment and an index");
+                }
+                segment = lexer.segment(1);
+                if (segment == null) {
+                    throw new VMTranslatorException("[INVALID MEMORY SEGMENT]: '" + lexer.text(1) + "' is not a validated memory segment");
+                }
+                arg2 = segment.keyword;
+
+                // get the specific number
+                setArg3(lexer.number(2));
+
+                // check for popping a constant
+                if (commandType == CommandType.C_POP && segment == Segment.CONSTANT) {
+                    throw new VMTranslatorException("[ILLEGAL COMMAND]: attempt to pop constant " + arg3);
+                }
+                break;
+
+            case C_LABEL:
+            case C_GOTO:
+            case C_IF:
+                if (tokens < 2) {
+                    throw new VMTranslatorException("[ILLEGAL SYNTAX]: label commands must be two-part -> missing the label");
+                }
+
+                // checking for extraneous syntax
+                if (tokens > 2) {
+                    throw new VMTranslatorException("[ILLEGAL SYNTAX]: label commands must be two-part -> found extraneous '"
+                            + lexer.text(2) + "'");
+                }
+
+                // the label name is only copied out when it is asked for
+                arg2 = null;
+                break;
+
+            case C_FUNCTION:
+            case C_CALL:
+                if (tokens < 3) {
+                    throw new VMTranslatorException("[ILLEGAL SYNTAX]: " + opcode.keyword
+                            + " commands need a function name and a number");
+                }
+
+                // the function name is only copied out when it is asked for
+                arg2 = null;
+
+                // let the next integer be the nArgs
+                setArg3(lexer.number(2));
+                break;
+
+            default:
+                // return has no arguments
+                break;
         }
     }
 
@@ -231,9 +191,28 @@ public class Parser {
      * @return arg2 string
      */
     public String getArg2() {
+        if (arg2 == null) {
+            arg2 = lexer.text(1);
+        }
         return arg2;
     }
 
+    /**
+     * Accessor method for the opcode of the current command.
+     * @return the opcode, null for a blank line
+     */
+    public Opcode getOpcode() {
+        return opcode;
+    }
+
+    /**
+     * Accessor method for the memory segment of the current command.
+     * @return the segment, null unless the command is a push or pop
+     */
+    public Segment getSegment() {
+        return segment;
+    }
+
     /**
      * Accessor method for the lines read
      * @return lines read as a string
@@ -247,15 +226,8 @@ public class Parser {
      * @return Boolean result.
      */
     public boolean validateArithmetic(String word) {
-        return (word.equals("add") ||
-                word.equals("sub") ||
-                word.equals("neg") ||
-                word.equals("eq") ||
-                word.equals("gt") ||
-                word.equals("lt") ||
-                word.equals("and") ||
-                word.equals("or") ||
-                word.equals("not") );
+        Opcode opcode = Opcode.fromKeyword(word);
+        return opcode != null && opcode.commandType == CommandType.C_ARITHMETIC;
     }
 
     /**
@@ -264,14 +236,7 @@ public class Parser {
      * @return A boolean result.
      */
     public boolean validateMemSegment(String word) {
-        return (word.equals("local") ||
-                word.equals("argument") ||
-                word.equals("this") ||
-                word.equals("that") ||
-                word.equals("constant") ||
-                word.equals("static") ||
-                word.equals("pointer") ||
-                word.equals("temp") );
+        return Segment.fromKeyword(word) != null;
     }
 
     /**
@@ -280,9 +245,8 @@ public class Parser {
      * @return A boolean result.
      */
     public boolean validateBranchingCommand(String word) {
-        return (word.equals("label") ||
-                word.equals("goto") ||
-                word.equals("if-goto"));
+        Opcode opcode = Opcode.fromKeyword(word);
+        return opcode == Opcode.LABEL || opcode == Opcode.GOTO || opcode == Opcode.IF_GOTO;
     }
 
     /**
@@ -291,26 +255,10 @@ public class Parser {
      * @return A boolean result.
      */
     public boolean validateFunctionCommand(String word) {
-        return (word.equals("function") ||
-                word.equals("call") ||
-                word.equals("return"));
+        Opcode opcode = Opcode.fromKeyword(word);
+        return opcode == Opcode.FUNCTION || opcode == Opcode.CALL || opcode == Opcode.RETURN;
     }
 
-    /**
-     * Helper method for cleaning the line contents/
-     * @return a String representing a clean line in the file.
-     */
-    public void cleanLine() {
-        cleanLine = rawLine.trim();
-        int index = cleanLine.indexOf("//");
-
-
-        cleanLine = (index != -1)
-                ? cleanLine.substring(0, index).trim()
-                : cleanLine.trim();
-    }
-
-
     /**
      * Accessor method for arg1. Returns the first argumnt of the
      * command. In the case of C_ARITHMETIC, the command itself,
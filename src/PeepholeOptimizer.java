@@ -0,0 +1,440 @@
+import java.util.ArrayList;
+
+/**
+ * Peephole optimizer which sits between the CodeWriter and the output sink.
+ *
+ * - Assembly code is collected line by line into a sliding window of instructions.
+ * - Rewrite rules are run over the window every time an instruction comes in, and
+ *      instructions are only passed on once they slide out of the window.
+ * - Labels end the window, since code can jump to them from anywhere.
+ * - Memory above the stack pointer is treated as dead, so a value pushed and then
+ *      popped right away does not have to be stored there.
+ * - The number of instructions each rule removes is kept for the report.
+ *
+ * RULES:
+ * 1) push/pop fusion: a push of D followed directly by a pop into D.
+ * 2) SP increment/decrement: SP = SP + 1 followed directly by SP = SP - 1.
+ * 3) push/pop around address: a push of D, some code computing a pop address,
+ *      then the pop. D is parked in R15 instead of going through the stack.
+ * 4) redundant reload: an @X or D = M which reloads what is already in A or D.
+ *
+ * @author Jay Montoya
+ * @version 1.0
+ */
+public class PeepholeOptimizer implements OutputSink {
+
+    /** names of the rules, in the order their counts are kept **/
+    public static final String[] RULE_NAMES = {
+            "push/pop fusion",
+            "SP increment/decrement",
+            "push/pop around address",
+            "redundant reload"
+    };
+    public static final int PUSH_POP = 0;
+    public static final int SP_CANCEL = 1;
+    public static final int POP_AROUND = 2;
+    public static final int RELOAD = 3;
+
+    /** how many instructions are kept in the window before they are passed on **/
+    private static final int WINDOW_SIZE = 24;
+
+    /** the most instructions allowed between a push and pop for rule 3 **/
+    private static final int MAX_ADDRESS_CODE = 10;
+
+    /** pushes D: the end of a push of constant, static, pointer and call code **/
+    private static final String[] PUSH_D = {"@SP", "AM=M+1", "A=A-1", "M=D"};
+
+    /** pushes D: the end of a push of local, argument, this, that and temp **/
+    private static final String[] PUSH_D_SLOW = {"@SP", "A=M", "M=D", "@SP", "M=M+1"};
+
+    /** pops the top of the stack into D **/
+    private static final String[] POP_D = {"@SP", "AM=M-1", "D=M"};
+
+    /** the sink the optimized code is passed on to **/
+    private final OutputSink downstream;
+
+    /** the lines waiting in the window **/
+    private final ArrayList<Line> window = new ArrayList<>();
+
+    /** the line currently being collected **/
+    private final StringBuilder currentLine = new StringBuilder();
+
+    /** instructions removed by each rule **/
+    private final int[] removed = new int[RULE_NAMES.length];
+
+    /** what A is known to hold in the passed on code: "X" after @X, "*X" after @X A = M **/
+    private String knownA;
+
+    /** the last instruction passed on, if nothing changed A or D since **/
+    private String lastCode;
+
+    /**
+     * A line of assembly code in the window.
+     */
+    private static class Line {
+        /** the line as it was written **/
+        final String text;
+        /** the instruction without spaces and comments, null if the line is no instruction **/
+        final String code;
+
+        Line(String text, String code) {
+            this.text = text;
+            this.code = code;
+        }
+    }
+
+    /**
+     * Constructor for an optimizer passing its output on to the given sink.
+     * @param downstream the sink the optimized code is written to
+     */
+    public PeepholeOptimizer(OutputSink downstream) {
+        this.downstream = downstream;
+    }
+
+    @Override
+    public OutputSink append(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            append(text.charAt(i));
+        }
+        return this;
+    }
+
+    @Override
+    public OutputSink append(char c) {
+        if (c == '\n') {
+            addLine(currentLine.toString());
+            currentLine.setLength(0);
+        } else {
+            currentLine.append(c);
+        }
+        return this;
+    }
+
+    @Override
+    public OutputSink append(int value) {
+        currentLine.append(value);
+        return this;
+    }
+
+    @Override
+    public OutputSink append(byte[] bytes, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            append((char) bytes[i]);
+        }
+        return this;
+    }
+
+    /**
+     * Passes on everything in the window and closes the sink behind it.
+     */
+    @Override
+    public void close() {
+        flush();
+        downstream.close();
+    }
+
+    /**
+     * Runs the rules one last time and passes on everything in the window. Used
+     * before writing to the sink behind the optimizer directly.
+     */
+    public void flush() {
+        if (currentLine.length() > 0) {
+            addLine(currentLine.toString());
+            currentLine.setLength(0);
+        }
+        optimize(true);
+        while (!window.isEmpty()) {
+            emitFirst();
+        }
+        knownA = null;
+        lastCode = null;
+    }
+
+    /**
+     * Accessor method for the instructions removed by each rule.
+     * @return the counts, indexed like RULE_NAMES
+     */
+    public int[] getRemoved() {
+        return removed;
+    }
+
+    /**
+     * Adds the instructions removed by each rule to the report.
+     * @param report the report of the translation
+     */
+    public void addTo(TranslationReport report) {
+        for (int i = 0; i < removed.length; i++) {
+            report.add("PEEPHOLE " + RULE_NAMES[i] + " (instructions removed)", removed[i]);
+        }
+    }
+
+    /**
+     * Helper method for taking in a full line of assembly code.
+     * @param text the line without its newline
+     */
+    private void addLine(String text) {
+        String trimmed = text.trim();
+        if (trimmed.startsWith("(")) {
+            // code can jump to a label from anywhere, so the window ends here
+            optimize(true);
+            while (!window.isEmpty()) {
+                emitFirst();
+            }
+            knownA = null;
+            lastCode = null;
+            downstream.append(text).append('\n');
+            return;
+        }
+
+        String code = null;
+        int comment = trimmed.indexOf("//");
+        String instruction = (comment == -1) ? trimmed : trimmed.substring(0, comment);
+        if (!instruction.trim().isEmpty()) {
+            code = instruction.replace(" ", "").replace("\t", "");
+        }
+        window.add(new Line(text, code));
+
+        if (code != null) {
+            optimize(false);
+            while (instructionCount() > WINDOW_SIZE) {
+                emitFirst();
+            }
+        }
+    }
+
+    /**
+     * Runs the rules over the window until none of them applies.
+     * @param atEnd true if no more instructions will follow the window
+     */
+    private void optimize(boolean atEnd) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int[] at = instructionIndexes();
+            int last = atEnd ? at.length - 1 : at.length - 2;
+            for (int end = last; end >= 0 && !changed; end--) {
+                String next = (end + 1 < at.length) ? window.get(at[end + 1]).code : null;
+                changed = pushPop(at, end, next) || spCancel(at, end) || popAround(at, end, next);
+            }
+        }
+    }
+
+    /**
+     * Rule 1: a push of D followed directly by a pop into D leaves D as it was.
+     */
+    private boolean pushPop(int[] at, int end, String next) {
+        int popStart = end - POP_D.length + 1;
+        if (!matches(at, popStart, POP_D)) {
+            return false;
+        }
+        int pushLength;
+        if (matches(at, popStart - PUSH_D.length, PUSH_D)) {
+            pushLength = PUSH_D.length;
+        } else if (matches(at, popStart - PUSH_D_SLOW.length, PUSH_D_SLOW)) {
+            pushLength = PUSH_D_SLOW.length;
+        } else {
+            return false;
+        }
+        int start = popStart - pushLength;
+        int length = pushLength + POP_D.length;
+
+        if (next != null && next.startsWith("@")) {
+            // A is reloaded right away, so nothing is left to do
+            replace(at, start, length, new String[0]);
+            removed[PUSH_POP] += length;
+        } else if ("A=A-1".equals(next)) {
+            // the next command works on the value under the old top
+            replace(at, start, length + 1, new String[]{"@SP", "A = M - 1"});
+            removed[PUSH_POP] += length + 1 - 2;
+        } else {
+            // leave A pointing at the old top with D stored there
+            replace(at, start, length, new String[]{"@SP", "A = M", "M = D"});
+            removed[PUSH_POP] += length - 3;
+        }
+        return true;
+    }
+
+    /**
+     * Rule 2: SP = SP + 1 then SP = SP - 1 only leaves A pointing at the top.
+     */
+    private boolean spCancel(int[] at, int end) {
+        String[] pattern = {"@SP", "M=M+1", "@SP", "AM=M-1"};
+        int start = end - pattern.length + 1;
+        if (!matches(at, start, pattern)) {
+            return false;
+        }
+        replace(at, start, pattern.length, new String[]{"@SP", "A = M"});
+        removed[SP_CANCEL] += 2;
+        return true;
+    }
+
+    /**
+     * Rule 3: a push of D, code computing where to pop to, then a pop into D.
+     * D is parked in R15 while the address is computed.
+     */
+    private boolean popAround(int[] at, int end, String next) {
+        int popStart = end - POP_D.length + 1;
+        if (next == null || !next.startsWith("@") || !matches(at, popStart, POP_D)) {
+            return false;
+        }
+
+        // walk back over the address code looking for the push
+        for (int pushEnd = popStart - 2; pushEnd >= 0 && popStart - pushEnd - 1 <= MAX_ADDRESS_CODE; pushEnd--) {
+            String code = window.get(at[pushEnd + 1]).code;
+            if (code.equals("@SP") || code.equals("@R15") || code.indexOf(';') != -1) {
+                return false;
+            }
+            if (!window.get(at[pushEnd + 1]).code.startsWith("@")) {
+                continue;
+            }
+            int pushLength;
+            if (matches(at, pushEnd - PUSH_D.length + 1, PUSH_D)) {
+                pushLength = PUSH_D.length;
+            } else if (matches(at, pushEnd - PUSH_D_SLOW.length + 1, PUSH_D_SLOW)) {
+                pushLength = PUSH_D_SLOW.length;
+            } else {
+                continue;
+            }
+
+            // replace the pop first so the push indexes stay valid
+            replace(at, popStart, POP_D.length, new String[]{"@R15", "D = M"});
+            replace(at, pushEnd - pushLength + 1, pushLength, new String[]{"@R15", "M = D"});
+            removed[POP_AROUND] += pushLength + POP_D.length - 4;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Helper method for passing on the first line of the window. Rule 4 is applied
+     * here since it depends on everything passed on before.
+     */
+    private void emitFirst() {
+        Line line = window.remove(0);
+        String code = line.code;
+        if (code == null) {
+            downstream.append(line.text).append('\n');
+            return;
+        }
+
+        // rule 4: A already holds this address
+        if (code.startsWith("@")) {
+            String symbol = code.substring(1);
+            if (symbol.equals(knownA)) {
+                removed[RELOAD]++;
+                return;
+            }
+            Line next = firstInstruction();
+            if (next != null && next.code.equals("A=M") && ("*" + symbol).equals(knownA)) {
+                window.remove(next);
+                removed[RELOAD] += 2;
+                return;
+            }
+        }
+
+        // rule 4: D already holds M
+        if (code.equals("D=M") && ("M=D".equals(lastCode) || "D=M".equals(lastCode))) {
+            removed[RELOAD]++;
+            return;
+        }
+
+        // keep track of what A holds
+        int equals = code.indexOf('=');
+        String dest = (equals == -1) ? "" : code.substring(0, equals);
+        if (code.startsWith("@")) {
+            knownA = code.substring(1);
+        } else if (dest.indexOf('A') != -1) {
+            knownA = (code.equals("A=M") && knownA != null && !knownA.startsWith("*"))
+                    ? "*" + knownA : null;
+        }
+        lastCode = (code.startsWith("@") || code.indexOf(';') != -1) ? null : code;
+
+        downstream.append(line.text).append('\n');
+    }
+
+    /**
+     * Helper method for finding the first instruction left in the window.
+     * @return the line, or null if there is no instruction in the window
+     */
+    private Line firstInstruction() {
+        for (Line line : window) {
+            if (line.code != null) {
+                return line;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Helper method for counting the instructions in the window.
+     * @return the number of instructions
+     */
+    private int instructionCount() {
+        int count = 0;
+        for (Line line : window) {
+            if (line.code != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Helper method for finding where the instructions sit in the window.
+     * @return the window index of every instruction, in order
+     */
+    private int[] instructionIndexes() {
+        int[] at = new int[instructionCount()];
+        int n = 0;
+        for (int i = 0; i < window.size(); i++) {
+            if (window.get(i).code != null) {
+                at[n++] = i;
+            }
+        }
+        return at;
+    }
+
+    /**
+     * Helper method for checking the instructions starting at the given one.
+     * @param at the window index of every instruction
+     * @param start the first instruction to check
+     * @param pattern the instructions expected, without spaces
+     * @return true if every instruction matches
+     */
+    private boolean matches(int[] at, int start, String[] pattern) {
+        if (start < 0 || start + pattern.length > at.length) {
+            return false;
+        }
+        for (int i = 0; i < pattern.length; i++) {
+            if (!window.get(at[start + i]).code.equals(pattern[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Helper method for replacing a run of instructions. Comment lines in the
+     * middle of the run are kept in front of the replacement.
+     * @param at the window index of every instruction
+     * @param start the first instruction to replace
+     * @param length how many instructions to replace
+     * @param replacement the new instructions
+     */
+    private void replace(int[] at, int start, int length, String[] replacement) {
+        int first = at[start];
+        int last = at[start + length - 1];
+        ArrayList<Line> kept = new ArrayList<>();
+        for (int i = first; i <= last; i++) {
+            Line line = window.get(i);
+            if (line.code == null) {
+                kept.add(line);
+            }
+        }
+        for (String instruction : replacement) {
+            kept.add(new Line(instruction, instruction.replace(" ", "")));
+        }
+        window.subList(first, last + 1).clear();
+        window.addAll(first, kept);
+    }
+}
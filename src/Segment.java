@@ -0,0 +1,51 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Enumerated data type of the VM memory segments, along with the assembly
+ * symbol holding the base address of the segment where there is one.
+ *
+ * @author Jay Montoya
+ * @version 1.0
+ */
+enum Segment {
+    LOCAL("local", "LCL"),
+    ARGUMENT("argument", "ARG"),
+    THIS("this", "THIS"),
+    THAT("that", "THAT"),
+    CONSTANT("constant", ""),
+    STATIC("static", ""),
+    POINTER("pointer", ""),
+    TEMP("temp", "");
+
+    /** every segment, cached so lookups do not copy the values() array **/
+    static final Segment[] VALUES = values();
+
+    /** the segment name as it appears in a .vm file **/
+    final String keyword;
+
+    /** the segment name as ASCII bytes **/
+    final byte[] bytes;
+
+    /** the assembly symbol of the segment base, empty if it has none **/
+    final String symbol;
+
+    Segment(String keyword, String symbol) {
+        this.keyword = keyword;
+        this.bytes = keyword.getBytes(StandardCharsets.US_ASCII);
+        this.symbol = symbol;
+    }
+
+    /**
+     * Finds the segment for a name given as a string.
+     * @param word the segment name
+     * @return the matching segment, or null if there is none
+     */
+    static Segment fromKeyword(String word) {
+        for (Segment segment : VALUES) {
+            if (segment.keyword.equals(word)) {
+                return segment;
+            }
+        }
+        return null;
+    }
+}
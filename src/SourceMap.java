@@ -0,0 +1,130 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Tells for every ROM address which VM function and VM command it was written for.
+ * Built by HackAssembler from the markers CodeWriter writes with --profile.
+ *
+ * @author Jay Montoya
+ * @version 1.0
+ */
+public class SourceMap {
+
+    /** the function (or file) of every command **/
+    private final ArrayList<String> owners = new ArrayList<>();
+
+    /** the text of every command, like "push argument 0" **/
+    private final ArrayList<String> commands = new ArrayList<>();
+
+    /** the ROM address where the code of every command starts **/
+    private final ArrayList<Integer> starts = new ArrayList<>();
+
+    /** the function which starts at a ROM address **/
+    private final HashMap<Integer, String> entries = new HashMap<>();
+
+    /** the command of every ROM address, -1 before the first command **/
+    private int[] commandAt = new int[0];
+
+    /**
+     * Adds a command, its code starts at the given address.
+     * @param address the ROM address of the first instruction of the command
+     * @param marker the marker without the comment, "function command..."
+     */
+    void mark(int address, String marker) {
+        int space = marker.indexOf(' ');
+        owners.add((space == -1) ? marker : marker.substring(0, space));
+        commands.add((space == -1) ? "" : marker.substring(space + 1));
+        starts.add(address);
+    }
+
+    /**
+     * Tells the map about a label, which is where a function starts if the label
+     * comes right after the marker of its function command.
+     * @param address the ROM address of the label
+     * @param label the name of the label
+     */
+    void label(int address, String label) {
+        int last = commands.size() - 1;
+        if (last >= 0 && kind(last).equals("function") && owners.get(last).equals(label)) {
+            entries.put(address, label);
+        }
+    }
+
+    /**
+     * Works out the command of every ROM address once every marker is known.
+     * @param romSize how many instructions are in the ROM
+     */
+    void finish(int romSize) {
+        commandAt = new int[romSize];
+        int command = -1;
+        for (int address = 0; address < romSize; address++) {
+            while (command + 1 < starts.size() && starts.get(command + 1) <= address) {
+                command++;
+            }
+            commandAt[address] = command;
+        }
+    }
+
+    /**
+     * Checks if there was anything to map.
+     * @return true if the code had no markers
+     */
+    public boolean isEmpty() {
+        return commands.isEmpty();
+    }
+
+    /**
+     * Accessor method for the number of commands.
+     * @return how many commands the map knows
+     */
+    public int commandCount() {
+        return commands.size();
+    }
+
+    /**
+     * Finds the command a ROM address was written for.
+     * @param address the ROM address
+     * @return the index of the command, -1 if there is none
+     */
+    public int commandAt(int address) {
+        return (address < commandAt.length) ? commandAt[address] : -1;
+    }
+
+    /**
+     * Accessor method for the function of a command.
+     * @param command the index of the command
+     * @return the function, or the file for commands outside of any function
+     */
+    public String owner(int command) {
+        return owners.get(command);
+    }
+
+    /**
+     * Accessor method for the text of a command.
+     * @param command the index of the command
+     * @return the command, like "push argument 0"
+     */
+    public String command(int command) {
+        return commands.get(command);
+    }
+
+    /**
+     * Accessor method for the kind of a command, its first word.
+     * @param command the index of the command
+     * @return the kind, like "push" or "call"
+     */
+    public String kind(int command) {
+        String text = commands.get(command);
+        int space = text.indexOf(' ');
+        return (space == -1) ? text : text.substring(0, space);
+    }
+
+    /**
+     * Finds the function which starts at a ROM address.
+     * @param address the ROM address
+     * @return the function, null if no function starts there
+     */
+    public String functionAt(int address) {
+        return entries.get(address);
+    }
+}
@@ -0,0 +1,97 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Interns label and function names to small int ids, so commands can refer to
+ * them by number. Every name is also encoded to ASCII once, when it is first
+ * seen, so the CodeWriter can copy the bytes straight into its sink instead of
+ * going through the String every time the name is written.
+ *
+ * Only one thread may intern, but another thread may look up the name of any id
+ * handed to it through a volatile write made after the id was interned, like the
+ * commands going through the CommandRing. That is why the names are kept in
+ * arrays which are swapped whole when they grow, instead of in an ArrayList.
+ *
+ * @author Jay Montoya
+ * @version 1.0
+ */
+public class SymbolTable {
+
+    /** the id of every name seen so far **/
+    private final HashMap<String, Integer> ids = new HashMap<>();
+
+    /** the name of every id, in the order they were handed out **/
+    private volatile String[] names = new String[16];
+
+    /** the ASCII bytes of every name, by id **/
+    private volatile byte[][] encoded = new byte[16][];
+
+    /** the number of ids handed out **/
+    private int size;
+
+    /**
+     * Gets the id of a name, handing out the next id on first sight.
+     * @param name the label or function name
+     * @return the id of the name
+     */
+    public int intern(String name) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = size;
+            ids.put(name, id);
+            String[] currentNames = names;
+            byte[][] currentEncoded = encoded;
+            if (size == currentNames.length) {
+                // the copies are filled before they are published
+                currentNames = Arrays.copyOf(currentNames, size * 2);
+                currentEncoded = Arrays.copyOf(currentEncoded, size * 2);
+                currentNames[size] = name;
+                currentEncoded[size] = name.getBytes(StandardCharsets.US_ASCII);
+                encoded = currentEncoded;
+                names = currentNames;
+            } else {
+                currentNames[size] = name;
+                currentEncoded[size] = name.getBytes(StandardCharsets.US_ASCII);
+            }
+            size++;
+        }
+        return id;
+    }
+
+    /**
+     * Looks up the id of a name without adding it.
+     * @param name the label or function name
+     * @return the id of the name, or -1 if it has not been seen
+     */
+    public int lookup(String name) {
+        Integer id = ids.get(name);
+        return (id == null) ? -1 : id;
+    }
+
+    /**
+     * Accessor method for the name of an id.
+     * @param id an id handed out by intern()
+     * @return the name
+     */
+    public String name(int id) {
+        return names[id];
+    }
+
+    /**
+     * Accessor method for the ASCII bytes of a name, which must not be changed.
+     * @param id an id handed out by intern()
+     * @return the name, encoded
+     */
+    public byte[] bytes(int id) {
+        return encoded[id];
+    }
+
+    /**
+     * Accessor method for the number of names interned, only for the interning thread.
+     * @return the number of ids handed out
+     */
+    public int size() {
+        return size;
+    }
+}
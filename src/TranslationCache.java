@@ -0,0 +1,172 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of translated fragments, so files which did not change since the
+ * last run are spliced into the output without being parsed or translated again.
+ *
+ * - An entry is keyed by a SHA-256 hash of the contents of the .vm file, the
+ *      options which change the generated code and CACHE_VERSION.
+ * - This works because every file is translated by its own CodeWriter with its own
+ *      label numbering and file name prefix, so a fragment never depends on the
+ *      files translated before it.
+ * - Entries are written to a temporary file and moved into place, so a run which
+ *      is killed half way never leaves a broken entry behind.
+ * - Entries are also kept in memory, so a translator which stays running (see
+ *      DirectoryWatcher) does not even go to the disk for them. The memory can be
+ *      kept to the entries the last run used with forgetUnused().
+ * - The cache only ever speeds things up, if it can not be read or written the
+ *      file is simply translated.
+ *
+ * @author Jay Montoya
+ * @version 1.0
+ */
+public class TranslationCache {
+
+    /** name of the cache directory, inside the directory being translated **/
+    public static final String CACHE_DIRECTORY_NAME = ".vmcache";
+
+    /** bump whenever the generated code changes, so old entries are never used **/
+    public static final int CACHE_VERSION = 1;
+
+    /** the directory holding the entries, null if they are only kept in memory **/
+    private final File directory;
+
+    /** every entry loaded or stored so far **/
+    private final ConcurrentHashMap<String, MemorySink> memory = new ConcurrentHashMap<>();
+
+    /** the keys loaded or stored since the last call to forgetUnused() **/
+    private final Set<String> used = ConcurrentHashMap.newKeySet();
+
+    /** the part of every key which comes from the options **/
+    private final byte[] optionsKey;
+
+    /**
+     * Constructor for the cache of a directory of .vm files.
+     * @param directoryName the directory being translated
+     * @param options the options the translator was started with
+     * @param onDisk true to keep the entries in directoryName/.vmcache, false for memory only
+     */
+    public TranslationCache(String directoryName, TranslatorOptions options, boolean onDisk) {
+        directory = onDisk ? new File(directoryName, CACHE_DIRECTORY_NAME) : null;
+        if (directory != null) {
+            directory.mkdirs();
+        }
+        optionsKey = ("v" + CACHE_VERSION
+                + (options.isSharedCallReturn() ? " --shared-call-return" : "")
+                + (options.isPeephole() ? " --peephole" : "")
+                + (options.isFold() ? " --fold" : "")
+                + (options.isTopOfStackInD() ? " --tos" : "")
+                + (options.isFuseBranches() ? " --fuse" : "")
+                + (options.isTailCalls() ? " --tail-calls" : "")
+                + (options.isDirectAddressing() ? " --direct" : "")
+                + (options.isInline() ? " --inline " + options.getInlineLimit() : "")
+                + (options.isProfile() ? " --profile" : "")
+                + "\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Computes the key of a .vm file.
+     * @param file the .vm file
+     * @param report where a file which can not be hashed is reported
+     * @return the key, null if the file could not be read
+     */
+    public String key(File file, TranslationReport report) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(optionsKey);
+            digest.update(file.getName().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+            digest.update(Files.readAllBytes(file.toPath()));
+
+            // hex digits make a file name which works everywhere
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest()) {
+                key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return key.toString();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            report.message("WARNING: could not hash " + file.getName() + " for the cache -> " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Looks up the fragment of a key.
+     * @param key the key of the .vm file
+     * @param report where an entry which can not be read is reported
+     * @return the cached fragment, null if there is none
+     */
+    public MemorySink load(String key, TranslationReport report) {
+        if (key == null) {
+            return null;
+        }
+        MemorySink fragment = memory.get(key);
+        if (fragment != null || directory == null) {
+            if (fragment != null) {
+                used.add(key);
+            }
+            return fragment;
+        }
+
+        File entry = new File(directory, key + ".asm");
+        if (!entry.isFile()) {
+            return null;
+        }
+        try {
+            byte[] bytes = Files.readAllBytes(entry.toPath());
+            fragment = new MemorySink(bytes.length);
+            fragment.append(bytes, 0, bytes.length);
+            memory.put(key, fragment);
+            used.add(key);
+            return fragment;
+        } catch (IOException e) {
+            report.message("WARNING: could not read cache entry " + entry.getName() + " -> " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Stores the fragment of a key.
+     * @param key the key of the .vm file
+     * @param fragment the translated fragment of the file
+     * @param report where an entry which can not be written is reported
+     */
+    public void store(String key, MemorySink fragment, TranslationReport report) {
+        if (key == null) {
+            return;
+        }
+        memory.put(key, fragment);
+        used.add(key);
+        if (directory == null) {
+            return;
+        }
+
+        Path entry = new File(directory, key + ".asm").toPath();
+        try {
+            Path temporary = Files.createTempFile(directory.toPath(), key, ".tmp");
+            Files.write(temporary, fragment.toByteArray());
+            Files.move(temporary, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            report.message("WARNING: could not write cache entry " + entry.getFileName() + " -> " + e.getMessage());
+        }
+    }
+
+    /**
+     * Drops every entry from memory which was not loaded or stored since the last
+     * call, so a translator which stays running only holds on to the current files.
+     * Entries on disk are kept.
+     */
+    public void forgetUnused() {
+        memory.keySet().retainAll(used);
+        used.clear();
+    }
+}
@@ -0,0 +1,284 @@
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+
+/**
+ * Low-overhead instrumentation of a whole translation run, enabled with
+ * --metrics FILE and written to FILE as JSON once the run is over.
+ *
+ * When metrics are off no TranslationMetrics object exists and the translator
+ * only checks for null once per file and once per function, so there is no cost
+ * per command. When they are on every file gets its own FileMetrics object, which
+ * only the task translating that file touches.
+ *
+ * The same numbers give the size report of --sizes: which files, functions and
+ * kinds of command take the most instructions of the ROM.
+ *
+ * Phase times are summed over every file, so with files translated in parallel
+ * they can add up to more than the wall time of the run, which is reported as well.
+ *
+ * @author Jay Montoya
+ * @version 1.0
+ */
+public class TranslationMetrics {
+
+    /**
+     * The phases of a translation.
+     * READ maps the file into memory, PARSE builds the VMProgram, OPTIMIZE runs the
+     * passes over the VMProgram, CODEGEN writes the assembly code into the fragment
+     * and WRITE merges the fragments into the output file.
+     */
+    public enum Phase {
+        READ, PARSE, OPTIMIZE, CODEGEN, WRITE
+    }
+
+    /** the metrics of every file, in file name order **/
+    private final LinkedHashMap<String, FileMetrics> files = new LinkedHashMap<>();
+
+    /** nanoseconds spent in each phase outside of any single file, like merging **/
+    private final long[] phaseNanos = new long[Phase.values().length];
+
+    /** when the run started **/
+    private final long startNanos;
+
+    /** the wall time of the whole run, set by finish() **/
+    private long totalNanos;
+
+    /** the instructions of the whole output, with the bootstrap code, set by finish() **/
+    private int romInstructions;
+
+    /** how many functions the size report lists **/
+    public static final int TOP_FUNCTIONS = 20;
+
+    /**
+     * Constructor for the metrics of a run, which starts the clock.
+     */
+    public TranslationMetrics() {
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Adds a file to the run. Files must be added before their tasks start.
+     * @param fileName the name of the .vm file
+     * @return the metrics of the file
+     */
+    public FileMetrics addFile(String fileName) {
+        FileMetrics file = new FileMetrics(fileName);
+        files.put(fileName, file);
+        return file;
+    }
+
+    /**
+     * Accessor method for the metrics of a file.
+     * @param fileName the name of the .vm file
+     * @return the metrics of the file, null if it was never added
+     */
+    public FileMetrics getFile(String fileName) {
+        return files.get(fileName);
+    }
+
+    /**
+     * Adds to the time spent in a phase outside of any single file.
+     * @param phase the phase
+     * @param nanos the time in nanoseconds
+     */
+    public void addTime(Phase phase, long nanos) {
+        phaseNanos[phase.ordinal()] += nanos;
+    }
+
+    /**
+     * Stops the clock of the run.
+     * @param romInstructions the instructions of the whole output
+     */
+    public void finish(int romInstructions) {
+        totalNanos = System.nanoTime() - startNanos;
+        this.romInstructions = romInstructions;
+    }
+
+    /**
+     * Accessor method for the total time spent in a phase, over every file.
+     * @param phase the phase
+     * @return the time in nanoseconds
+     */
+    public long getNanos(Phase phase) {
+        long nanos = phaseNanos[phase.ordinal()];
+        for (FileMetrics file : files.values()) {
+            nanos += file.getNanos(phase);
+        }
+        return nanos;
+    }
+
+    /**
+     * Writes every metric to a file as JSON.
+     * @param fileName the name of the JSON file
+     * @throws VMTranslatorException if the file can not be written
+     */
+    public void writeJson(String fileName) throws VMTranslatorException {
+        StringBuilder json = new StringBuilder();
+        long bytes = 0;
+        long instructions = 0;
+        long[] commands = new long[CommandType.values().length];
+        for (FileMetrics file : files.values()) {
+            bytes += file.getBytes();
+            instructions += file.getInstructions();
+            for (CommandType type : CommandType.values()) {
+                commands[type.ordinal()] += file.getCommands(type);
+            }
+        }
+
+        json.append("{\n  \"totalMillis\": ").append(millis(totalNanos)).append(",\n");
+        json.append("  \"phases\": {");
+        for (Phase phase : Phase.values()) {
+            json.append(phase.ordinal() == 0 ? "" : ", ");
+            json.append('"').append(phase.name().toLowerCase(Locale.ROOT)).append("Millis\": ").append(millis(getNanos(phase)));
+        }
+        json.append("},\n  \"commands\": ");
+        appendCommands(json, commands);
+        json.append(",\n  \"bytes\": ").append(bytes);
+        json.append(",\n  \"instructions\": ").append(instructions);
+        json.append(",\n  \"romInstructions\": ").append(romInstructions);
+        json.append(",\n  \"files\": [");
+
+        boolean firstFile = true;
+        for (FileMetrics file : files.values()) {
+            json.append(firstFile ? "\n" : ",\n");
+            firstFile = false;
+            json.append("    {\"name\": ");
+            appendString(json, file.getFileName());
+            json.append(", \"bytes\": ").append(file.getBytes());
+            json.append(", \"instructions\": ").append(file.getInstructions());
+            json.append(",\n     \"phases\": {");
+            for (Phase phase : Phase.values()) {
+                json.append(phase.ordinal() == 0 ? "" : ", ");
+                json.append('"').append(phase.name().toLowerCase(Locale.ROOT)).append("Millis\": ")
+                        .append(millis(file.getNanos(phase)));
+            }
+            json.append("},\n     \"commands\": ");
+            long[] fileCommands = new long[CommandType.values().length];
+            for (CommandType type : CommandType.values()) {
+                fileCommands[type.ordinal()] = file.getCommands(type);
+            }
+            appendCommands(json, fileCommands);
+            json.append(",\n     \"kindInstructions\": {");
+            for (Opcode opcode : Opcode.values()) {
+                json.append(opcode.ordinal() == 0 ? "" : ", ");
+                json.append('"').append(opcode.keyword).append("\": ").append(file.getInstructions(opcode));
+            }
+            json.append("},\n     \"functions\": [");
+
+            boolean firstFunction = true;
+            for (FileMetrics.Function function : file.getFunctions()) {
+                json.append(firstFunction ? "\n" : ",\n");
+                firstFunction = false;
+                json.append("       {\"name\": ");
+                appendString(json, function.getName());
+                json.append(", \"commands\": ").append(function.getCommands());
+                json.append(", \"bytes\": ").append(function.getBytes());
+                json.append(", \"instructions\": ").append(function.getInstructions()).append('}');
+            }
+            json.append(firstFunction ? "]}" : "\n     ]}");
+        }
+        json.append(firstFile ? "]\n}\n" : "\n  ]\n}\n");
+
+        try (PrintWriter out = new PrintWriter(fileName)) {
+            out.print(json);
+        } catch (FileNotFoundException e) {
+            throw new VMTranslatorException("[INVALID FILE]: could not write the metrics to '" + fileName
+                    + "' -> " + e.getMessage());
+        }
+    }
+
+    /**
+     * Prints the size report: the instructions of every file, of the biggest
+     * functions and of every kind of command, biggest first. Whatever is not in a
+     * file is the bootstrap code (and the shared call/return routines). The kinds
+     * are counted before the peephole optimizer, what it removed is listed on its own.
+     */
+    public void printSizes() {
+        HashMap<String, Long> byFile = new HashMap<>();
+        HashMap<String, Long> byFunction = new HashMap<>();
+        HashMap<String, Long> byKind = new HashMap<>();
+        long inFiles = 0;
+        for (FileMetrics file : files.values()) {
+            byFile.put(file.getFileName(), (long) file.getInstructions());
+            inFiles += file.getInstructions();
+
+            long inFunctions = 0;
+            for (FileMetrics.Function function : file.getFunctions()) {
+                byFunction.merge(function.getName(), (long) function.getInstructions(), Long::sum);
+                inFunctions += function.getInstructions();
+            }
+            if (file.getInstructions() > inFunctions) {
+                byFunction.put("(" + file.getFileName() + " outside of functions)", file.getInstructions() - inFunctions);
+            }
+            long generated = 0;
+            for (Opcode opcode : Opcode.values()) {
+                byKind.merge(opcode.keyword, (long) file.getInstructions(opcode), Long::sum);
+                generated += file.getInstructions(opcode);
+            }
+            if (generated != file.getInstructions()) {
+                byKind.merge("(removed by the peephole optimizer)", file.getInstructions() - generated, Long::sum);
+            }
+        }
+        if (romInstructions > inFiles) {
+            byFile.put("(bootstrap)", romInstructions - inFiles);
+            byFunction.put("(bootstrap)", romInstructions - inFiles);
+            byKind.put("(bootstrap)", romInstructions - inFiles);
+        }
+
+        System.out.println("\nSIZE REPORT: " + romInstructions + " instructions in the ROM");
+        System.out.println("\nSIZE BY FILE");
+        HackProfiler.printSorted(byFile, romInstructions, Integer.MAX_VALUE);
+        System.out.println("\nSIZE BY FUNCTION (top " + TOP_FUNCTIONS + ")");
+        HackProfiler.printSorted(byFunction, romInstructions, TOP_FUNCTIONS);
+        System.out.println("\nSIZE BY COMMAND KIND");
+        HackProfiler.printSorted(byKind, romInstructions, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Helper method for writing the command counters as a JSON object, skipping C_NONE.
+     * @param json where the JSON is written
+     * @param commands the counters, indexed by CommandType ordinal
+     */
+    private static void appendCommands(StringBuilder json, long[] commands) {
+        json.append('{');
+        boolean first = true;
+        for (CommandType type : CommandType.values()) {
+            if (type == CommandType.C_NONE) {
+                continue;
+            }
+            json.append(first ? "" : ", ");
+            first = false;
+            json.append('"').append(type.name()).append("\": ").append(commands[type.ordinal()]);
+        }
+        json.append('}');
+    }
+
+    /**
+     * Helper method for writing a JSON string.
+     * @param json where the JSON is written
+     * @param text the text of the string
+     */
+    private static void appendString(StringBuilder json, String text) {
+        json.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\');
+            }
+            json.append(c);
+        }
+        json.append('"');
+    }
+
+    /**
+     * Helper method for turning nanoseconds into milliseconds with 3 decimals.
+     * @param nanos the time in nanoseconds
+     * @return the time in milliseconds
+     */
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+}
@@ -0,0 +1,130 @@
+import java.io.File;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Translates a single .vm file in two stages which run at the same time, so the
+ * code of the first commands is written while the rest of the file is still read:
+ *
+ * 1) The reader stage parses the file on a reader thread and puts every command
+ *      into a CommandRing, as four ints.
+ * 2) The codegen stage takes the commands out of the ring on the calling thread,
+ *      adds them to a VMProgram and writes everything but the last LOOKAHEAD of
+ *      them, which the CodeWriter might still need to look ahead of a command.
+ *
+ * The ring is bounded, so a reader which gets too far ahead waits for codegen and
+ * the other way around. How often each stage waited is reported as the backpressure
+ * of the pipeline. Only the passes which work one command at a time can run in the
+ * pipeline, --fold, --dce and --inline need the whole file or program first.
+ *
+ * @author Jay Montoya
+ * @version 1.0
+ */
+public class TranslationPipeline {
+
+    /** the threads the reader stages run on, kept between files so they are cheap to start **/
+    private static final ExecutorService READERS = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "vm-reader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Translates a single vm file into an in-memory fragment of assembly code,
+     * reading and writing it at the same time.
+     * @param e the .vm file to translate
+     * @param options the options the translator was started with
+     * @param report where the optimization passes and the pipeline report what they did
+     * @param metrics where the metrics of the file are collected, null for none
+     * @return the assembly code for the file
+     * @throws VMTranslatorException if the file can not be read or translated
+     */
+    public static MemorySink translate(File e, TranslatorOptions options, TranslationReport report,
+                                       FileMetrics metrics) throws VMTranslatorException {
+        CommandRing ring = new CommandRing(VMTranslator.PIPELINE_RING_SIZE);
+        SymbolTable symbols = new SymbolTable();
+
+        // read and parse time of the reader stage, only looked at once it is done
+        long[] readerNanos = new long[2];
+        Future<?> reader = READERS.submit(() -> {
+            read(e, ring, symbols, readerNanos);
+            return null;
+        });
+
+        long start = System.nanoTime();
+        VMProgram program = new VMProgram(e.getName(), symbols, 256);
+        MemorySink fragment = new MemorySink(VMTranslator.FRAGMENT_BUFFER_SIZE);
+        CodeWriter codeWriter = new CodeWriter(fragment, options);
+        if (metrics != null) {
+            metrics.setFragment(fragment);
+            codeWriter.setMetrics(metrics);
+        }
+        codeWriter.setFileName(e.getName());
+
+        // write whatever came in, except what the next commands might be fused with
+        while (ring.drainTo(program)) {
+            codeWriter.writeCommands(program, program.size() - CodeWriter.LOOKAHEAD);
+        }
+        codeWriter.writeCommands(program, program.size());
+        codeWriter.finishProgram(program);
+        codeWriter.close();
+
+        // a file which could not be read or parsed is reported by the caller, this
+        // runs inside a fork/join task so it never exits on its own
+        try {
+            reader.get();
+        } catch (ExecutionException exception) {
+            if (exception.getCause() instanceof VMTranslatorException) {
+                throw (VMTranslatorException) exception.getCause();
+            }
+            throw new VMTranslatorException("[PIPELINE]: reading '" + e.getName() + "' failed -> "
+                    + exception.getCause());
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new VMTranslatorException("[PIPELINE]: interrupted while waiting for the reader of '"
+                    + e.getName() + "'");
+        }
+
+        if (codeWriter.getPeepholeOptimizer() != null) {
+            codeWriter.getPeepholeOptimizer().addTo(report);
+        }
+        codeWriter.addTo(report);
+        report.add("PIPELINE reader stalls (ring full, codegen is behind)", ring.getProducerStalls());
+        report.add("PIPELINE codegen stalls (ring empty, reader is behind)", ring.getConsumerStalls());
+
+        // the stages overlap, so codegen time includes waiting for the reader
+        if (metrics != null) {
+            metrics.addTime(TranslationMetrics.Phase.READ, readerNanos[0]);
+            metrics.addTime(TranslationMetrics.Phase.PARSE, readerNanos[1]);
+            metrics.countCommands(program);
+            metrics.setTotals(fragment.size(), codeWriter.getInstructionsWritten());
+            metrics.addTime(TranslationMetrics.Phase.CODEGEN, System.nanoTime() - start);
+        }
+        return fragment;
+    }
+
+    /**
+     * The reader stage: parses the file into the ring. The ring is closed even if
+     * the parser fails, so the codegen stage never waits forever.
+     * @param e the .vm file to read
+     * @param ring where the commands go
+     * @param symbols where the label and function names are interned
+     * @param nanos where the read and the parse time are put
+     * @throws VMTranslatorException if the file can not be read
+     */
+    private static void read(File e, CommandRing ring, SymbolTable symbols, long[] nanos)
+            throws VMTranslatorException {
+        try {
+            long start = System.nanoTime();
+            Parser parser = new Parser(e.getPath());
+            long parsed = System.nanoTime();
+            VMProgram.parse(parser, symbols, ring::put);
+            nanos[0] = parsed - start;
+            nanos[1] = System.nanoTime() - parsed;
+        } finally {
+            ring.close();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects the numbers and the messages (warnings, removed and inlined functions)
+ * the optimization passes report while files are being translated, so they can be
+ * printed once at the end of the run, and a batch can print the ones of each
+ * directory together. Files are translated in parallel, so every method is
+ * synchronized.
+ *
+ * @author Jay Montoya
+ * @version 1.0
+ */
+public class TranslationReport {
+
+    /** every counter, in the order it was first added to **/
+    private final LinkedHashMap<String, Long> counters = new LinkedHashMap<>();
+
+    /** every message, in the order it was added **/
+    private final ArrayList<String> messages = new ArrayList<>();
+
+    /**
+     * Adds to a counter, creating it at zero on first use.
+     * @param name the name of the counter
+     * @param amount how much to add
+     */
+    public synchronized void add(String name, long amount) {
+        Long current = counters.get(name);
+        counters.put(name, (current == null ? 0 : current) + amount);
+    }
+
+    /**
+     * Adds a message, printed before the counters.
+     * @param message a line like "WARNING: ..."
+     */
+    public synchronized void message(String message) {
+        messages.add(message);
+    }
+
+    /**
+     * Accessor method for the value of a counter.
+     * @param name the name of the counter
+     * @return the value, 0 if nothing was ever added to it
+     */
+    public synchronized long get(String name) {
+        Long current = counters.get(name);
+        return (current == null) ? 0 : current;
+    }
+
+    /**
+     * Prints every message, then every counter, on its own line.
+     */
+    public void print() {
+        print("");
+    }
+
+    /**
+     * Prints every message, then every counter, on its own line.
+     * @param indent put in front of every line
+     */
+    public synchronized void print(String indent) {
+        for (String message : messages) {
+            System.out.println(indent + message);
+        }
+        for (Map.Entry<String, Long> counter : counters.entrySet()) {
+            System.out.println(indent + counter.getKey() + ": " + counter.getValue());
+        }
+    }
+}
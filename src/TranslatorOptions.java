@@ -0,0 +1,533 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+
+/**
+ * Holds the options the translator was started with.
+ *
+ * Usage: java VMTranslator [options] [directory...]
+ *
+ * - directory: the folder of .vm files to translate, defaults to VMTranslator.DIRECTORY_NAME.
+ *      Given more than one, they are all translated in one batch (see BatchTranslator)
+ * - --manifest FILE: add the directories listed in FILE to the batch, one per line,
+ *      blank lines and lines starting with # are skipped
+ * - --threads N: how many directories of a batch are translated at the same time,
+ *      defaults to the number of processors
+ * - --pipeline: read each file on a thread of its own while its code is written, the
+ *      commands go from one thread to the other through a CommandRing (see TranslationPipeline)
+ * - --single-thread: do everything on the main thread, no fork/join pool and no pipeline
+ * - --buffer-size N: how many bytes of the output file are collected before they are
+ *      written out, defaults to VMTranslator.OUTPUT_BUFFER_SIZE
+ * - --mmap: write the output file through a memory-mapped view of it instead of
+ *      channel writes (see ChannelSink)
+ * - --shared-call-return: emit one global call routine and one global return routine
+ *      and jump to them, instead of inlining the frame code at every call and return
+ * - --peephole: run the generated code through the PeepholeOptimizer and report
+ *      how many instructions each of its rules removed
+ * - --fold: fold constant expressions and simplify identities (x + 0, not not x, ...)
+ *      before code is generated for them
+ * - --tos: keep the top of the stack in D between commands instead of storing it and
+ *      loading it again, it is only stored at labels, jumps, calls and returns
+ * - --fuse: write eq/gt/lt followed by if-goto (or by not and if-goto) as one subtract
+ *      and conditional jump, without putting the boolean on the stack
+ * - --direct: address temp at compile time, reach the first few locals,
+ *      arguments, this and that with A = M + 1 chains and pop to a computed address
+ *      without going through a RAM variable
+ * - --tail-calls: write a call followed right by a return as a jump which reuses the
+ *      frame of the function making the call, instead of building a new frame
+ * - --dce: drop every function which cannot be reached from Sys.init and report
+ *      what was removed
+ * - --inline N: write the body of every small function (at most N commands, no calls)
+ *      right at its call sites instead of calling it, and report what that cost or
+ *      saved (see FunctionInliner)
+ * - --cache: keep the translated code of every file in directory/.vmcache and reuse
+ *      it while the file and the options stay the same (see TranslationCache)
+ * - --watch: stay running after the first translation and translate the directory
+ *      again whenever one of its .vm files changes (see DirectoryWatcher)
+ * - --profile: mark the code of every VM command in the .asm file, then run it on the
+ *      HackEmulator and print where the cycles went (see HackProfiler)
+ * - --emit FORMAT: what the output file holds, "asm" for hack assembly code (the default),
+ *      "hack" for machine code as .hack text or "binary" for machine code packed two
+ *      bytes per word into a .bin file (see MachineCodeSink)
+ * - --metrics FILE: count commands, bytes and instructions per file and function and
+ *      time every phase, then write it all to FILE as JSON (see TranslationMetrics)
+ * - --sizes: print how many instructions of the ROM every file, the biggest functions
+ *      and every kind of command take
+ *
+ * @author Jay Montoya
+ * @version 1.0
+ */
+public class TranslatorOptions {
+
+    /** the formats the output file can be written in **/
+    public static final String EMIT_ASM = "asm";
+    public static final String EMIT_HACK = "hack";
+    public static final String EMIT_BINARY = "binary";
+
+    /** the directory holding the .vm files **/
+    private String directoryName;
+
+    /** every directory to translate, more than one makes a batch **/
+    private ArrayList<String> directoryNames;
+
+    /** whether a manifest was given, which always makes a batch **/
+    private boolean manifest;
+
+    /** how many directories of a batch are translated at the same time **/
+    private int threads;
+
+    /** whether reading and codegen of each file run at the same time on two threads **/
+    private boolean pipeline;
+
+    /** whether everything runs on the main thread **/
+    private boolean singleThread;
+
+    /** the size in bytes of the output file buffer **/
+    private int outputBufferSize;
+
+    /** whether the output file is written through a memory-mapped view **/
+    private boolean memoryMapped;
+
+    /** whether calls and returns jump to shared routines **/
+    private boolean sharedCallReturn;
+
+    /** whether the generated code goes through the peephole optimizer **/
+    private boolean peephole;
+
+    /** whether constant expressions are folded before code is generated **/
+    private boolean fold;
+
+    /** whether the top of the stack is kept in D between commands **/
+    private boolean topOfStackInD;
+
+    /** whether a compare and the if-goto after it are written as one jump **/
+    private boolean fuseBranches;
+
+    /** whether a call followed by a return reuses the frame of the caller **/
+    private boolean tailCalls;
+
+    /** whether push and pop address their segment directly where they can **/
+    private boolean directAddressing;
+
+    /** whether functions Sys.init can never reach are dropped **/
+    private boolean eliminateDeadFunctions;
+
+    /** the most commands a function can have to be inlined, 0 if nothing is inlined **/
+    private int inlineLimit;
+
+    /** whether translated files are kept in and reused from the on-disk cache **/
+    private boolean cache;
+
+    /** whether the output is run on the emulator and profiled **/
+    private boolean profile;
+
+    /** whether the translator stays running and translates again on every change **/
+    private boolean watch;
+
+    /** where the metrics of the run are written as JSON, null if they are not collected **/
+    private String metricsFile;
+
+    /** the format of the output file, one of the EMIT constants **/
+    private String emit;
+
+    /** whether the size report is printed **/
+    private boolean sizeReport;
+
+    /**
+     * Constructor for the default options.
+     */
+    public TranslatorOptions() {
+        directoryName = VMTranslator.DIRECTORY_NAME;
+        directoryNames = new ArrayList<>();
+        manifest = false;
+        threads = Runtime.getRuntime().availableProcessors();
+        pipeline = false;
+        singleThread = false;
+        outputBufferSize = VMTranslator.OUTPUT_BUFFER_SIZE;
+        memoryMapped = false;
+        sharedCallReturn = false;
+        peephole = false;
+        fold = false;
+        topOfStackInD = false;
+        fuseBranches = false;
+        tailCalls = false;
+        directAddressing = false;
+        eliminateDeadFunctions = false;
+        inlineLimit = 0;
+        cache = false;
+        watch = false;
+        profile = false;
+        metricsFile = null;
+        emit = EMIT_ASM;
+        sizeReport = false;
+    }
+
+    /**
+     * Builds the options from the command line arguments.
+     * @param args the arguments given to main
+     * @return the parsed options
+     * @throws VMTranslatorException if an argument is not recognized
+     */
+    public static TranslatorOptions parse(String[] args) throws VMTranslatorException {
+        TranslatorOptions options = new TranslatorOptions();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--pipeline")) {
+                options.pipeline = true;
+            } else if (arg.equals("--single-thread")) {
+                options.singleThread = true;
+            } else if (arg.equals("--buffer-size")) {
+                if (i + 1 == args.length || !args[i + 1].matches("[1-9][0-9]{0,8}")) {
+                    throw new VMTranslatorException("[INVALID OPTION]: --buffer-size needs a positive number of bytes");
+                }
+                options.outputBufferSize = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--mmap")) {
+                options.memoryMapped = true;
+            } else if (arg.equals("--shared-call-return")) {
+                options.sharedCallReturn = true;
+            } else if (arg.equals("--peephole")) {
+                options.peephole = true;
+            } else if (arg.equals("--fold")) {
+                options.fold = true;
+            } else if (arg.equals("--tos")) {
+                options.topOfStackInD = true;
+            } else if (arg.equals("--fuse")) {
+                options.fuseBranches = true;
+            } else if (arg.equals("--tail-calls")) {
+                options.tailCalls = true;
+            } else if (arg.equals("--direct")) {
+                options.directAddressing = true;
+            } else if (arg.equals("--dce")) {
+                options.eliminateDeadFunctions = true;
+            } else if (arg.equals("--inline")) {
+                if (i + 1 == args.length || !args[i + 1].matches("[1-9][0-9]*")) {
+                    throw new VMTranslatorException("[INVALID OPTION]: --inline needs the most commands a function can have");
+                }
+                options.inlineLimit = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--cache")) {
+                options.cache = true;
+            } else if (arg.equals("--profile")) {
+                options.profile = true;
+            } else if (arg.equals("--watch")) {
+                options.watch = true;
+            } else if (arg.equals("--sizes")) {
+                options.sizeReport = true;
+            } else if (arg.equals("--metrics")) {
+                if (i + 1 == args.length) {
+                    throw new VMTranslatorException("[INVALID OPTION]: --metrics needs the name of a JSON file");
+                }
+                options.metricsFile = args[++i];
+            } else if (arg.equals("--emit")) {
+                if (i + 1 == args.length || !(args[i + 1].equals(EMIT_ASM) || args[i + 1].equals(EMIT_HACK)
+                        || args[i + 1].equals(EMIT_BINARY))) {
+                    throw new VMTranslatorException("[INVALID OPTION]: --emit needs asm, hack or binary");
+                }
+                options.emit = args[++i];
+            } else if (arg.equals("--manifest")) {
+                if (i + 1 == args.length) {
+                    throw new VMTranslatorException("[INVALID OPTION]: --manifest needs the name of a file");
+                }
+                options.readManifest(args[++i]);
+            } else if (arg.equals("--threads")) {
+                if (i + 1 == args.length || !args[i + 1].matches("[1-9][0-9]*")) {
+                    throw new VMTranslatorException("[INVALID OPTION]: --threads needs a positive number");
+                }
+                options.threads = Integer.parseInt(args[++i]);
+            } else if (arg.startsWith("--")) {
+                throw new VMTranslatorException("[INVALID OPTION]: unrecognized option '" + arg + "'");
+            } else {
+                options.directoryNames.add(arg);
+            }
+        }
+
+        if (!options.directoryNames.isEmpty()) {
+            options.directoryName = options.directoryNames.get(0);
+        } else if (options.manifest) {
+            throw new VMTranslatorException("[INVALID OPTION]: the manifest does not list any directory");
+        } else {
+            options.directoryNames.add(options.directoryName);
+        }
+        if (options.watch && options.isBatch()) {
+            throw new VMTranslatorException("[INVALID OPTION]: --watch only works on a single directory");
+        }
+        if (options.pipeline && options.singleThread) {
+            throw new VMTranslatorException("[INVALID OPTION]: --pipeline runs on two threads, "
+                    + "it can not be used with --single-thread");
+        }
+        if (options.profile && options.isMachineCode()) {
+            throw new VMTranslatorException("[INVALID OPTION]: --profile needs the markers in the .asm file, "
+                    + "it can not be used with --emit " + options.emit);
+        }
+        return options;
+    }
+
+    /**
+     * Helper method for adding the directories listed in a manifest file.
+     * @param fileName the name of the manifest file
+     * @throws VMTranslatorException if the manifest can not be read
+     */
+    private void readManifest(String fileName) throws VMTranslatorException {
+        manifest = true;
+        try {
+            for (String line : Files.readAllLines(Paths.get(fileName))) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    directoryNames.add(line);
+                }
+            }
+        } catch (IOException e) {
+            throw new VMTranslatorException("[INVALID OPTION]: could not read the manifest '" + fileName
+                    + "' -> " + e.getMessage());
+        }
+    }
+
+    /**
+     * Makes a copy of these options for translating another directory.
+     * @param directoryName the directory the copy translates
+     * @return the copy, which is never a batch
+     */
+    public TranslatorOptions forDirectory(String directoryName) {
+        TranslatorOptions copy = new TranslatorOptions();
+        copy.directoryName = directoryName;
+        copy.directoryNames.add(directoryName);
+        copy.threads = threads;
+        copy.pipeline = pipeline;
+        copy.singleThread = singleThread;
+        copy.outputBufferSize = outputBufferSize;
+        copy.memoryMapped = memoryMapped;
+        copy.sharedCallReturn = sharedCallReturn;
+        copy.peephole = peephole;
+        copy.fold = fold;
+        copy.topOfStackInD = topOfStackInD;
+        copy.fuseBranches = fuseBranches;
+        copy.tailCalls = tailCalls;
+        copy.directAddressing = directAddressing;
+        copy.eliminateDeadFunctions = eliminateDeadFunctions;
+        copy.inlineLimit = inlineLimit;
+        copy.cache = cache;
+        copy.watch = watch;
+        copy.profile = profile;
+        copy.metricsFile = metricsFile;
+        copy.emit = emit;
+        copy.sizeReport = sizeReport;
+        return copy;
+    }
+
+    /**
+     * Accessor method for the directory name.
+     * @return the directory holding the .vm files
+     */
+    public String getDirectoryName() {
+        return directoryName;
+    }
+
+    /**
+     * Accessor method for every directory to translate.
+     * @return the directories, in the order they were given
+     */
+    public ArrayList<String> getDirectoryNames() {
+        return directoryNames;
+    }
+
+    /**
+     * Accessor method for the batch mode.
+     * @return true if more than one directory, or a manifest, was given
+     */
+    public boolean isBatch() {
+        return manifest || directoryNames.size() > 1;
+    }
+
+    /**
+     * Accessor method for the number of threads of a batch.
+     * @return how many directories are translated at the same time, 1 with --single-thread
+     */
+    public int getThreads() {
+        return singleThread ? 1 : threads;
+    }
+
+    /**
+     * Accessor method for the pipeline option.
+     * @return true if reading and codegen of each file run at the same time on two threads
+     */
+    public boolean isPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * Accessor method for the single thread option.
+     * @return true if everything runs on the main thread
+     */
+    public boolean isSingleThread() {
+        return singleThread;
+    }
+
+    /**
+     * Accessor method for the size of the output file buffer.
+     * @return the size in bytes, ChannelSink makes it at least 64
+     */
+    public int getOutputBufferSize() {
+        return outputBufferSize;
+    }
+
+    /**
+     * Accessor method for the memory-mapped output option.
+     * @return true if the output file is written through a memory-mapped view
+     */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    /**
+     * Accessor method for the shared call/return mode.
+     * @return true if calls and returns jump to shared routines
+     */
+    public boolean isSharedCallReturn() {
+        return sharedCallReturn;
+    }
+
+    /**
+     * Accessor method for the peephole optimizer option.
+     * @return true if the generated code goes through the peephole optimizer
+     */
+    public boolean isPeephole() {
+        return peephole;
+    }
+
+    /**
+     * Accessor method for the constant folding option.
+     * @return true if constant expressions are folded before code is generated
+     */
+    public boolean isFold() {
+        return fold;
+    }
+
+    /**
+     * Accessor method for the top of stack caching option.
+     * @return true if the top of the stack is kept in D between commands
+     */
+    public boolean isTopOfStackInD() {
+        return topOfStackInD;
+    }
+
+    /**
+     * Accessor method for the compare and branch fusion option.
+     * @return true if a compare and the if-goto after it are written as one jump
+     */
+    public boolean isFuseBranches() {
+        return fuseBranches;
+    }
+
+    /**
+     * Accessor method for the tail call option.
+     * @return true if a call followed by a return reuses the frame of the caller
+     */
+    public boolean isTailCalls() {
+        return tailCalls;
+    }
+
+    /**
+     * Accessor method for the direct addressing of push and pop.
+     * @return true if addresses known at compile time are not computed at run time
+     */
+    public boolean isDirectAddressing() {
+        return directAddressing;
+    }
+
+    /**
+     * Accessor method for the dead function elimination option.
+     * @return true if functions Sys.init can never reach are dropped
+     */
+    public boolean isEliminateDeadFunctions() {
+        return eliminateDeadFunctions;
+    }
+
+    /**
+     * Accessor method for the inlining threshold.
+     * @return the most commands a function can have to be inlined, 0 if nothing is inlined
+     */
+    public int getInlineLimit() {
+        return inlineLimit;
+    }
+
+    /**
+     * Checks if small functions are inlined at their call sites.
+     * @return true if --inline was given
+     */
+    public boolean isInline() {
+        return inlineLimit > 0;
+    }
+
+    /**
+     * Accessor method for the cache option.
+     * @return true if translated files are kept in and reused from the on-disk cache
+     */
+    public boolean isCache() {
+        return cache;
+    }
+
+    /**
+     * Accessor method for the watch option.
+     * @return true if the translator stays running and translates again on every change
+     */
+    public boolean isWatch() {
+        return watch;
+    }
+
+    /**
+     * Accessor method for the profile option.
+     * @return true if the output is run on the emulator and profiled
+     */
+    public boolean isProfile() {
+        return profile;
+    }
+
+    /**
+     * Accessor method for the metrics file.
+     * @return where the metrics are written as JSON, null if they are not collected
+     */
+    public String getMetricsFile() {
+        return metricsFile;
+    }
+
+    /**
+     * Accessor method for the size report option.
+     * @return true if the size report is printed
+     */
+    public boolean isSizeReport() {
+        return sizeReport;
+    }
+
+    /**
+     * Checks if a TranslationMetrics is needed, for the JSON file or the size report.
+     * @return true if metrics are collected
+     */
+    public boolean isCollectingMetrics() {
+        return metricsFile != null || sizeReport;
+    }
+
+    /**
+     * Accessor method for the output format.
+     * @return one of EMIT_ASM, EMIT_HACK or EMIT_BINARY
+     */
+    public String getEmit() {
+        return emit;
+    }
+
+    /**
+     * Accessor method for the machine code output.
+     * @return true if the output file holds machine code instead of assembly code
+     */
+    public boolean isMachineCode() {
+        return !emit.equals(EMIT_ASM);
+    }
+
+    /**
+     * Accessor method for the extension of the output file.
+     * @return ".asm", ".hack" or ".bin"
+     */
+    public String getOutputExtension() {
+        return emit.equals(EMIT_BINARY) ? ".bin" : "." + emit;
+    }
+}
@@ -0,0 +1,621 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs .vm programs directly, without translating and assembling them first.
+ *
+ * - The commands of every file are decoded once into three int arrays: an
+ *      operation specialised for its segment (push local, pop temp, ...) and two
+ *      arguments where every label, function and fixed address is already resolved.
+ * - The run loop is a single dense switch over those arrays, the closest Java has
+ *      to threaded dispatch, with the stack pointer kept in a local.
+ * - Memory is a short[] RAM laid out exactly like the Hack RAM, and every command
+ *      does what the code from CodeWriter does: the same frames, the same 16 bit
+ *      wrap around, the same eq/gt/lt on the sign of the difference. So a run of the
+ *      interpreter is a reference the translated code can be checked against.
+ *
+ * Usage: java VMInterpreter [--max-ops N] [--check] [translator options] [directory]
+ *      --check also translates the directory with the given translator options, runs
+ *      the .asm on the HackEmulator and compares the memory of both runs, exiting with 1
+ *      if they differ.
+ *
+ * @author Jay Montoya
+ * @version 1.0
+ */
+public class VMInterpreter {
+
+    /** operations run before giving up on a program which never ends **/
+    public static final long DEFAULT_MAX_OPS = 1_000_000_000L;
+
+    /** where the stack starts, as set by the bootstrap code **/
+    public static final int STACK_BASE = 256;
+
+    /** where the heap starts, this and that point somewhere from here up **/
+    public static final int HEAP_BASE = 2048;
+
+    /** how many differences --check prints before it only counts them **/
+    private static final int MAX_DIFFERENCES = 20;
+
+    /** the RAM addresses of the pointers **/
+    private static final int SP = 0;
+    private static final int LCL = 1;
+    private static final int ARG = 2;
+    private static final int THIS = 3;
+    private static final int THAT = 4;
+
+    // the decoded operations, arg1 and arg2 are described next to each one
+    private static final int PUSH_CONSTANT = 0;     // value
+    private static final int PUSH_LOCAL = 1;        // index
+    private static final int PUSH_ARGUMENT = 2;     // index
+    private static final int PUSH_THIS = 3;         // index
+    private static final int PUSH_THAT = 4;         // index
+    private static final int PUSH_FIXED = 5;        // address (static, temp, pointer)
+    private static final int POP_LOCAL = 6;         // index
+    private static final int POP_ARGUMENT = 7;      // index
+    private static final int POP_THIS = 8;          // index
+    private static final int POP_THAT = 9;          // index
+    private static final int POP_FIXED = 10;        // address (static, temp, pointer)
+    private static final int ADD = 11;
+    private static final int SUB = 12;
+    private static final int NEG = 13;
+    private static final int EQ = 14;
+    private static final int GT = 15;
+    private static final int LT = 16;
+    private static final int AND = 17;
+    private static final int OR = 18;
+    private static final int NOT = 19;
+    private static final int GOTO = 20;             // target, 1 if it only jumps back to itself
+    private static final int IF_GOTO = 21;          // target
+    private static final int FUNCTION = 22;         // number of locals
+    private static final int CALL = 23;             // target, number of arguments
+    private static final int RETURN = 24;
+    private static final int NOP = 25;              // labels
+
+    /** pc of the bootstrap call to Sys.init, returning there ends the run **/
+    private static final int HALT = 0xFFFF;
+
+    /** the decoded program **/
+    private int[] ops;
+    private int[] arg1;
+    private int[] arg2;
+    private int size;
+
+    /** the RAM **/
+    private final short[] ram = new short[HackEmulator.RAM_SIZE];
+
+    /** the RAM address of every static variable, like Main.0 **/
+    private final LinkedHashMap<String, Integer> statics = new LinkedHashMap<>();
+
+    /** the pc of Sys.init **/
+    private int entry;
+
+    /** the pc of the next operation **/
+    private int pc;
+
+    /** the operations run so far **/
+    private long opsExecuted;
+
+    /** whether the program ended in an infinite loop or returned from Sys.init **/
+    private boolean halted;
+
+    /**
+     * Constructor for an interpreter of the given programs, which are decoded right away.
+     * @param programs the commands of every .vm file
+     * @throws VMTranslatorException if a label or a function is not defined anywhere
+     */
+    public VMInterpreter(List<VMProgram> programs) throws VMTranslatorException {
+        decode(programs);
+        reset();
+    }
+
+    /**
+     * Runs every .vm file of a directory from the command line.
+     * @param args the options and the directory
+     */
+    public static void main(String[] args) {
+        long maxOps = DEFAULT_MAX_OPS;
+        boolean check = false;
+        ArrayList<String> translatorArgs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--max-ops") && i + 1 < args.length) {
+                maxOps = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--check")) {
+                check = true;
+            } else {
+                translatorArgs.add(args[i]);
+            }
+        }
+
+        try {
+            TranslatorOptions options = TranslatorOptions.parse(translatorArgs.toArray(new String[0]));
+            VMInterpreter interpreter = new VMInterpreter(readDirectory(options.getDirectoryName()));
+
+            long start = System.nanoTime();
+            interpreter.run(maxOps);
+            long elapsed = System.nanoTime() - start;
+
+            System.out.println("RAN " + interpreter.getOpsExecuted() + " VM operations in "
+                    + String.format("%.1f", elapsed / 1e6) + " ms ("
+                    + String.format("%.1f", interpreter.getOpsExecuted() / (elapsed / 1e9) / 1e6)
+                    + " million ops/s), " + (interpreter.isHalted() ? "ran to the end" : "stopped before the end"));
+            interpreter.printState();
+
+            if (check && !interpreter.check(options)) {
+                System.exit(1);
+            }
+        } catch (VMTranslatorException e) {
+            System.out.println("FATAL ERROR");
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Reads every .vm file of a directory, in file name order like the translator.
+     * @param directoryName the directory holding the .vm files
+     * @return the commands of every file
+     * @throws VMTranslatorException if the directory can not be listed
+     */
+    public static ArrayList<VMProgram> readDirectory(String directoryName) throws VMTranslatorException {
+        File[] listing = new File(directoryName).listFiles();
+        if (listing == null) {
+            throw new VMTranslatorException("[INVALID FILE]: not a directory '" + directoryName + "'");
+        }
+        Arrays.sort(listing, Comparator.comparing(File::getName));
+
+        ArrayList<VMProgram> programs = new ArrayList<>();
+        for (File file : listing) {
+            if (file.getName().endsWith(".vm")) {
+                programs.add(VMProgram.build(new Parser(file.getPath()), file.getName()));
+            }
+        }
+        return programs;
+    }
+
+    /**
+     * Helper method for decoding every program into the operation arrays.
+     * @param programs the commands of every .vm file
+     * @throws VMTranslatorException if a label or a function is not defined anywhere
+     */
+    private void decode(List<VMProgram> programs) throws VMTranslatorException {
+        int capacity = 0;
+        for (VMProgram program : programs) {
+            capacity += program.size();
+        }
+        if (capacity >= HALT) {
+            throw new VMTranslatorException("[TOO BIG]: more than " + (HALT - 1) + " commands can not be interpreted");
+        }
+        ops = new int[capacity];
+        arg1 = new int[capacity];
+        arg2 = new int[capacity];
+
+        // first pass: where every function and label is, labels are scoped to their
+        // function like CodeWriter.writeLabel does
+        HashMap<String, Integer> functions = new HashMap<>();
+        HashMap<String, Integer> labels = new HashMap<>();
+        int position = 0;
+        for (VMProgram program : programs) {
+            String scope = program.getFileName();
+            for (int i = 0; i < program.size(); i++, position++) {
+                if (program.opcode(i) == Opcode.FUNCTION) {
+                    scope = program.symbolName(i);
+                    functions.put(scope, position);
+                } else if (program.opcode(i) == Opcode.LABEL) {
+                    labels.put(scope + "$" + program.symbolName(i), position);
+                }
+            }
+        }
+
+        // second pass: decode every command
+        int nextStatic = HackAssembler.FIRST_VARIABLE;
+        size = 0;
+        for (VMProgram program : programs) {
+            String fileBaseName = program.getFileName().substring(0, program.getFileName().indexOf('.'));
+            String scope = program.getFileName();
+            for (int i = 0; i < program.size(); i++) {
+                Opcode opcode = program.opcode(i);
+                int op;
+                int first = 0;
+                int second = 0;
+                switch (opcode) {
+                    case PUSH:
+                    case POP:
+                        boolean push = opcode == Opcode.PUSH;
+                        Segment segment = program.segment(i);
+                        first = program.operand(i);
+                        switch (segment) {
+                            case CONSTANT:
+                                op = PUSH_CONSTANT;
+                                break;
+                            case LOCAL:
+                                op = push ? PUSH_LOCAL : POP_LOCAL;
+                                break;
+                            case ARGUMENT:
+                                op = push ? PUSH_ARGUMENT : POP_ARGUMENT;
+                                break;
+                            case THIS:
+                                op = push ? PUSH_THIS : POP_THIS;
+                                break;
+                            case THAT:
+                                op = push ? PUSH_THAT : POP_THAT;
+                                break;
+                            case STATIC:
+                                String name = fileBaseName + "." + first;
+                                Integer address = statics.get(name);
+                                if (address == null) {
+                                    address = nextStatic++;
+                                    statics.put(name, address);
+                                }
+                                op = push ? PUSH_FIXED : POP_FIXED;
+                                first = address;
+                                break;
+                            case POINTER:
+                                op = push ? PUSH_FIXED : POP_FIXED;
+                                first = THIS + first;
+                                break;
+                            default: // TEMP
+                                op = push ? PUSH_FIXED : POP_FIXED;
+                                first = 5 + first;
+                                break;
+                        }
+                        break;
+                    case ADD: op = ADD; break;
+                    case SUB: op = SUB; break;
+                    case NEG: op = NEG; break;
+                    case EQ: op = EQ; break;
+                    case GT: op = GT; break;
+                    case LT: op = LT; break;
+                    case AND: op = AND; break;
+                    case OR: op = OR; break;
+                    case NOT: op = NOT; break;
+                    case LABEL:
+                        op = NOP;
+                        break;
+                    case GOTO:
+                    case IF_GOTO:
+                        op = (opcode == Opcode.GOTO) ? GOTO : IF_GOTO;
+                        Integer target = labels.get(scope + "$" + program.symbolName(i));
+                        if (target == null) {
+                            throw new VMTranslatorException("[UNDEFINED LABEL]: '" + program.symbolName(i)
+                                    + "' in " + scope);
+                        }
+                        first = target;
+
+                        // label X, goto X is how a program ends
+                        if (op == GOTO && target <= size) {
+                            second = 1;
+                            for (int between = target; between < size; between++) {
+                                second = (ops[between] == NOP) ? second : 0;
+                            }
+                        }
+                        break;
+                    case FUNCTION:
+                        scope = program.symbolName(i);
+                        op = FUNCTION;
+                        first = program.operand(i);
+                        break;
+                    case CALL:
+                        Integer function = functions.get(program.symbolName(i));
+                        if (function == null) {
+                            throw new VMTranslatorException("[UNDEFINED FUNCTION]: '" + program.symbolName(i) + "'");
+                        }
+                        op = CALL;
+                        first = function;
+                        second = program.operand(i);
+                        break;
+                    default: // RETURN
+                        op = RETURN;
+                        break;
+                }
+                ops[size] = op;
+                arg1[size] = first;
+                arg2[size] = second;
+                size++;
+            }
+        }
+
+        if (!functions.containsKey("Sys.init")) {
+            throw new VMTranslatorException("[UNDEFINED FUNCTION]: there is no Sys.init to start from");
+        }
+        entry = functions.get("Sys.init");
+    }
+
+    /**
+     * Clears the RAM and runs the bootstrap: SP = 256, then call Sys.init 0.
+     */
+    public void reset() {
+        Arrays.fill(ram, (short) 0);
+        pc = entry;
+        opsExecuted = 0;
+        halted = false;
+
+        // the frame of call Sys.init 0, the return address ends the run
+        int sp = STACK_BASE;
+        ram[sp++] = (short) HALT;
+        ram[sp++] = ram[LCL];
+        ram[sp++] = ram[ARG];
+        ram[sp++] = ram[THIS];
+        ram[sp++] = ram[THAT];
+        ram[ARG] = (short) (sp - 5);
+        ram[LCL] = (short) sp;
+        ram[SP] = (short) sp;
+    }
+
+    /**
+     * Runs the program from where it stopped.
+     * @param maxOps stop after this many more operations
+     */
+    public void run(long maxOps) {
+        final int[] ops = this.ops;
+        final int[] arg1 = this.arg1;
+        final int[] arg2 = this.arg2;
+        final short[] ram = this.ram;
+        int sp = ram[SP];
+        int pc = this.pc;
+        long left = maxOps;
+
+        run:
+        while (left > 0) {
+            left--;
+            switch (ops[pc]) {
+                case PUSH_CONSTANT:
+                    ram[sp++] = (short) arg1[pc++];
+                    break;
+                case PUSH_LOCAL:
+                    ram[sp++] = ram[(ram[LCL] + arg1[pc++]) & 0x7FFF];
+                    break;
+                case PUSH_ARGUMENT:
+                    ram[sp++] = ram[(ram[ARG] + arg1[pc++]) & 0x7FFF];
+                    break;
+                case PUSH_THIS:
+                    ram[sp++] = ram[(ram[THIS] + arg1[pc++]) & 0x7FFF];
+                    break;
+                case PUSH_THAT:
+                    ram[sp++] = ram[(ram[THAT] + arg1[pc++]) & 0x7FFF];
+                    break;
+                case PUSH_FIXED:
+                    ram[sp++] = ram[arg1[pc++]];
+                    break;
+                case POP_LOCAL:
+                    ram[(ram[LCL] + arg1[pc++]) & 0x7FFF] = ram[--sp];
+                    break;
+                case POP_ARGUMENT:
+                    ram[(ram[ARG] + arg1[pc++]) & 0x7FFF] = ram[--sp];
+                    break;
+                case POP_THIS:
+                    ram[(ram[THIS] + arg1[pc++]) & 0x7FFF] = ram[--sp];
+                    break;
+                case POP_THAT:
+                    ram[(ram[THAT] + arg1[pc++]) & 0x7FFF] = ram[--sp];
+                    break;
+                case POP_FIXED:
+                    ram[arg1[pc++]] = ram[--sp];
+                    break;
+                case ADD:
+                    sp--;
+                    ram[sp - 1] = (short) (ram[sp - 1] + ram[sp]);
+                    pc++;
+                    break;
+                case SUB:
+                    sp--;
+                    ram[sp - 1] = (short) (ram[sp - 1] - ram[sp]);
+                    pc++;
+                    break;
+                case NEG:
+                    ram[sp - 1] = (short) -ram[sp - 1];
+                    pc++;
+                    break;
+                // the translated code compares on the sign of the 16 bit difference
+                case EQ:
+                    sp--;
+                    ram[sp - 1] = (short) (((short) (ram[sp - 1] - ram[sp]) == 0) ? -1 : 0);
+                    pc++;
+                    break;
+                case GT:
+                    sp--;
+                    ram[sp - 1] = (short) (((short) (ram[sp - 1] - ram[sp]) > 0) ? -1 : 0);
+                    pc++;
+                    break;
+                case LT:
+                    sp--;
+                    ram[sp - 1] = (short) (((short) (ram[sp - 1] - ram[sp]) < 0) ? -1 : 0);
+                    pc++;
+                    break;
+                case AND:
+                    sp--;
+                    ram[sp - 1] = (short) (ram[sp - 1] & ram[sp]);
+                    pc++;
+                    break;
+                case OR:
+                    sp--;
+                    ram[sp - 1] = (short) (ram[sp - 1] | ram[sp]);
+                    pc++;
+                    break;
+                case NOT:
+                    ram[sp - 1] = (short) ~ram[sp - 1];
+                    pc++;
+                    break;
+                case GOTO:
+                    if (arg2[pc] != 0) {
+                        // label X, goto X: the program is done
+                        halted = true;
+                        break run;
+                    }
+                    pc = arg1[pc];
+                    break;
+                case IF_GOTO:
+                    pc = (ram[--sp] != 0) ? arg1[pc] : pc + 1;
+                    break;
+                case FUNCTION:
+                    for (int i = arg1[pc]; i > 0; i--) {
+                        ram[sp++] = 0;
+                    }
+                    pc++;
+                    break;
+                case CALL:
+                    ram[sp++] = (short) (pc + 1);
+                    ram[sp++] = ram[LCL];
+                    ram[sp++] = ram[ARG];
+                    ram[sp++] = ram[THIS];
+                    ram[sp++] = ram[THAT];
+                    ram[ARG] = (short) (sp - 5 - arg2[pc]);
+                    ram[LCL] = (short) sp;
+                    pc = arg1[pc];
+                    break;
+                case RETURN:
+                    int frame = ram[LCL];
+                    int returnAddress = ram[frame - 5] & 0xFFFF;
+                    ram[ram[ARG]] = ram[--sp];
+                    sp = ram[ARG] + 1;
+                    ram[THAT] = ram[frame - 1];
+                    ram[THIS] = ram[frame - 2];
+                    ram[ARG] = ram[frame - 3];
+                    ram[LCL] = ram[frame - 4];
+                    if (returnAddress == HALT) {
+                        halted = true;
+                        break run;
+                    }
+                    pc = returnAddress;
+                    break;
+                default: // NOP
+                    pc++;
+                    break;
+            }
+        }
+
+        opsExecuted += maxOps - left;
+        ram[SP] = (short) sp;
+        this.pc = pc;
+    }
+
+    /**
+     * Prints the stack, the statics and temp, like the test scripts compare them.
+     */
+    public void printState() {
+        StringBuilder stack = new StringBuilder();
+        for (int address = STACK_BASE; address < ram[SP]; address++) {
+            stack.append(address == STACK_BASE ? "" : " ").append(ram[address]);
+        }
+        System.out.println("SP = " + ram[SP] + ", stack: [" + stack + "]");
+        StringBuilder variables = new StringBuilder();
+        for (Map.Entry<String, Integer> entry : statics.entrySet()) {
+            variables.append(variables.length() == 0 ? "" : ", ").append(entry.getKey()).append(" = ")
+                    .append(ram[entry.getValue()]);
+        }
+        System.out.println("statics: " + variables);
+        StringBuilder temp = new StringBuilder();
+        for (int address = 5; address < 13; address++) {
+            temp.append(address == 5 ? "" : " ").append(ram[address]);
+        }
+        System.out.println("temp: [" + temp + "]");
+    }
+
+    /**
+     * Translates the same directory, runs the .asm on the HackEmulator and compares
+     * the pointers, temp, statics, stack and everything from the heap up (the screen
+     * and keyboard too) of both runs. The return addresses in the frames on the stack
+     * are skipped, they are ROM addresses in one run and command numbers in the other.
+     * @param options the translator options to check with
+     * @return true if both runs end in the same state
+     * @throws VMTranslatorException if the .asm can not be assembled
+     */
+    public boolean check(TranslatorOptions options) throws VMTranslatorException {
+        if (options.isMachineCode()) {
+            throw new VMTranslatorException("[INVALID OPTION]: --check needs the .asm file for the names of "
+                    + "the statics, it can not be used with --emit " + options.getEmit());
+        }
+        VMTranslator.translateDirectory(options);
+        HackAssembler assembler = new HackAssembler();
+        assembler.assembleFile(VMTranslator.outputFileName(options.getDirectoryName()));
+        HackEmulator emulator = new HackEmulator(assembler.getRom(), assembler.getSize());
+        emulator.run(HackProfiler.DEFAULT_MAX_CYCLES, null);
+
+        // the return addresses of every frame still on the stack
+        boolean[] returnAddress = new boolean[HackEmulator.RAM_SIZE];
+        for (int frame = ram[LCL]; frame - 5 >= STACK_BASE; frame = ram[frame - 4]) {
+            returnAddress[frame - 5] = true;
+        }
+
+        ArrayList<String> differences = new ArrayList<>();
+        for (int address = SP; address < 13; address++) {
+            if (ram[address] != emulator.ram(address)) {
+                differences.add("RAM[" + address + "] " + ram[address] + " != " + emulator.ram(address));
+            }
+        }
+        for (Map.Entry<String, Integer> entry : statics.entrySet()) {
+            Integer address = assembler.symbol(entry.getKey());
+            short translated = (address == null) ? 0 : emulator.ram(address);
+            if (ram[entry.getValue()] != translated) {
+                differences.add(entry.getKey() + " " + ram[entry.getValue()] + " != " + translated);
+            }
+        }
+        for (int address = STACK_BASE; address < ram[SP]; address++) {
+            if (!returnAddress[address] && ram[address] != emulator.ram(address)) {
+                differences.add("stack RAM[" + address + "] " + ram[address] + " != " + emulator.ram(address));
+            }
+        }
+        for (int address = HEAP_BASE; address < HackEmulator.RAM_SIZE; address++) {
+            if (ram[address] != emulator.ram(address)) {
+                differences.add("heap RAM[" + address + "] " + ram[address] + " != " + emulator.ram(address));
+            }
+        }
+        if (halted != emulator.isHalted()) {
+            differences.add("the interpreter " + (halted ? "ran" : "did not run") + " to the end, the emulator "
+                    + (emulator.isHalted() ? "did" : "did not"));
+        }
+
+        if (differences.isEmpty()) {
+            System.out.println("CHECK OK: the translated code (" + emulator.getCycles()
+                    + " cycles) ends in the same state as the interpreter");
+        } else {
+            System.out.println("CHECK FAILED: " + differences.size() + " differences (interpreter != translated)");
+            for (int i = 0; i < differences.size() && i < MAX_DIFFERENCES; i++) {
+                System.out.println("\t" + differences.get(i));
+            }
+            if (differences.size() > MAX_DIFFERENCES) {
+                System.out.println("\t... and " + (differences.size() - MAX_DIFFERENCES) + " more");
+            }
+        }
+        return differences.isEmpty();
+    }
+
+    /**
+     * Accessor method for a word of the RAM.
+     * @param address the RAM address
+     * @return the value there
+     */
+    public short ram(int address) {
+        return ram[address];
+    }
+
+    /**
+     * Accessor method for the RAM address of a static variable.
+     * @param name the name of the variable, like Main.0
+     * @return the address, null if the program never uses it
+     */
+    public Integer staticAddress(String name) {
+        return statics.get(name);
+    }
+
+    /**
+     * Accessor method for the number of operations run.
+     * @return the VM operations run since the last reset
+     */
+    public long getOpsExecuted() {
+        return opsExecuted;
+    }
+
+    /**
+     * Accessor method for how the run ended.
+     * @return true if the program ended in an infinite loop or returned from Sys.init
+     */
+    public boolean isHalted() {
+        return halted;
+    }
+}
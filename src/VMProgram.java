@@ -0,0 +1,283 @@
+import java.util.Arrays;
+
+/**
+ * Compact in-memory form of the commands of a single .vm file.
+ *
+ * - Commands are stored as parallel int arrays (opcode, segment, operand and
+ *      symbol) instead of one object per command, so memory grows linearly and
+ *      stays small even for very large inputs.
+ * - Label and function names are interned to ids in a SymbolTable.
+ * - Built in one pass over the file by build(), then read by the CodeWriter and
+ *      by any pass that wants to look at the whole file.
+ *
+ * @author Jay Montoya
+ * @version 1.0
+ */
+public class VMProgram {
+
+    /** marks a command with no segment or no symbol **/
+    public static final int NONE = -1;
+
+    /** the name of the .vm file the commands came from **/
+    private final String fileName;
+
+    /** the label and function names used by the commands **/
+    private final SymbolTable symbols;
+
+    /** the number of commands **/
+    private int size;
+
+    /** the Opcode ordinal of each command **/
+    private int[] opcodes;
+
+    /** the Segment ordinal of each push and pop, NONE otherwise **/
+    private int[] segments;
+
+    /** the index of each push and pop, nVars of each function, nArgs of each call **/
+    private int[] operands;
+
+    /** the symbol id of each label, goto, if-goto, function and call, NONE otherwise **/
+    private int[] symbolIds;
+
+    /**
+     * Constructor for an empty program.
+     * @param fileName the name of the .vm file the commands come from
+     * @param capacity the number of commands to make room for up front
+     */
+    public VMProgram(String fileName, int capacity) {
+        this(fileName, new SymbolTable(), capacity);
+    }
+
+    /**
+     * Constructor for an empty program sharing the symbol table of another one.
+     * Used by passes which rewrite a program into a new one.
+     * @param fileName the name of the .vm file the commands come from
+     * @param symbols the symbol table the symbol ids refer to
+     * @param capacity the number of commands to make room for up front
+     */
+    public VMProgram(String fileName, SymbolTable symbols, int capacity) {
+        this.fileName = fileName;
+        this.symbols = symbols;
+        capacity = Math.max(16, capacity);
+        opcodes = new int[capacity];
+        segments = new int[capacity];
+        operands = new int[capacity];
+        symbolIds = new int[capacity];
+        size = 0;
+    }
+
+    /**
+     * Where parse() puts the commands it reads, in their compact form.
+     */
+    public interface CommandSink {
+        /**
+         * Takes the next command of the file.
+         * @param opcode the opcode ordinal
+         * @param segment the segment ordinal, NONE if the command is not a push or pop
+         * @param operand the index, nVars or nArgs, 0 if the command has none
+         * @param symbol the symbol id of the label or function, NONE if the command has none
+         */
+        void add(int opcode, int segment, int operand, int symbol);
+    }
+
+    /**
+     * Reads every command of a file into a new program.
+     * @param parser a parser positioned at the start of the file
+     * @param fileName the name of the .vm file
+     * @return the commands of the file
+     * @throws VMTranslatorException if a line is not a valid command
+     */
+    public static VMProgram build(Parser parser, String fileName) throws VMTranslatorException {
+        VMProgram program = new VMProgram(fileName, 256);
+        parse(parser, program.symbols, program::addEncoded);
+        return program;
+    }
+
+    /**
+     * Reads every command of a file and hands them to a sink one at a time, the
+     * label and function names are interned into the given symbol table.
+     * @param parser a parser positioned at the start of the file
+     * @param symbols where the label and function names are interned
+     * @param sink where every command goes
+     * @throws VMTranslatorException if a line is not a valid command
+     */
+    public static void parse(Parser parser, SymbolTable symbols, CommandSink sink) throws VMTranslatorException {
+        // while parser can continue
+        while (parser.hasMoreCommands()) {
+            // advance the parser
+            parser.advance();
+
+            switch (parser.getCommandType()) {
+                case C_NONE:
+                    break;
+                case C_ARITHMETIC:
+                case C_RETURN:
+                    sink.add(parser.getOpcode().ordinal(), NONE, 0, NONE);
+                    break;
+                case C_PUSH:
+                case C_POP:
+                    Segment segment = parser.getSegment();
+                    sink.add(parser.getOpcode().ordinal(), (segment == null) ? NONE : segment.ordinal(),
+                            parser.arg3(), NONE);
+                    break;
+                case C_LABEL:
+                case C_GOTO:
+                case C_IF:
+                    sink.add(parser.getOpcode().ordinal(), NONE, 0, symbols.intern(parser.getArg2()));
+                    break;
+                case C_FUNCTION:
+                case C_CALL:
+                    sink.add(parser.getOpcode().ordinal(), NONE, parser.arg3(), symbols.intern(parser.getArg2()));
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Appends a command to the end of the program.
+     * @param opcode the opcode of the command
+     * @param segment the segment of a push or pop, null otherwise
+     * @param operand the index, nVars or nArgs, 0 if the command has none
+     * @param symbol the symbol id of the label or function, NONE if the command has none
+     */
+    public void add(Opcode opcode, Segment segment, int operand, int symbol) {
+        if (size == opcodes.length) {
+            grow();
+        }
+        opcodes[size] = opcode.ordinal();
+        segments[size] = (segment == null) ? NONE : segment.ordinal();
+        operands[size] = operand;
+        symbolIds[size] = symbol;
+        size++;
+    }
+
+    /**
+     * Appends a command which is already in its compact form, as it comes out of
+     * parse() or the CommandRing.
+     * @param opcode the opcode ordinal
+     * @param segment the segment ordinal, NONE if the command is not a push or pop
+     * @param operand the index, nVars or nArgs, 0 if the command has none
+     * @param symbol the symbol id of the label or function, NONE if the command has none
+     */
+    public void addEncoded(int opcode, int segment, int operand, int symbol) {
+        if (size == opcodes.length) {
+            grow();
+        }
+        opcodes[size] = opcode;
+        segments[size] = segment;
+        operands[size] = operand;
+        symbolIds[size] = symbol;
+        size++;
+    }
+
+    /**
+     * Drops commands from the end of the program.
+     * @param newSize the number of commands to keep
+     */
+    public void truncate(int newSize) {
+        size = newSize;
+    }
+
+    /**
+     * Accessor method for the number of commands.
+     * @return the number of commands
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Accessor method for the opcode of a command.
+     * @param i the index of the command
+     * @return the opcode
+     */
+    public Opcode opcode(int i) {
+        return Opcode.VALUES[opcodes[i]];
+    }
+
+    /**
+     * Accessor method for the segment of a command.
+     * @param i the index of the command
+     * @return the segment, null if the command is not a push or pop
+     */
+    public Segment segment(int i) {
+        return (segments[i] == NONE) ? null : Segment.VALUES[segments[i]];
+    }
+
+    /**
+     * Accessor method for the operand of a command.
+     * @param i the index of the command
+     * @return the index, nVars or nArgs of the command
+     */
+    public int operand(int i) {
+        return operands[i];
+    }
+
+    /**
+     * Accessor method for the symbol id of a command.
+     * @param i the index of the command
+     * @return the symbol id, NONE if the command has no label or function name
+     */
+    public int symbol(int i) {
+        return symbolIds[i];
+    }
+
+    /**
+     * Accessor method for the label or function name of a command.
+     * @param i the index of the command
+     * @return the name, null if the command has none
+     */
+    public String symbolName(int i) {
+        return (symbolIds[i] == NONE) ? null : symbols.name(symbolIds[i]);
+    }
+
+    /**
+     * Puts a command back together as it would appear in a .vm file.
+     * @param i the index of the command
+     * @return the command, like "push argument 0"
+     */
+    public String commandText(int i) {
+        Opcode opcode = opcode(i);
+        switch (opcode.commandType) {
+            case C_PUSH:
+            case C_POP:
+                return opcode.keyword + " " + segment(i).keyword + " " + operand(i);
+            case C_LABEL:
+            case C_GOTO:
+            case C_IF:
+                return opcode.keyword + " " + symbolName(i);
+            case C_FUNCTION:
+            case C_CALL:
+                return opcode.keyword + " " + symbolName(i) + " " + operand(i);
+            default:
+                return opcode.keyword;
+        }
+    }
+
+    /**
+     * Accessor method for the symbol table of the program.
+     * @return the symbol table
+     */
+    public SymbolTable getSymbols() {
+        return symbols;
+    }
+
+    /**
+     * Accessor method for the file name.
+     * @return the name of the .vm file the commands came from
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * Helper method for doubling the room in every array.
+     */
+    private void grow() {
+        int capacity = opcodes.length * 2;
+        opcodes = Arrays.copyOf(opcodes, capacity);
+        segments = Arrays.copyOf(segments, capacity);
+        operands = Arrays.copyOf(operands, capacity);
+        symbolIds = Arrays.copyOf(symbolIds, capacity);
+    }
+}
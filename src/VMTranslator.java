@@ -1,6 +1,15 @@
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * Drives the entire process of the VM Translation.
@@ -8,43 +17,198 @@ import java.util.StringTokenizer;
  * ALGORITHM:
  * 1) Constructs a Parser to handle the file input.
  * 2) Constructs a CodeWriter to handle the output file.
- * 3) Marches through the input file, parsing each line and generating code from it.
+ * 3) Reads every input file on a fork/join pool, each into its own VMProgram.
+ * 4) Runs the passes which need the whole program, like dead function elimination.
+ * 5) Writes the code for every program on the fork/join pool into its own in-memory fragment.
+ * 6) Writes the fragments to the output file in file name order.
  *
- * INPUT: fileName.vm
- * OUTPUT: fileName.asm
+ * With --pipeline steps 3 to 5 are one task per file, which reads the file on one
+ * thread while it writes its code on another (see TranslationPipeline). With
+ * --single-thread every task runs right away on the calling thread instead.
+ *
+ * INPUT: a directory of .vm files (see TranslatorOptions for the command line)
+ * OUTPUT: directoryName.asm, or directoryName.hack / directoryName.bin with --emit
  *
  * @author Jay Montoya
  */
 public class VMTranslator {
 
-    // constants
-    public static final boolean DEBUG = true;
+    // constants, per-run numbers come from the metrics (see --metrics)
     public static final String DIRECTORY_NAME
             = "src/HW09_TestFiles/FunctionCalls/FibonacciElement";
 
+    /** default size in bytes of the output file buffer, it is only written out when full (see --buffer-size) **/
+    public static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    /** starting size in bytes of the in-memory fragment of a single file **/
+    public static final int FRAGMENT_BUFFER_SIZE = 16 * 1024;
+
+    /** how many commands the reader of --pipeline can get ahead of codegen **/
+    public static final int PIPELINE_RING_SIZE = 4096;
+
     /** CodeWriter object for writing the code for each command **/
     private CodeWriter codeWriter;
 
     /** the evil main method that drives the entire VMTranslator-inator **/
     public static void main(String[] args) {
 
-        // add each .vm file to the directory
-        ArrayList<File> vmFiles = new ArrayList<>();
+        // read the command line options
+        TranslatorOptions options = parseOptions(args);
 
-        //get the directory name name
-        StringTokenizer st = new StringTokenizer(DIRECTORY_NAME);
-        String name = st.nextToken("/");
-        while (st.hasMoreTokens()) {
-            name = st.nextToken("/");
+        // many directories are translated as one batch
+        if (options.isBatch()) {
+            if (new BatchTranslator(options).run() > 0) {
+                System.exit(1);
+            }
+            return;
+        }
+
+        // stay running and translate again on every change
+        if (options.isWatch()) {
+            try {
+                new DirectoryWatcher(options).run();
+            } catch (VMTranslatorException e) {
+                System.out.println("FATAL ERROR");
+                System.out.println(e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
+
+        // metrics are only collected when asked for, otherwise they cost nothing
+        TranslationMetrics metrics = options.isCollectingMetrics() ? new TranslationMetrics() : null;
+
+        // translate the directory and report what the optimization passes did
+        TranslationReport report = null;
+        try {
+            report = translateDirectory(options, metrics);
+        } catch (VMTranslatorException e) {
+            System.out.println("FATAL ERROR");
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+        report.print();
+
+        if (options.getMetricsFile() != null) {
+            try {
+                metrics.writeJson(options.getMetricsFile());
+            } catch (VMTranslatorException e) {
+                System.out.println("FATAL ERROR");
+                System.out.println(e.getMessage());
+                System.exit(1);
+            }
+        }
+        if (options.isSizeReport()) {
+            metrics.printSizes();
         }
 
-        if (DEBUG) System.out.println("Directory name is: " + name);
+        // run the output and show where the cycles go
+        if (options.isProfile()) {
+            HackProfiler.profileFile(outputFileName(options.getDirectoryName()), HackProfiler.DEFAULT_MAX_CYCLES);
+        }
+    }
+
+    /**
+     * Translates every .vm file of the directory given in the options into a single
+     * .asm file named after the directory, inside that directory.
+     * @param options the options the translator was started with
+     * @return what the optimization passes did
+     * @throws VMTranslatorException if a file can not be read or translated
+     */
+    public static TranslationReport translateDirectory(TranslatorOptions options) throws VMTranslatorException {
+        return translateDirectory(options, null);
+    }
+
+    /**
+     * Translates every .vm file of the directory given in the options into a single
+     * .asm file named after the directory, inside that directory.
+     * @param options the options the translator was started with
+     * @param metrics where the metrics of the run are collected, null for none
+     * @return what the optimization passes did
+     * @throws VMTranslatorException if a file can not be read or translated
+     */
+    public static TranslationReport translateDirectory(TranslatorOptions options, TranslationMetrics metrics)
+            throws VMTranslatorException {
+        TranslationCache cache = options.isCache()
+                ? new TranslationCache(options.getDirectoryName(), options, true)
+                : null;
+        return translateDirectory(options, metrics, cache);
+    }
+
+    /**
+     * Translates every .vm file of the directory given in the options into a single
+     * .asm file named after the directory, inside that directory. The .asm file is
+     * written under a temporary name and moved into place, so it is never seen half written.
+     * @param options the options the translator was started with
+     * @param metrics where the metrics of the run are collected, null for none
+     * @param cache where translated fragments are kept between runs, null for none
+     * @return what the optimization passes did
+     * @throws VMTranslatorException if a file can not be read or translated
+     */
+    public static TranslationReport translateDirectory(TranslatorOptions options, TranslationMetrics metrics,
+                                                       TranslationCache cache) throws VMTranslatorException {
+        String outputName = outputFileName(options.getDirectoryName(), options);
+        if (!new File(options.getDirectoryName()).isDirectory()) {
+            throw new VMTranslatorException("[INVALID FILE]: not a directory '" + options.getDirectoryName() + "'");
+        }
+        ChannelSink file;
+        try {
+            file = new ChannelSink(outputName + ".tmp", options.getOutputBufferSize(), options.isMemoryMapped());
+        } catch (UncheckedIOException e) {
+            throw new VMTranslatorException("[INVALID FILE]: could not write '" + outputName + "' -> " + e.getCause());
+        }
+
+        // the output of the last good run stays in place, nothing half written is left
+        try {
+            return translateDirectory(options, metrics, cache, outputName, file);
+        } catch (VMTranslatorException e) {
+            discard(file, outputName);
+            throw e;
+        } catch (UncheckedIOException e) {
+            discard(file, outputName);
+            throw new VMTranslatorException("[INVALID FILE]: could not write '" + outputName + "' -> " + e.getCause());
+        }
+    }
+
+    /**
+     * Helper method for closing and deleting the temporary output of a failed run.
+     * @param file the temporary output file
+     * @param outputName the name of the output file
+     */
+    private static void discard(ChannelSink file, String outputName) {
+        try {
+            file.close();
+        } catch (UncheckedIOException e) {
+            // it is deleted anyway
+        }
+        new File(outputName + ".tmp").delete();
+    }
+
+    /**
+     * Translates every .vm file of the directory given in the options into the
+     * temporary output file, then moves it into place.
+     * @param options the options the translator was started with
+     * @param metrics where the metrics of the run are collected, null for none
+     * @param cache where translated fragments are kept between runs, null for none
+     * @param outputName the name of the output file
+     * @param file the temporary output file
+     * @return what the optimization passes did
+     * @throws VMTranslatorException if a file can not be read or translated
+     */
+    private static TranslationReport translateDirectory(TranslatorOptions options, TranslationMetrics metrics,
+                                                        TranslationCache cache, String outputName,
+                                                        ChannelSink file) throws VMTranslatorException {
+        String directoryName = options.getDirectoryName();
+
+        // add each .vm file to the directory
+        ArrayList<File> vmFiles = new ArrayList<>();
 
         // create a new codewriter
-        CodeWriter codeWriter = new CodeWriter(DIRECTORY_NAME + "/" + name + ".asm");
+        OutputSink output = openOutput(file, options);
+        CodeWriter codeWriter = new CodeWriter(output, options);
 
         //code to find all vmFiles in the directory and add them to the ArrayList
-        File dir = new File(DIRECTORY_NAME);
+        File dir = new File(directoryName);
         File[] directoryListing = dir.listFiles();
         if (directoryListing != null) {
             for (File child : directoryListing) {
@@ -57,64 +221,401 @@ public class VMTranslator {
             // Checking dir.isDirectory() above would not be sufficient
             // to avoid race conditions with another process that deletes
             // directories.
-            System.out.println("ERROR: Directory is not a directory! =(");
-            System.exit(0);
+            throw new VMTranslatorException("[INVALID FILE]: not a directory '" + directoryName + "'");
         }
 
+        // sort the files so the output is the same from run to run no matter
+        // what order the file system hands them back in
+        vmFiles.sort(Comparator.comparing(File::getName));
+
         // write the bootstrap code
         codeWriter.writeInit();
 
-        // for every vm file we have
-        for (File e : vmFiles) {
-            // inform the codeWriter we translating a new file
-            codeWriter.setFileName(e.getName());
-            if (DEBUG) System.out.println("file changed! now translating " + e.getName());
-
-            // set up parser and codeWriter streams
-            Parser parser = new Parser(e.getPath());
-
-            // while parser can continue
-            while (parser.hasMoreCommands()) {
-                // advance the parser
-                parser.advance();
-
-                // write the code
-                if (parser.getCommandType() == CommandType.C_ARITHMETIC) {
-                    codeWriter.writeArithmetic(parser.arg1());
-
-                    codeWriter.getContinueLabel();
-                    codeWriter.getTrueLabel();
-
-                } else if (parser.getCommandType() == CommandType.C_PUSH ||
-                        parser.getCommandType() == CommandType.C_POP) {
-                    if (DEBUG) System.out.println("command type is push or pop");
-                    codeWriter.writePushPop(parser.getCommandType(), parser.getArg2(),
-                            parser.arg3());
-                } else if (parser.getCommandType() == CommandType.C_LABEL) {
-                    if (DEBUG) System.out.println("command type is a label declaration");
-                    codeWriter.writeLabel(parser.getArg2()); // TODO: Write the method for this
-                } else if (parser.getCommandType() == CommandType.C_GOTO) {
-                    if (DEBUG) System.out.println("command is a unconditional GOTO");
-                    codeWriter.writeGoTo(parser.getArg2()); // TODO: Write the method for this
-                } else if (parser.getCommandType() == CommandType.C_IF) {
-                    if (DEBUG) System.out.println("command is an if-goto");
-                    codeWriter.writeIfGoTo(parser.getArg2()); // TODO: Write the method for this
-                } else if (parser.getCommandType() == CommandType.C_FUNCTION) {
-                    if (DEBUG) System.out.println("command type is a function declaration");
-                    codeWriter.writeFunction(parser.getArg2(), parser.arg3()); // TODO: Write the method for this
-                } else if (parser.getCommandType() == CommandType.C_CALL) {
-                    if (DEBUG) System.out.println("command type is a function call");
-                    codeWriter.writeCall(parser.getArg2(), parser.arg3()); // TODO: Write the method for this
-                } else if (parser.getCommandType() == CommandType.C_RETURN) {
-                    if (DEBUG) System.out.println("command is a return");
-                    codeWriter.writeReturn(); // TODO: Write the method for this
+        // what the optimization passes did, over all the files
+        TranslationReport report = new TranslationReport();
+
+        // the code of a file depends on every other file once dead functions are dropped
+        // or functions are inlined, so a fragment can only be cached on its own without them
+        if (cache != null && (options.isEliminateDeadFunctions() || options.isInline())) {
+            report.message("WARNING: the cache can not be used with --dce or --inline, translating every file");
+            cache = null;
+        }
+        String[] cacheKeys = new String[vmFiles.size()];
+        MemorySink[] cachedFragments = new MemorySink[vmFiles.size()];
+
+        // the pipeline writes each file while it is read, which the passes needing
+        // the whole file or the whole program first can not work with
+        boolean pipeline = options.isPipeline();
+        if (pipeline && (options.isFold() || options.isEliminateDeadFunctions() || options.isInline())) {
+            report.message("WARNING: --pipeline can not be used with --fold, --dce or --inline, "
+                    + "reading every file first");
+            pipeline = false;
+        }
+        if (pipeline) {
+            ArrayList<ForkJoinTask<MemorySink>> tasks = new ArrayList<>();
+            for (int i = 0; i < vmFiles.size(); i++) {
+                File e = vmFiles.get(i);
+                TranslationCache fileCache = cache;
+                FileMetrics fileMetrics = (metrics == null) ? null : metrics.addFile(e.getName());
+                tasks.add(submit(options, () -> {
+                    String key = (fileCache == null) ? null : fileCache.key(e, report);
+                    MemorySink fragment = (fileCache == null) ? null : fileCache.load(key, report);
+                    if (fileCache != null) {
+                        report.add("CACHE hits (files not translated)", (fragment != null) ? 1 : 0);
+                        report.add("CACHE misses (files translated)", (fragment == null) ? 1 : 0);
+                    }
+                    if (fragment == null) {
+                        fragment = TranslationPipeline.translate(e, options, report, fileMetrics);
+                        if (fileCache != null) {
+                            fileCache.store(key, fragment, report);
+                        }
+                    }
+                    return fragment;
+                }));
+            }
+            return finish(codeWriter, output, outputName, tasks, cachedFragments, metrics, report);
+        }
+
+        // read every vm file on the fork/join pool, each into its own program, the
+        // common pool keeps its threads between runs so repeated translations are cheap.
+        // Files found in the cache are not read at all, their program stays null
+        ArrayList<ForkJoinTask<VMProgram>> readTasks = new ArrayList<>();
+        for (int i = 0; i < vmFiles.size(); i++) {
+            File e = vmFiles.get(i);
+            int index = i;
+            TranslationCache fileCache = cache;
+            FileMetrics fileMetrics = (metrics == null) ? null : metrics.addFile(e.getName());
+            readTasks.add(submit(options, () -> {
+                if (fileCache != null) {
+                    cacheKeys[index] = fileCache.key(e, report);
+                    cachedFragments[index] = fileCache.load(cacheKeys[index], report);
+                    if (cachedFragments[index] != null) {
+                        return null;
+                    }
                 }
+                return readFile(e, options, report, fileMetrics);
+            }));
+        }
+        ArrayList<VMProgram> programs = new ArrayList<>();
+        for (ForkJoinTask<VMProgram> task : readTasks) {
+            programs.add(join(task));
+        }
+        if (cache != null) {
+            int hits = 0;
+            for (MemorySink fragment : cachedFragments) {
+                hits += (fragment != null) ? 1 : 0;
+            }
+            report.add("CACHE hits (files not translated)", hits);
+            report.add("CACHE misses (files translated)", vmFiles.size() - hits);
+        }
 
+        // find the small functions to write at their call sites, this needs every file at once
+        FunctionInliner inliner = null;
+        if (options.isInline()) {
+            long start = System.nanoTime();
+            inliner = new FunctionInliner(options, report);
+            inliner.findCandidates(programs);
+            if (metrics != null) {
+                metrics.addTime(TranslationMetrics.Phase.OPTIMIZE, System.nanoTime() - start);
             }
+        }
 
-            if (DEBUG) System.out.println("\tprocess finished | " + parser.getLinesRead() + " lines read");
+        // drop the functions Sys.init can never reach, this needs every file at once.
+        // Nothing calls an inlined function anymore, so it is dropped as well
+        if (options.isEliminateDeadFunctions()) {
+            long start = System.nanoTime();
+            DeadFunctionEliminator eliminator = new DeadFunctionEliminator(options, report);
+            if (inliner != null) {
+                eliminator.setInlined(inliner.getInlined());
+            }
+            programs = eliminator.eliminate(programs);
+            if (metrics != null) {
+                metrics.addTime(TranslationMetrics.Phase.OPTIMIZE, System.nanoTime() - start);
+            }
+        }
+
+        // write every program on the fork/join pool, each into its own fragment,
+        // and keep the fragments the cache did not have yet
+        ArrayList<ForkJoinTask<MemorySink>> writeTasks = new ArrayList<>();
+        for (int i = 0; i < programs.size(); i++) {
+            VMProgram program = programs.get(i);
+            if (program == null) {
+                writeTasks.add(null); // already in the cache
+                continue;
+            }
+            int index = i;
+            TranslationCache fileCache = cache;
+            FunctionInliner fileInliner = inliner;
+            FileMetrics fileMetrics = (metrics == null) ? null : metrics.getFile(program.getFileName());
+            writeTasks.add(submit(options, () -> {
+                MemorySink fragment = writeFile(program, options, report, fileMetrics, fileInliner);
+                if (fileCache != null) {
+                    fileCache.store(cacheKeys[index], fragment, report);
+                }
+                return fragment;
+            }));
         }
+
+        return finish(codeWriter, output, outputName, writeTasks, cachedFragments, metrics, report);
+    }
+
+    /**
+     * Helper method for merging the fragments of every file into the output file,
+     * in file order, and reporting on the whole run.
+     * @param codeWriter the CodeWriter of the output file, with the bootstrap code written
+     * @param output the sink the output file is written to
+     * @param outputName the name of the output file
+     * @param writeTasks the task writing each file, null where the fragment came from the cache
+     * @param cachedFragments the fragment of each file found in the cache
+     * @param metrics where the metrics of the run are collected, null for none
+     * @param report what the optimization passes did
+     * @return the report
+     * @throws VMTranslatorException if a file can not be read or translated
+     */
+    private static TranslationReport finish(CodeWriter codeWriter, OutputSink output, String outputName,
+                                            ArrayList<ForkJoinTask<MemorySink>> writeTasks,
+                                            MemorySink[] cachedFragments, TranslationMetrics metrics,
+                                            TranslationReport report) throws VMTranslatorException {
+        // merge the fragments back in file order, only the time spent writing counts
+        long writeNanos = 0;
+        for (int i = 0; i < writeTasks.size(); i++) {
+            MemorySink fragment = (writeTasks.get(i) == null) ? cachedFragments[i] : join(writeTasks.get(i));
+            long start = System.nanoTime();
+            codeWriter.writeFragment(fragment);
+            writeNanos += System.nanoTime() - start;
+        }
+
+        long start = System.nanoTime();
         codeWriter.writeEnding();
         codeWriter.close();
+        if (output instanceof MachineCodeSink) {
+            ((MachineCodeSink) output).check();
+        }
+        try {
+            Files.move(Paths.get(outputName + ".tmp"), Paths.get(outputName),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new VMTranslatorException("[INVALID FILE]: could not move the output into place '"
+                    + outputName + "' -> " + e);
+        }
+        if (metrics != null) {
+            metrics.addTime(TranslationMetrics.Phase.WRITE, writeNanos + System.nanoTime() - start);
+            metrics.finish(codeWriter.getInstructionsWritten());
+        }
+
+        // report what the optimization passes did
+        if (codeWriter.getPeepholeOptimizer() != null) {
+            codeWriter.getPeepholeOptimizer().addTo(report);
+        }
+        if (output instanceof MachineCodeSink) {
+            report.add("MACHINE CODE instructions written", ((MachineCodeSink) output).getSize());
+        }
+        return report;
+    }
+
+    /**
+     * Helper method for running a task of the translation on the fork/join pool, the
+     * common pool keeps its threads between runs so repeated translations are cheap.
+     * With --single-thread the task is run right away on this thread instead, what
+     * it throws is kept for join() like on the pool.
+     * @param options the options the translator was started with
+     * @param task the task
+     * @return the task, join() gives its result
+     */
+    private static <T> ForkJoinTask<T> submit(TranslatorOptions options, Callable<T> task) {
+        ForkJoinTask<T> forkJoinTask = ForkJoinTask.adapt(task);
+        if (options.isSingleThread()) {
+            forkJoinTask.quietlyInvoke();
+            return forkJoinTask;
+        }
+        return ForkJoinPool.commonPool().submit(forkJoinTask);
+    }
+
+    /**
+     * Helper method for waiting on a task of the translation. A VMTranslatorException
+     * thrown by the task comes out of join() wrapped, it is unwrapped and thrown here.
+     * @param task the task
+     * @return the result of the task
+     * @throws VMTranslatorException if the task could not read or translate its file
+     */
+    private static <T> T join(ForkJoinTask<T> task) throws VMTranslatorException {
+        try {
+            return task.join();
+        } catch (RuntimeException e) {
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof VMTranslatorException) {
+                    throw (VMTranslatorException) cause;
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Helper method for wrapping the file the whole program is written to. With
+     * --emit hack or binary the assembly code is turned into machine code on the
+     * way to the file, so no .asm file is written at all.
+     * @param file the file to write
+     * @param options the options the translator was started with
+     * @return the sink to give the CodeWriter
+     */
+    private static OutputSink openOutput(ChannelSink file, TranslatorOptions options) {
+        if (!options.isMachineCode()) {
+            return file;
+        }
+        return new MachineCodeSink(file, options.getEmit().equals(TranslatorOptions.EMIT_BINARY));
+    }
+
+    /**
+     * Finds the name of the .asm file a directory is translated into, which is
+     * named after the directory and sits inside it.
+     * @param directoryName the directory holding the .vm files
+     * @return the name of the .asm file
+     */
+    public static String outputFileName(String directoryName) {
+        //get the directory name name
+        StringTokenizer st = new StringTokenizer(directoryName);
+        String name = st.nextToken("/");
+        while (st.hasMoreTokens()) {
+            name = st.nextToken("/");
+        }
+
+        return directoryName + "/" + name + ".asm";
+    }
+
+    /**
+     * Finds the name of the file a directory is translated into with the given
+     * options, the .asm name with the extension of the output format.
+     * @param directoryName the directory holding the .vm files
+     * @param options the options the translator was started with
+     * @return the name of the output file
+     */
+    public static String outputFileName(String directoryName, TranslatorOptions options) {
+        String asmName = outputFileName(directoryName);
+        return asmName.substring(0, asmName.length() - ".asm".length()) + options.getOutputExtension();
+    }
+
+    /**
+     * Helper method for reading the command line options, quitting if they are bad.
+     * @param args the arguments given to main
+     * @return the parsed options
+     */
+    private static TranslatorOptions parseOptions(String[] args) {
+        try {
+            return TranslatorOptions.parse(args);
+        } catch (VMTranslatorException e) {
+            System.out.println("FATAL ERROR");
+            System.out.println(e.getMessage());
+            System.exit(1);
+            return null;
+        }
+    }
+
+    /**
+     * Translates a single vm file into an in-memory fragment of assembly code.
+     * @param e the .vm file to translate
+     * @param options the options the translator was started with
+     * @param report where the optimization passes report what they did
+     * @return the assembly code for the file
+     * @throws VMTranslatorException if the file can not be read or translated
+     */
+    public static MemorySink translateFile(File e, TranslatorOptions options, TranslationReport report)
+            throws VMTranslatorException {
+        return writeFile(readFile(e, options, report, null), options, report, null);
+    }
+
+    /**
+     * Reads a single vm file into its compact form and runs the passes which only
+     * need that one file.
+     * @param e the .vm file to read
+     * @param options the options the translator was started with
+     * @param report where the optimization passes report what they did
+     * @param metrics where the metrics of the file are collected, null for none
+     * @return the commands of the file
+     * @throws VMTranslatorException if the file can not be read
+     */
+    public static VMProgram readFile(File e, TranslatorOptions options, TranslationReport report,
+                                     FileMetrics metrics) throws VMTranslatorException {
+        long start = System.nanoTime();
+
+        // read the whole file into its compact form
+        Parser parser = new Parser(e.getPath());
+        long parsed = System.nanoTime();
+        VMProgram program = VMProgram.build(parser, e.getName());
+        long built = System.nanoTime();
+
+        if (metrics != null) {
+            metrics.addTime(TranslationMetrics.Phase.READ, parsed - start);
+            metrics.addTime(TranslationMetrics.Phase.PARSE, built - parsed);
+            metrics.countCommands(program);
+        }
+
+        // fold constant expressions before any code is written for them
+        if (options.isFold()) {
+            program = new ConstantFolder(report).fold(program);
+            if (metrics != null) {
+                metrics.addTime(TranslationMetrics.Phase.OPTIMIZE, System.nanoTime() - built);
+            }
+        }
+        return program;
+    }
+
+    /**
+     * Writes the assembly code for the commands of a single file into an in-memory
+     * fragment. Each file gets its own CodeWriter so no label or function state is
+     * shared between files.
+     * @param program the commands of the file
+     * @param options the options the translator was started with
+     * @param report where the optimization passes report what they did
+     * @param metrics where the metrics of the file are collected, null for none
+     * @return the assembly code for the file
+     * @throws VMTranslatorException if a label is defined twice or never defined
+     */
+    public static MemorySink writeFile(VMProgram program, TranslatorOptions options, TranslationReport report,
+                                       FileMetrics metrics) throws VMTranslatorException {
+        return writeFile(program, options, report, metrics, null);
+    }
+
+    /**
+     * Writes the assembly code for the commands of a single file into an in-memory
+     * fragment, with the calls to small functions replaced by their body.
+     * @param program the commands of the file
+     * @param options the options the translator was started with
+     * @param report where the optimization passes report what they did
+     * @param metrics where the metrics of the file are collected, null for none
+     * @param inliner the functions to inline, null for none
+     * @return the assembly code for the file
+     * @throws VMTranslatorException if a label is defined twice or never defined
+     */
+    public static MemorySink writeFile(VMProgram program, TranslatorOptions options, TranslationReport report,
+                                       FileMetrics metrics, FunctionInliner inliner) throws VMTranslatorException {
+        long start = System.nanoTime();
+
+        // every file writes into its own buffer
+        MemorySink fragment = new MemorySink(FRAGMENT_BUFFER_SIZE);
+        CodeWriter codeWriter = new CodeWriter(fragment, options);
+        if (metrics != null) {
+            metrics.setFragment(fragment);
+            codeWriter.setMetrics(metrics);
+        }
+        if (inliner != null) {
+            codeWriter.setInliner(inliner);
+        }
+
+        // inform the codeWriter we translating a new file
+        codeWriter.setFileName(program.getFileName());
+        codeWriter.writeProgram(program);
+
+        codeWriter.close();
+        if (codeWriter.getPeepholeOptimizer() != null) {
+            codeWriter.getPeepholeOptimizer().addTo(report);
+        }
+        codeWriter.addTo(report);
+
+        if (metrics != null) {
+            metrics.setTotals(fragment.size(), codeWriter.getInstructionsWritten());
+            metrics.addTime(TranslationMetrics.Phase.CODEGEN, System.nanoTime() - start);
+        }
+        return fragment;
     }
 }